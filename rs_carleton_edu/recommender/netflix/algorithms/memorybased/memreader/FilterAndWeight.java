@@ -1,13 +1,11 @@
 package netflix.algorithms.memorybased.memreader;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
 import netflix.memreader.MemHelper;
-import netflix.utilities.Pair;
+import netflix.utilities.TopKHeap;
+import netflix.utilities.WeightCache;
+import cern.colt.function.IntIntProcedure;
 import cern.colt.list.IntArrayList;
 import cern.colt.map.OpenIntDoubleHashMap;
-import cern.colt.map.OpenIntObjectHashMap;
 
 /**
  * A memory-based solution for recommendations for movie data.
@@ -32,7 +30,10 @@ import cern.colt.map.OpenIntObjectHashMap;
  * if there are too many misses - that is, weights that need to be
  * retrieved.  However, if you're constantly ranking one user
  * in comparison to all others, it should definitely be used as it
- * will be a real time saver.
+ * will be a real time saver.  The weights are kept in a bounded 
+ * WeightCache (see setWeightCacheSize), which can be shared by 
+ * several scoring threads, and getWeightCache().toString() shows 
+ * how often it hits.
  * 
  * Second, recommendations.  Once you've setup the options the 
  * actual recommendation process is a snap.  Just call 
@@ -51,6 +52,13 @@ import cern.colt.map.OpenIntObjectHashMap;
  * saving features stores data, and will not know that the database
  * has changed otherwise. 
  * 
+ * Fourth, neighborhoods.  By default every user who rated the target
+ * movie votes on the prediction.  setNeighborhood limits the vote to
+ * the k users with the highest weights, optionally only those with
+ * a weight of at least some threshold who share at least some number
+ * of rated movies with the active user.  This works with any of the
+ * options above.
+ * 
  * @author lewda
  */
 public class FilterAndWeight {
@@ -73,11 +81,18 @@ public class FilterAndWeight {
     private final int kd = k*d;
     private final int kdd = k*d*d;
 
+    // Neighborhood settings - by default, everyone votes
+    private int neighbors = 0;
+    private double minWeight = Double.NEGATIVE_INFINITY;
+    private int minCoRatings = 0;
+
     // Data that gets stored to speed up algorithms
-    private HashMap<String, Double> savedWeights;
+    public static final int DEFAULT_WEIGHT_CACHE_SIZE = 1 << 20;
+    private int weightCacheSize = DEFAULT_WEIGHT_CACHE_SIZE;
+    private WeightCache savedWeights;
     private OpenIntDoubleHashMap vectorNorms;
     private OpenIntDoubleHashMap frequencies;
-    private OpenIntDoubleHashMap stdevs;
+    private boolean useStdevs;
     
     /**
      * Creates a new FilterAndWeight with a given 
@@ -105,18 +120,13 @@ public class FilterAndWeight {
     private void setOptions(int options) {
         this.options = options;
         
-        stdevs = new OpenIntDoubleHashMap();
-        IntArrayList users = mh.getListOfUsers();
-        for(int i = 0; i < users.size(); i++) {
-            if((options & CORRELATION) != 0 
-                    || (options & CORRELATION_DEFAULT_VOTING) != 0)
-                stdevs.put(users.getQuick(i), mh.getStandardDeviationForUser(users.getQuick(i)));
-            else
-                stdevs.put(users.getQuick(i), 1.0);
-        }
+        // The standard deviations come from the MemHelper's
+        // statistics table, so there is nothing to precompute
+        useStdevs = (options & CORRELATION) != 0 
+            || (options & CORRELATION_DEFAULT_VOTING) != 0;
 
         if ((options & SAVE_WEIGHTS) != 0)
-            savedWeights = new HashMap<String, Double>();
+            savedWeights = new WeightCache(weightCacheSize);
 
         if ((options & VECTOR_SIMILARITY) != 0
                 || (options & VS_INVERSE_USER_FREQUENCY) != 0)
@@ -127,17 +137,75 @@ public class FilterAndWeight {
         if ((options & VS_INVERSE_USER_FREQUENCY) != 0) {
             frequencies = new OpenIntDoubleHashMap();
             double numUsers = mh.getNumberOfUsers();
-            OpenIntObjectHashMap movies = mh.getMovieToCust();
-            IntArrayList movieKeys = movies.keys();
+            IntArrayList movieKeys = mh.getListOfMovies();
 
             for (int i = 0; i < movieKeys.size(); i++) {
                 frequencies.put(movieKeys.getQuick(i), Math.log(numUsers /
-                        (double) ((IntArrayList) movies.get(movieKeys
-                                .getQuick(i))).size()));
+                        (double) mh.getNumberOfUsersWhoSawMovie(movieKeys
+                                .getQuick(i))));
             }
         }
     }
     
+    /**
+     * Limits the users who vote on a prediction.  Users are
+     * ranked by their weight with the active user, so with 
+     * correlation the most negatively correlated users are 
+     * the first to be left out. 
+     * 
+     * Any saved weights are cleared, since they depend on 
+     * minCoRatings. 
+     * 
+     * @param neighbors the number of users to keep, or 0 to
+     * keep every user who passes the other tests
+     * @param minWeight the lowest weight a user can have and
+     * still vote, or Double.NEGATIVE_INFINITY for no threshold
+     * @param minCoRatings the number of movies a user must have
+     * rated in common with the active user to vote
+     */
+    public void setNeighborhood(int neighbors, double minWeight, int minCoRatings) {
+        this.neighbors = Math.max(0, neighbors);
+        this.minWeight = minWeight;
+        this.minCoRatings = Math.max(0, minCoRatings);
+        setOptions(options);
+    }
+    
+    /**
+     * Sets the number of weights kept when SAVE_WEIGHTS is
+     * active.  Any saved weights are cleared.
+     * 
+     * @param size the maximum number of saved weights
+     */
+    public void setWeightCacheSize(int size) {
+        weightCacheSize = size;
+        setOptions(options);
+    }
+
+    /**
+     * Returns the cache of saved weights, with its hit, miss
+     * and eviction counts.
+     * 
+     * @return the cache, or null if SAVE_WEIGHTS is not active
+     */
+    public WeightCache getWeightCache() {
+        return savedWeights;
+    }
+    
+    /**
+     * Returns the standard deviation used to scale a user's
+     * votes: the user's actual standard deviation when using
+     * correlation, and 1 otherwise.
+     * 
+     * @param uid the user id
+     * @return the standard deviation for the user
+     */
+    private double stdev(int uid) {
+        if (useStdevs)
+            return mh.getStandardDeviationForUser(uid);
+        else
+            return 1.0;
+    }
+    
     /**
      * This should be run if you change the underlying database.
      */
@@ -164,15 +232,44 @@ public class FilterAndWeight {
         
         double currWeight, weightSum = 0, voteSum = 0;
         int uid;
+        CoRatings sums = new CoRatings();
+        boolean pruning = neighbors > 0 || minWeight > Double.NEGATIVE_INFINITY
+            || minCoRatings > 0;
+        TopKHeap heap = neighbors > 0 ? new TopKHeap(neighbors) : null;
 
         IntArrayList users = mh.getUsersWhoSawMovie(targetMovie);
         
         for (int i = 0; i < users.size(); i++) {
             uid = MemHelper.parseUserOrMovie(users.getQuick(i));
-            currWeight = weight(activeUser, uid);
+            currWeight = weight(activeUser, uid, sums);
+
+            if (pruning) {
+                // Also drops NaN weights, which mark users with too 
+                // few movies in common
+                if (!(currWeight >= minWeight))
+                    continue;
+
+                // Only the best k get to vote, once they're all known
+                if (heap != null) {
+                    heap.offer(i, currWeight);
+                    continue;
+                }
+            }
+
             weightSum += Math.abs(currWeight);
-            voteSum += stdevs.get(activeUser) * ((currWeight * (mh.getRating(uid, targetMovie) 
-                        - mh.getAverageRatingForUser(uid))) / stdevs.get(uid)) ;
+            voteSum += stdev(activeUser) * ((currWeight * (mh.getRating(uid, targetMovie) 
+                        - mh.getAverageRatingForUser(uid))) / stdev(uid)) ;
+        }
+
+        if (heap != null) {
+            for (int j = 0; j < heap.size(); j++) {
+                uid = MemHelper.parseUserOrMovie(users.getQuick(heap.getId(j)));
+                currWeight = heap.getScore(j);
+                weightSum += Math.abs(currWeight);
+                voteSum += stdev(activeUser) * ((currWeight 
+                            * (MemHelper.parseRating(users.getQuick(heap.getId(j))) 
+                            - mh.getAverageRatingForUser(uid))) / stdev(uid)) ;
+            }
         }
 
         // Normalize the sum, such that the unity of the weights is one
@@ -193,9 +290,10 @@ public class FilterAndWeight {
      * 
      * @param activeUser
      * @param targetUser
+     * @param sums reusable accumulator for the join
      * @return
      */
-    private double weight(int activeUser, int targetUser) {
+    private double weight(int activeUser, int targetUser, CoRatings sums) {
         double weight = -99;
 
         // If active, sees if this weight is already stored
@@ -207,12 +305,16 @@ public class FilterAndWeight {
 
         // Use an algorithm to weigh the two users
         if ((options & CORRELATION) != 0)
-            weight = correlation(activeUser, targetUser);
+            weight = correlation(activeUser, targetUser, sums);
         else if ((options & CORRELATION_DEFAULT_VOTING) != 0)
-            weight = correlationWithDefaultVoting(activeUser, targetUser);
+            weight = correlationWithDefaultVoting(activeUser, targetUser, sums);
         else if ((options & VECTOR_SIMILARITY) != 0 
                 || (options & VS_INVERSE_USER_FREQUENCY) != 0 )
-            weight = vectorSimilarity(activeUser, targetUser);
+            weight = vectorSimilarity(activeUser, targetUser, sums);
+
+        // Mark users with too few movies in common, so they don't vote
+        if (sums.common < minCoRatings)
+            weight = Double.NaN;
 
         // If using case amplification, amplify the results
         if ((options & CASE_AMPLIFICATION) != 0)
@@ -231,27 +333,20 @@ public class FilterAndWeight {
      * @param mh the database to use
      * @param activeUser the active user
      * @param targetUser the target user
+     * @param sums reusable accumulator for the join
      * @return their correlation
      */
-    private double correlation(int activeUser, int targetUser) {
-        double topSum, bottomSumActive, bottomSumTarget, rating1, rating2;
-        topSum = bottomSumActive = bottomSumTarget = 0;
-        double activeAvg = mh.getAverageRatingForUser(activeUser);
-        double targetAvg = mh.getAverageRatingForUser(targetUser);
-        ArrayList<Pair> ratings = mh.innerJoinOnMoviesOrRating(activeUser,
-                targetUser, true);
-        
-        // Do the summations
-        for (Pair pair : ratings) {
-            rating1 = (double) MemHelper.parseRating(pair.a) - activeAvg;
-            rating2 = (double) MemHelper.parseRating(pair.b) - targetAvg;
-            
-            topSum += rating1 * rating2;
-            bottomSumActive += Math.pow(rating1, 2);
-            bottomSumTarget += Math.pow(rating2, 2);
-        }
-        
-        double n = ratings.size() - 1;
+    private double correlation(int activeUser, int targetUser, CoRatings sums) {
+        sums.reset(CORRELATION, mh.getAverageRatingForUser(activeUser),
+                   mh.getAverageRatingForUser(targetUser));
+
+        // Do the summations while joining
+        mh.innerJoinOnMoviesOrRating(activeUser, targetUser, true, sums);
+
+        double topSum = sums.topSum;
+        double bottomSumActive = sums.bottomSumActive;
+        double bottomSumTarget = sums.bottomSumTarget;
+        double n = sums.count - 1;
         
         //So we get results even if they match on only one item
         //(Better than nothing, right?)
@@ -274,33 +369,22 @@ public class FilterAndWeight {
      * 
      * @param activeUser the active user id
      * @param targetUser the target user id
+     * @param sums reusable accumulator for the join
      * @return their correlation
      */
-    private double correlationWithDefaultVoting(int activeUser, int targetUser) {
-        int parta, partb, partc, partd, parte, rating1, rating2, n;
-        ArrayList<Pair> ratings = mh.fullOuterJoinOnMoviesOrRating(activeUser,
-                targetUser, true);
-        parta = partb = partc = partd = parte = 0;
-        n = ratings.size();
-
-        // Do the summations
-        for (Pair pair : ratings) {
-            if(pair.a == 0)
-                rating1 = d;
-            else
-                rating1 = MemHelper.parseRating(pair.a);
-            
-            if(pair.b == 0)
-                rating2 = d;
-            else
-                rating2 = MemHelper.parseRating(pair.b);
-
-            parta += rating1 * rating2;
-            partb += rating1;
-            partc += rating2;
-            partd += Math.pow(rating1, 2);
-            parte += Math.pow(rating2, 2);;
-        }
+    private double correlationWithDefaultVoting(int activeUser, int targetUser,
+                                                CoRatings sums) {
+        int parta, partb, partc, partd, parte, n;
+        sums.reset(CORRELATION_DEFAULT_VOTING, 0, 0);
+
+        // Do the summations while joining
+        mh.fullOuterJoinOnMoviesOrRating(activeUser, targetUser, true, sums);
+        parta = sums.parta;
+        partb = sums.partb;
+        partc = sums.partc;
+        partd = sums.partd;
+        parte = sums.parte;
+        n = sums.count;
         
         //Do some crazy calculations to come up with the correlation
         double answer = ((n+k)*(double)(parta+kdd) - (partb+kd)*(double)(partc+kd)) / 
@@ -325,79 +409,129 @@ public class FilterAndWeight {
      * 
      * @param activeUser the active user id
      * @param targetUser the target user id
+     * @param sums reusable accumulator for the join
      * @return their similarity
      */
-    private double vectorSimilarity(int activeUser, int targetUser) {
+    private double vectorSimilarity(int activeUser, int targetUser, CoRatings sums) {
         double bottomActive, bottomTarget, weight;
-        IntArrayList ratings;
-        ArrayList<Pair> commonRatings = mh.innerJoinOnMoviesOrRating(
-                activeUser, targetUser, true);
-        bottomActive = bottomTarget = weight = 0;
-
-        // Find out the bottom portion for summation on active user
-        if (vectorNorms.containsKey(activeUser)) {
-            bottomActive = vectorNorms.get(activeUser);
+
+        // Find out the bottom portion for summation on each user
+        bottomActive = vectorNorm(activeUser);
+        bottomTarget = vectorNorm(targetUser);
+
+        // Do the full summation while joining
+        if ((options & VS_INVERSE_USER_FREQUENCY) == 0)
+            sums.reset(VECTOR_SIMILARITY, 0, 0);
+        else
+            sums.reset(VS_INVERSE_USER_FREQUENCY, 0, 0);
+        mh.innerJoinOnMoviesOrRating(activeUser, targetUser, true, sums);
+        weight = sums.topSum;
+        
+        weight /= bottomActive * bottomTarget;
+        
+        return weight;
+    }
+
+    /**
+     * Finds the length of a user's rating vector, weighted by 
+     * inverse user frequency if that is active.  The lengths 
+     * are saved, and may be shared by several scoring threads.
+     * 
+     * @param user the user id
+     * @return the length of the user's vector
+     */
+    private double vectorNorm(int user) {
+        synchronized (vectorNorms) {
+            if (vectorNorms.containsKey(user))
+                return vectorNorms.get(user);
         }
-        else {
-            ratings = mh.getMoviesSeenByUser(activeUser);
-            if ((options & VS_INVERSE_USER_FREQUENCY) == 0) {
-                for (int i = 0; i < ratings.size(); i++) {
-                    bottomActive += Math.pow(MemHelper.parseRating(ratings
-                            .getQuick(i)), 2);
-                }
+
+        double bottom = 0;
+        IntArrayList ratings = mh.getMoviesSeenByUser(user);
+        if ((options & VS_INVERSE_USER_FREQUENCY) == 0) {
+            for (int i = 0; i < ratings.size(); i++) {
+                bottom += Math.pow(MemHelper.parseRating(ratings
+                        .getQuick(i)), 2);
             }
-            else {
-                for (int i = 0; i < ratings.size(); i++) {
-                    bottomActive += Math.pow(frequencies.get(MemHelper
-                            .parseUserOrMovie(ratings.getQuick(i)))
-                            * MemHelper.parseRating(ratings.getQuick(i)), 2);
-                }
+        }
+        else {
+            for (int i = 0; i < ratings.size(); i++) {
+                bottom += Math.pow(frequencies.get(MemHelper
+                        .parseUserOrMovie(ratings.getQuick(i)))
+                        * MemHelper.parseRating(ratings.getQuick(i)), 2);
             }
-            bottomActive = Math.sqrt(bottomActive);
-            vectorNorms.put(activeUser, bottomActive);
         }
+        bottom = Math.sqrt(bottom);
 
-        // Find out the bottom portion for summation on target user
-        if (vectorNorms.containsKey(targetUser)) {
-            bottomTarget = vectorNorms.get(targetUser);
+        synchronized (vectorNorms) {
+            vectorNorms.put(user, bottom);
         }
-        else {
-            ratings = mh.getMoviesSeenByUser(targetUser);
-            if ((options & VS_INVERSE_USER_FREQUENCY) == 0) {
-                for (int i = 0; i < ratings.size(); i++) {
-                    bottomTarget += Math.pow(MemHelper.parseRating(ratings
-                            .getQuick(i)), 2);
-                }
-            }
-            else {
-                for (int i = 0; i < ratings.size(); i++) {
-                    bottomTarget += Math.pow(frequencies.get(MemHelper
-                            .parseUserOrMovie(ratings.getQuick(i)))
-                            * MemHelper.parseRating(ratings.getQuick(i)), 2);
-                }
-            }
-            bottomTarget = Math.sqrt(bottomTarget);
-            vectorNorms.put(targetUser, bottomTarget);
+        return bottom;
+    }
+
+    /**
+     * Does the summations for the weighting methods as the join
+     * between two users is merged, so that no list of common 
+     * ratings has to be built.  One of these is made per 
+     * recommendation and reset for each pair of users. 
+     */
+    private class CoRatings implements IntIntProcedure {
+        int measure, count, common;
+        double activeAvg, targetAvg;
+        double topSum, bottomSumActive, bottomSumTarget;
+        int parta, partb, partc, partd, parte;
+
+        /**
+         * Clears the sums before a new join.
+         * 
+         * @param measure the option constant of the weighting method
+         * @param activeAvg the active user's average, for correlation
+         * @param targetAvg the target user's average, for correlation
+         */
+        void reset(int measure, double activeAvg, double targetAvg) {
+            this.measure = measure;
+            this.activeAvg = activeAvg;
+            this.targetAvg = targetAvg;
+            count = common = 0;
+            topSum = bottomSumActive = bottomSumTarget = 0;
+            parta = partb = partc = partd = parte = 0;
         }
 
-        // Do the full summation
-        if ((options & VS_INVERSE_USER_FREQUENCY) == 0) {
-            for (Pair pair : commonRatings) {
-                weight += MemHelper.parseRating(pair.a) * MemHelper.parseRating(pair.b);
+        public boolean apply(int a, int b) {
+            count++;
+            if (a != 0 && b != 0)
+                common++;
+
+            if (measure == CORRELATION) {
+                double rating1 = (double) MemHelper.parseRating(a) - activeAvg;
+                double rating2 = (double) MemHelper.parseRating(b) - targetAvg;
+
+                topSum += rating1 * rating2;
+                bottomSumActive += rating1 * rating1;
+                bottomSumTarget += rating2 * rating2;
             }
-        }
-        else { 
-            for (Pair pair : commonRatings) {
-                weight += (frequencies.get(MemHelper.parseUserOrMovie(pair.a)) * MemHelper
-                        .parseRating(pair.a))
-                        * (frequencies.get(MemHelper.parseUserOrMovie(pair.b)) * MemHelper
-                        .parseRating(pair.b));
+            else if (measure == CORRELATION_DEFAULT_VOTING) {
+                int rating1 = (a == 0) ? d : MemHelper.parseRating(a);
+                int rating2 = (b == 0) ? d : MemHelper.parseRating(b);
+
+                parta += rating1 * rating2;
+                partb += rating1;
+                partc += rating2;
+                partd += rating1 * rating1;
+                parte += rating2 * rating2;
+            }
+            else if (measure == VECTOR_SIMILARITY) {
+                topSum += MemHelper.parseRating(a) * MemHelper.parseRating(b);
             }
+            else {
+                topSum += (frequencies.get(MemHelper.parseUserOrMovie(a)) 
+                           * MemHelper.parseRating(a))
+                    * (frequencies.get(MemHelper.parseUserOrMovie(b)) 
+                       * MemHelper.parseRating(b));
+            }
+
+            return true;
         }
-        
-        weight /= bottomActive * bottomTarget;
-        
-        return weight;
     }
 
     /**
@@ -421,7 +555,7 @@ public class FilterAndWeight {
      * @param weight 
      */
     private void addWeight(int user1, int user2, double weight) {
-        savedWeights.put(user1 + ";" + user2, new Double(weight));
+        savedWeights.put(user1, user2, weight);
     }
 
     /**
@@ -434,12 +568,7 @@ public class FilterAndWeight {
      * @return the weight if found, otherwise -99
      */
     private double getWeight(int user1, int user2) {
-        if(savedWeights.containsKey(user1 + ";" + user2))
-            return savedWeights.get(user1 + ";" + user2);
-        else if(savedWeights.containsKey(user2 + ";" + user1))
-            return savedWeights.get(user2 + ";" + user1);
-
-        return -99;
+        return savedWeights.get(user1, user2, -99);
     }
 
     /**
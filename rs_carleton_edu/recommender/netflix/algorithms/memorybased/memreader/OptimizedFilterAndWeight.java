@@ -1,12 +1,9 @@
 package netflix.algorithms.memorybased.memreader;
 
-import java.util.ArrayList;
-
 import netflix.memreader.MemHelper;
-import netflix.utilities.Pair;
+import cern.colt.function.IntIntProcedure;
 import cern.colt.list.IntArrayList;
 import cern.colt.map.OpenIntDoubleHashMap;
-import cern.colt.map.OpenIntObjectHashMap;
 
 /**
  * WARNING: THIS CODE NOT MEANT TO BE UNDERSTOOD BY THE LIKES OF MAN
@@ -41,15 +38,13 @@ public class OptimizedFilterAndWeight {
 
 		frequencies = new OpenIntDoubleHashMap();
 		double numUsers = mh.getNumberOfUsers();
-		OpenIntObjectHashMap movies = mh.getMovieToCust();
-		IntArrayList movieKeys = movies.keys();
+		IntArrayList movieKeys = mh.getListOfMovies();
 
 		for(int i = 0; i < movieKeys.size(); i++) {
-			frequencies.put(movieKeys.getQuick(i), (double)((IntArrayList)movies.get(movieKeys.getQuick(i))).size() / numUsers);
+			frequencies.put(movieKeys.getQuick(i), (double)mh.getNumberOfUsersWhoSawMovie(movieKeys.getQuick(i)) / numUsers);
 		}
 
-		OpenIntObjectHashMap users = mh.getCustToMovie();
-		IntArrayList userKeys = users.keys();
+		IntArrayList userKeys = mh.getListOfUsers();
 		IntArrayList ratings;
 		int user;
 		double norm;
@@ -79,12 +74,13 @@ public class OptimizedFilterAndWeight {
 	public double recommend(int activeUser, int targetMovie) {
 		double currWeight, weightSum = 0, voteSum = 0;
 		int uid;
+		DotProduct dot = new DotProduct();
 
 		IntArrayList users = mh.getUsersWhoSawMovie(targetMovie);
 
 		for(int i = 0; i < users.size(); i++) {
 			uid = MemHelper.parseUserOrMovie(users.getQuick(i));
-			currWeight = vectorSimilarity(activeUser, uid);
+			currWeight = vectorSimilarity(activeUser, uid, dot);
 			weightSum += Math.abs(currWeight);
 			voteSum += currWeight * (mh.getRating(uid, targetMovie) - mh.getAverageRatingForUser(uid));			
 		}
@@ -96,16 +92,28 @@ public class OptimizedFilterAndWeight {
 		return Math.round((mh.getAverageRatingForUser(activeUser) + voteSum)*10) / 10.0;
 	}
 
-	private double vectorSimilarity(int activeUser, int targetUser) {
-		double weight = 0;
-		ArrayList<Pair> commonRatings = mh.innerJoinOnMoviesOrRating(activeUser, targetUser, true);
+	private double vectorSimilarity(int activeUser, int targetUser, DotProduct dot) {
+		dot.weight = 0;
+		dot.activeNorm = vectorNorms.get(activeUser);
+		dot.targetNorm = vectorNorms.get(targetUser);
 
-		// Do the full summation
-		for(Pair pair : commonRatings) {
-			weight += ((frequencies.get(MemHelper.parseUserOrMovie(pair.a)) * MemHelper.parseRating(pair.a)) / vectorNorms.get(activeUser)) 
-			* ((frequencies.get(MemHelper.parseUserOrMovie(pair.b)) * MemHelper.parseRating(pair.b)) / vectorNorms.get(targetUser));
-		}
+		// Do the full summation while joining
+		mh.innerJoinOnMoviesOrRating(activeUser, targetUser, true, dot);
+
+		return dot.weight;
+	}
 
-		return weight;
+	/**
+	 * Sums the weighted products of the common ratings as the
+	 * join is merged, instead of building a list first.
+	 */
+	private class DotProduct implements IntIntProcedure {
+		double weight, activeNorm, targetNorm;
+
+		public boolean apply(int a, int b) {
+			weight += ((frequencies.get(MemHelper.parseUserOrMovie(a)) * MemHelper.parseRating(a)) / activeNorm) 
+			* ((frequencies.get(MemHelper.parseUserOrMovie(b)) * MemHelper.parseRating(b)) / targetNorm);
+			return true;
+		}
 	}
 }
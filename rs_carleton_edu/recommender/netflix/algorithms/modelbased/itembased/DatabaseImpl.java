@@ -1,20 +1,38 @@
 package netflix.algorithms.modelbased.itembased;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 
+import netflix.algorithms.modelbased.writer.SimilarityModel;
 import netflix.db.Database;
 import netflix.utilities.IntDoublePair;
 import netflix.utilities.Pair;
 import netflix.utilities.Triple;
 
+import cern.colt.list.FloatArrayList;
+import cern.colt.list.IntArrayList;
+
+/**
+ * The queries used by the item-based model builders and recommenders.
+ * Queries that are run over and over with different ids are prepared
+ * once per connection and reused, so the database parses and plans
+ * them only once. The methods that run them are synchronized, so
+ * one DatabaseImpl can be shared by several threads, which then take
+ * turns on the connection.
+ */
 public class DatabaseImpl extends Database {
 
     protected String usersName;
     private String similarityTableName;
 
+    //Prepared statements for the current connection, by their SQL
+    private HashMap<String, PreparedStatement> statements 
+        = new HashMap<String, PreparedStatement>();
+
     public DatabaseImpl() {
         super();
     }
@@ -31,6 +49,52 @@ public class DatabaseImpl extends Database {
     	this.similarityTableName = similarityName;
     }
 
+    /**
+     * Opens a connection, discarding the statements
+     * prepared for any previous one.
+     * @see netflix.db.Database#openConnection(String, String, String)
+     */
+    public boolean openConnection(String url, String user, String password) {
+        closeStatements();
+        return super.openConnection(url, user, password);
+    }
+
+    /**
+     * Closes the prepared statements and the connection.
+     * @see netflix.db.Database#closeConnection()
+     */
+    public boolean closeConnection() {
+        closeStatements();
+        return super.closeConnection();
+    }
+
+    /**
+     * Returns a prepared statement for some SQL on the current
+     * connection, preparing it the first time it is asked for.
+     * Callers should hold this DatabaseImpl's lock from setting the
+     * statement's parameters until they are done with its results.
+     * @param sql - the SQL, with ? for the parameters
+     * @return the prepared statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    protected synchronized PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = con.prepareStatement(sql);
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    private synchronized void closeStatements() {
+        for (PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException e) { e.printStackTrace(); }
+        }
+        statements.clear();
+    }
+
     /**
      * @author steinbel
      * Lets us set the name of the similarity table we're working with.
@@ -49,20 +113,19 @@ public class DatabaseImpl extends Database {
      *                  placeholders with similarity of -100) false for all results
      * @return ArrayList<IntDoubPair> the movieIDs and similarities
      */
-    public ArrayList<IntDoublePair> getSimilarMovies(int movieID, boolean trimList){
+    public synchronized ArrayList<IntDoublePair> getSimilarMovies(int movieID, boolean trimList){
         ArrayList<IntDoublePair> list = new ArrayList<IntDoublePair>();
         try {
-            Statement stmt = con.createStatement();
             String query = "SELECT mid2, similarity FROM " + similarityTableName +
-                            " WHERE mid1 = " + movieID;
+                            " WHERE mid1 = ?";
             if (trimList)
                 query += " AND similarity != -100";
-            query += ";";
-            ResultSet rs = stmt.executeQuery(query);
-      
+            PreparedStatement stmt = prepare(query);
+            stmt.setInt(1, movieID);
+            ResultSet rs = stmt.executeQuery();
             while (rs.next())
                 list.add(new IntDoublePair(rs.getInt(1), rs.getDouble(2)));
-            stmt.close();
+            rs.close();
         }
         catch (SQLException sE) {
             sE.printStackTrace();
@@ -70,19 +133,72 @@ public class DatabaseImpl extends Database {
         return list;
     }
 
+    /**
+     * Reads the whole similarity table into memory with one query,
+     * so that neighbors can then be looked up without going back 
+     * to the database. Each movie's neighbors are kept most similar
+     * first, as SimilarityModel expects. 
+     * @param trimList - true if only truly similar movieIDs are wanted (ignore
+     *                  placeholders with similarity of -100) false for all results
+     * @return the neighbors of every movie, or null if the table could 
+     * not be read
+     */
+    public synchronized SimilarityModel getSimilarityModel(boolean trimList){
+        IntArrayList ids = new IntArrayList();
+        IntArrayList neighbors = new IntArrayList();
+        FloatArrayList sims = new FloatArrayList();
+        try {
+            Statement stmt = con.createStatement();
+            try {
+                String query = "SELECT mid1, mid2, similarity FROM " + similarityTableName;
+                if (trimList)
+                    query += " WHERE similarity != -100";
+                query += " ORDER BY mid1, similarity DESC";
+                ResultSet rs = stmt.executeQuery(query);
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                    neighbors.add(rs.getInt(2));
+                    sims.add((float) rs.getDouble(3));
+                }
+            }
+            finally {
+                stmt.close();
+            }
+        }
+        catch (SQLException sE) {
+            sE.printStackTrace();
+            return null;
+        }
+
+        // The rows come sorted by mid1, so the offsets are 
+        // where each mid1 starts
+        int numIds = ids.isEmpty() ? 0 : ids.getQuick(ids.size() - 1) + 1;
+        int[] offsets = new int[numIds + 1];
+        for (int i = 0; i < ids.size(); i++)
+            offsets[ids.getQuick(i) + 1]++;
+        for (int i = 0; i < numIds; i++)
+            offsets[i + 1] += offsets[i];
+
+        neighbors.trimToSize();
+        sims.trimToSize();
+        return SimilarityModel.wrap(offsets, neighbors.elements(), sims.elements());
+    }
+
     public double getSimilarity(int movieID1, int movieID2){
     	return getSimilarity(this.similarityTableName, movieID1, movieID2);
     }
     
-    public double getSimilarity(String similarityTableName, int movieId1, int movieId2) {
+    public synchronized double getSimilarity(String similarityTableName, int movieId1, int movieId2) {
         double sim = -1000.0;
         try {
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT similarity FROM " + similarityTableName + 
-                    " WHERE mid1 = " + movieId1 + " AND mid2 = " + movieId2 + ";");
+            PreparedStatement stmt = prepare("SELECT similarity FROM " + similarityTableName + 
+                    " WHERE mid1 = ? AND mid2 = ?");
+            stmt.setInt(1, movieId1);
+            stmt.setInt(2, movieId2);
+            ResultSet rs = stmt.executeQuery();
             if(rs.next())
               sim = rs.getDouble(1);
-            stmt.close();
+            rs.close();
         }
         catch (SQLException sE) {
             sE.printStackTrace();
@@ -97,16 +213,17 @@ public class DatabaseImpl extends Database {
      * @return int the rating of user with userID for movie with movieID
      *		-99 indicates no rating
      */
-    public int getRatingForUserAndMovie(int userID, int movieID){
+    public synchronized int getRatingForUserAndMovie(int userID, int movieID){
         int rating = -99;
         try{
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT rating FROM " + ratingsName + " "
-                    + "WHERE uid = " + userID + " AND mid = " + movieID 
-                    + ";");
+            PreparedStatement stmt = prepare("SELECT rating FROM " + ratingsName + " "
+                    + "WHERE uid = ? AND mid = ?");
+            stmt.setInt(1, userID);
+            stmt.setInt(2, movieID);
+            ResultSet rs = stmt.executeQuery();
             if (rs.next())
             	rating = rs.getInt(1);
-            stmt.close();
+            rs.close();
         } catch(SQLException e){ e.printStackTrace(); }
         return rating;
     }
@@ -117,16 +234,17 @@ public class DatabaseImpl extends Database {
      * @param movieID - the id of the movie
      * @return ArrayList<Pair> a list of <userid, rating>
      */
-    public ArrayList<Pair> getRatingVector(int movieID){
+    public synchronized ArrayList<Pair> getRatingVector(int movieID){
 	ArrayList<Pair> vector = new ArrayList<Pair>();
 	try{
-		Statement stmt = con.createStatement();
-		ResultSet rs = stmt.executeQuery("SELECT uid, rating FROM " + ratingsName
-			+ " WHERE mid = " + movieID + ";");
+		PreparedStatement stmt = prepare("SELECT uid, rating FROM " + ratingsName
+			+ " WHERE mid = ?");
+		stmt.setInt(1, movieID);
+		ResultSet rs = stmt.executeQuery();
 		while(rs.next()){
 			vector.add(new Pair(rs.getInt(1), rs.getInt(2)));
 		}
-		stmt.close();
+		rs.close();
 	} catch(SQLException e){e.printStackTrace();}
 	return vector;
     }
@@ -139,15 +257,16 @@ public class DatabaseImpl extends Database {
      * @param movieID
      * @return
      */
-    public double getAverageRatingForMovie(int movieID){
+    public synchronized double getAverageRatingForMovie(int movieID){
         double avgRating = 0;
         try{
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT AVG(rating) FROM " + ratingsName + " "
-                    + "WHERE mid = " + movieID + ";");
+            PreparedStatement stmt = prepare("SELECT AVG(rating) FROM " + ratingsName + " "
+                    + "WHERE mid = ?");
+            stmt.setInt(1, movieID);
+            ResultSet rs = stmt.executeQuery();
             rs.next();
             avgRating = rs.getDouble(1);
-            stmt.close();
+            rs.close();
         } catch(SQLException e){ e.printStackTrace(); }
         return avgRating;
     }
@@ -160,15 +279,16 @@ public class DatabaseImpl extends Database {
      * @param userID
      * @return the average rating of a user
      */
-    public double getAverageRatingForUser(int userID){
+    public synchronized double getAverageRatingForUser(int userID){
         double avgRating = 0;
         try{
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT avgrating FROM " + usersName + " "
-                    + "WHERE uid = " + userID + ";");
+            PreparedStatement stmt = prepare("SELECT avgrating FROM " + usersName + " "
+                    + "WHERE uid = ?");
+            stmt.setInt(1, userID);
+            ResultSet rs = stmt.executeQuery();
             rs.next();
             avgRating = rs.getDouble(1);
-            stmt.close();
+            rs.close();
         } catch(SQLException e){ e.printStackTrace(); }
         return avgRating;
     }
@@ -180,15 +300,16 @@ public class DatabaseImpl extends Database {
      * @param movieID - the movie that the user saw
      * @return a list of uids
      */
-    public ArrayList<Integer> getUsersWhoSawMovie(int movieID){
+    public synchronized ArrayList<Integer> getUsersWhoSawMovie(int movieID){
         ArrayList<Integer> users = new ArrayList<Integer>();		
         try{
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT uid FROM " + ratingsName + " " 
-                    + "WHERE mid = " + movieID + ";");
+            PreparedStatement stmt = prepare("SELECT uid FROM " + ratingsName + " " 
+                    + "WHERE mid = ?");
+            stmt.setInt(1, movieID);
+            ResultSet rs = stmt.executeQuery();
             while (rs.next())
                 users.add(rs.getInt(1));
-            stmt.close();
+            rs.close();
         } catch(SQLException e){ e.printStackTrace(); }
         return users;
     }
@@ -200,15 +321,16 @@ public class DatabaseImpl extends Database {
      * @param uid - the user id
      * @return a list of mids
      */
-    public ArrayList<Integer> getRatingsForMoviesSeenByUser(int uid){
+    public synchronized ArrayList<Integer> getRatingsForMoviesSeenByUser(int uid){
         ArrayList<Integer> users = new ArrayList<Integer>();		
         try{
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT rating FROM " + ratingsName + " "
-                    + "WHERE uid = " + uid + ";");
+            PreparedStatement stmt = prepare("SELECT rating FROM " + ratingsName + " "
+                    + "WHERE uid = ?");
+            stmt.setInt(1, uid);
+            ResultSet rs = stmt.executeQuery();
             while (rs.next())
                 users.add(rs.getInt(1));
-            stmt.close();
+            rs.close();
         } catch(SQLException e){ e.printStackTrace(); }
         return users;
     }
@@ -221,18 +343,20 @@ public class DatabaseImpl extends Database {
      * @param userID2
      * @return
      */
-    public ArrayList<Pair> getCommonRatings(int userID1, int userID2){
+    public synchronized ArrayList<Pair> getCommonRatings(int userID1, int userID2){
         ArrayList<Pair> list = new ArrayList<Pair>();
         try{
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT R1.rating, R2.rating " 
+            PreparedStatement stmt = prepare("SELECT R1.rating, R2.rating " 
                     + "FROM " + ratingsName + " R1 "
                     + "INNER JOIN " + ratingsName + " R2 " 
                     + "ON R1.mid = R2.mid "
-                    + "WHERE R1.uid = " + userID1 + " AND R2.uid = " + userID2 + ";");
+                    + "WHERE R1.uid = ? AND R2.uid = ?");
+            stmt.setInt(1, userID1);
+            stmt.setInt(2, userID2);
+            ResultSet rs = stmt.executeQuery();
             while (rs.next())
                 list.add(new Pair(rs.getInt(1), rs.getInt(2)));
-            stmt.close();
+            rs.close();
         } catch(SQLException e){ e.printStackTrace(); }
         return list;
     }
@@ -280,21 +404,23 @@ public class DatabaseImpl extends Database {
      * @param mid2 second movie
      * @return ArrayList of triples of values (int, int, double)
      */
-    public ArrayList<Triple> getCommonUserAverages(int mid1, int mid2) {
+    public synchronized ArrayList<Triple> getCommonUserAverages(int mid1, int mid2) {
         ArrayList<Triple> triples = new ArrayList<Triple>();
         try {
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT r1.rating, r2.rating, u.avgrating FROM " +
+            PreparedStatement stmt = prepare("SELECT r1.rating, r2.rating, u.avgrating FROM " +
                     ratingsName + " r1, " +
                     ratingsName + " r2, " + 
                     usersName + " u " + 
-                    "WHERE r1.mid = " + mid1 +
-                    " AND r2.mid = " + mid2 +
+                    "WHERE r1.mid = ?" +
+                    " AND r2.mid = ?" +
                     " AND r1.uid = r2.uid " + 
             " AND r1.uid = u.uid");
+            stmt.setInt(1, mid1);
+            stmt.setInt(2, mid2);
+            ResultSet rs = stmt.executeQuery();
             while (rs.next())
                 triples.add(new Triple(rs.getInt(1), rs.getInt(2), rs.getDouble(3)));
-            stmt.close();
+            rs.close();
         } catch(SQLException e){ e.printStackTrace(); }
         return triples;
     }
@@ -305,33 +431,36 @@ public class DatabaseImpl extends Database {
      * @param mid2
      * @return
      */
-    public ArrayList<Pair> getCommonUserRatings(int mid1, int mid2) {
+    public synchronized ArrayList<Pair> getCommonUserRatings(int mid1, int mid2) {
         ArrayList<Pair> pairs = new ArrayList<Pair>();
         try {
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT r1.rating, r2.rating FROM " +
+            PreparedStatement stmt = prepare("SELECT r1.rating, r2.rating FROM " +
                     ratingsName + " r1, " +
                     ratingsName + " r2, " +
                     usersName + " u " +
-                    "WHERE r1.mid = " + mid1 +
-                    " AND r2.mid = " + mid2 +
+                    "WHERE r1.mid = ?" +
+                    " AND r2.mid = ?" +
                     " AND r1.uid = r2.uid ");
+            stmt.setInt(1, mid1);
+            stmt.setInt(2, mid2);
+            ResultSet rs = stmt.executeQuery();
             while (rs.next())
                 pairs.add(new Pair(rs.getInt(1), rs.getInt(2)));
-            stmt.close();
+            rs.close();
         } catch(SQLException e){ e.printStackTrace(); }
         return pairs;
     }
     
-    public double getAverageMovieRating(int mid) {
+    public synchronized double getAverageMovieRating(int mid) {
         double average = 0.0;
         try {
-            Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT avgrating FROM " 
-                    + moviesName + " WHERE mid = " + mid);
+            PreparedStatement stmt = prepare("SELECT avgrating FROM " 
+                    + moviesName + " WHERE mid = ?");
+            stmt.setInt(1, mid);
+            ResultSet rs = stmt.executeQuery();
             if (rs.next())
                 average = rs.getDouble(1);
-            stmt.close();
+            rs.close();
         } catch(SQLException e) { e.printStackTrace(); }
         return average;
     }
@@ -1,14 +1,21 @@
 package netflix.algorithms.modelbased.itembased;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import netflix.algorithms.modelbased.itembased.method.SimilarityMethod;
 import netflix.algorithms.modelbased.reader.DataReader;
 import netflix.algorithms.modelbased.writer.SimilarityWriter;
 import netflix.algorithms.modelbased.writer.UserSimKeeper;
+import netflix.utilities.Futures;
 import netflix.utilities.IntDoublePair;
 import netflix.utilities.Timer227;
+import netflix.utilities.TopKHeap;
 
 /**
  * General class for writing an item-based model builder.
@@ -20,8 +27,13 @@ public class ItemBasedModelBuilder {
     SimilarityWriter similarityWriter;
     SimilarityMethod similarityMethod;
     int numSimilarItems;
+    int numThreads = 1;
     String fileName;
 
+    // Tasks per thread in buildTopKModel, so that a slow
+    // block does not hold up the others
+    private static final int BLOCKS_PER_THREAD = 8;
+
     public ItemBasedModelBuilder(DataReader dataReader,
             SimilarityWriter similarityWriter,
             SimilarityMethod similarityMethod) {
@@ -51,6 +63,19 @@ public class ItemBasedModelBuilder {
     	this.fileName = name;
     }
     
+    /**
+     * Sets the number of threads buildTopKModel computes
+     * similarities with. The DataReader and SimilarityMethod
+     * must then be safe to call from several threads at once,
+     * as DataReaderFromMem and the methods in the method 
+     * package are. 
+     * @param numThreads - the number of threads, 1 to build
+     * the model in the calling thread
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+    
     //overloaded method added for backwards compatibility - steinbel
     public boolean buildModel() {
     	return buildModel(false, false);
@@ -111,6 +136,140 @@ public class ItemBasedModelBuilder {
     }
 
 
+    /**
+     * Builds the same model as buildModel, but only keeps the
+     * numSimilarItems most similar items for each item, and
+     * does a fraction of the work. Similarity is symmetric, so
+     * each pair m < n is computed once and offered to the
+     * neighbor lists of both m and n. The lists are TopKHeaps,
+     * so the model takes numberOfItems * numSimilarItems
+     * entries however many pairs there are, and nothing is
+     * allocated per pair. 
+     * 
+     * The rows m are split into blocks of about equal numbers
+     * of pairs, which are computed by numThreads threads. Once
+     * every pair is done, each item's neighbors are written in
+     * order of decreasing similarity, as buildModel writes them.
+     * When several neighbors tie for the last place in a list,
+     * which of them is kept can differ between runs with more
+     * than one thread. 
+     * @param inMemory - if the results should be written to a serializable object.
+     * @param users - if we're calculating on users instead of movies
+     * @return - true on completion, false if it failed
+     */
+    public boolean buildTopKModel(boolean inMemory, final boolean users) {
+        Timer227 tim = new Timer227();
+        int numberOfItems = dataReader.getNumberOfMovies();
+        if (users)
+            numberOfItems = dataReader.getNumberOfUsers();
+
+        // Items are numbered from 1, as in buildModel
+        final TopKHeap[] neighbors = new TopKHeap[numberOfItems + 1];
+        for (int m = 1; m <= numberOfItems; m++)
+            neighbors[m] = new TopKHeap(numSimilarItems);
+
+        ExecutorService pool = numThreads > 1 ?
+            Executors.newFixedThreadPool(numThreads) : null;
+        try {
+            tim.start();
+            final int last = numberOfItems;
+            if (pool == null) {
+                computeRows(1, last + 1, last, users, neighbors);
+            }
+            else {
+                // Row m has last - m pairs, so the blocks are 
+                // cut where the running total of pairs crosses
+                // an equal share of the total
+                int numBlocks = Math.max(1, Math.min(last, numThreads * BLOCKS_PER_THREAD));
+                long totalPairs = (long) last * (last - 1) / 2, pairs = 0;
+                ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+                int from = 1;
+
+                for (int b = 1; b <= numBlocks && from <= last; b++) {
+                    int to = from + 1;
+                    pairs += last - from;
+                    while (to <= last && (b == numBlocks || pairs < totalPairs * b / numBlocks)) {
+                        pairs += last - to;
+                        to++;
+                    }
+
+                    final int first = from, end = to;
+                    futures.add(pool.submit(new Callable<Object>() {
+                            public Object call() {
+                                computeRows(first, end, last, users, neighbors);
+                                return null;
+                            }
+                        }));
+                    from = to;
+                }
+
+                for (Future<Object> f : futures)
+                    Futures.waitFor(f);
+            }
+            tim.stop();
+            System.out.println("Computed " + ((long) last * (last - 1) / 2) 
+                               + " similarities in " + tim.getMilliTime() + " ms");
+
+            writeNeighbors(neighbors, 1, numberOfItems + 1, similarityWriter);
+
+            dataReader.close();
+            if (inMemory) {
+            	UserSimKeeper.serialize(fileName, (UserSimKeeper) similarityWriter);
+            }
+            similarityWriter.close();
+        } catch(Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+        return true;
+    }
+
+    /**
+     * Computes the similarities of rows from to end - 1 with
+     * every later item, offering each to both items' lists.
+     * A list belonging to another block's row may be offered
+     * to by several threads, so every offer locks its list. 
+     */
+    private void computeRows(int from, int end, int last, boolean users,
+                             TopKHeap[] neighbors) {
+        for (int m = from; m < end; m++) {
+            for (int n = m + 1; n <= last; n++) {
+                double sim;
+                if (users)
+                    sim = similarityMethod.findUserSimilarity(dataReader, m, n);
+                else
+                    sim = similarityMethod.findSimilarity(dataReader, m, n);
+
+                synchronized (neighbors[m]) {
+                    neighbors[m].offer(n, sim);
+                }
+                synchronized (neighbors[n]) {
+                    neighbors[n].offer(m, sim);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts the heaps of ids [from, to) and writes each id's
+     * neighbors, most similar first.  Each heap is dropped once
+     * it is written.
+     */
+    static void writeNeighbors(TopKHeap[] neighbors, int from, int to,
+                               SimilarityWriter writer) throws Exception {
+        for (int id = from; id < to; id++) {
+            TopKHeap heap = neighbors[id];
+            heap.sort();
+            for (int i = 0; i < heap.size(); i++)
+                writer.write(id, heap.getId(i), heap.getScore(i));
+            neighbors[id] = null;
+        }
+    }
+
+
     protected class RatingComparator implements Comparator<IntDoublePair> {
         public int compare(IntDoublePair p1, IntDoublePair p2) {
             // Reverse order stored
@@ -31,7 +31,8 @@ public class NetFlixItemBasedModelBuilder {
             
             ItemBasedModelBuilder netflixModelBuilder = new ItemBasedModelBuilder(
                     netflixDataReader, netflixSimWriter, netflixSimAdjCosMethod);
-            netflixModelBuilder.buildModel();
+            netflixModelBuilder.setNumThreads(Runtime.getRuntime().availableProcessors());
+            netflixModelBuilder.buildTopKModel(false, false);
 
             netflixDataReader.close();
             netflixSimWriter.close();
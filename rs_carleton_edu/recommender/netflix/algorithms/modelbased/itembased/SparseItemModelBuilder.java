@@ -0,0 +1,353 @@
+package netflix.algorithms.modelbased.itembased;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cern.colt.list.IntArrayList;
+import netflix.algorithms.modelbased.writer.SimilarityWriter;
+import netflix.algorithms.modelbased.writer.SimilarityWriterToFile;
+import netflix.memreader.MemHelper;
+import netflix.memreader.RatingStore;
+import netflix.utilities.Futures;
+import netflix.utilities.Timer227;
+import netflix.utilities.TopKHeap;
+
+/**
+ * Builds a top-K item-item model by computing every similarity at
+ * once, as the sparse product A'A of the user by item matrix of
+ * centered ratings, rather than joining the columns of each pair
+ * of items. Pairs of items that no user rated together are never
+ * looked at, where ItemBasedModelBuilder joins all n^2 / 2 pairs.
+ *
+ * The items are split into blocks of rows. For a block, each user's
+ * ratings are read once, in order of uid, and every pair (i, j) of
+ * the user's items with i in the block and j > i adds to dense
+ * accumulators for row i: the sum of d_i d_j, of d_i^2 and of d_j^2
+ * over the users in common, and their number. When the block is
+ * done, each accumulated pair's similarity is offered to both items'
+ * TopKHeaps and the accumulators are cleared for the next block.
+ *
+ * The ratings are centered on the item's average for Pearson and on
+ * the user's average for adjusted cosine. The sums are added in the
+ * same order as PearsonSimilarityMethod and AdjCosineSimilarityMethod
+ * add them, so the similarities are the same to the last bit. Pairs
+ * with fewer than numMinUsers users in common, or a similarity below
+ * minSimilarity, are left out rather than written as placeholders.
+ *
+ * Each thread works on one block at a time and keeps its own
+ * accumulators, of about ACCUMULATOR_BYTES. The model is written in
+ * the same order as ItemBasedModelBuilder.buildTopKModel writes it.
+ *
+ * The program takes:
+ *     1) The MemReader or RatingStore file.
+ *     2) The text file to write the model to.
+ *     3) "pearson" or "adjcos" (default adjcos).
+ *     4) The number of neighbors per item (default 50).
+ */
+public class SparseItemModelBuilder {
+
+    public static final int PEARSON = 0;
+    public static final int ADJUSTED_COSINE = 1;
+
+    // Memory for each thread's accumulators
+    private static final long ACCUMULATOR_BYTES = 64L << 20;
+
+    private MemHelper helper;
+    private RatingStore store;
+    private int method;
+    private int numMinUsers = 5;
+    private double minSimilarity = Double.NEGATIVE_INFINITY;
+    private int numThreads = 1;
+
+    // Users in ascending order, with their ratings if the
+    // helper is built on a MemReader
+    private int[] uids;
+    private IntArrayList[] userLists;
+    private int numIds;
+    private double[] itemAverages;
+    private double[] userAverages;
+
+    /**
+     * Creates a builder for the items of a training set.
+     * @param helper - the ratings
+     * @param method - PEARSON or ADJUSTED_COSINE
+     */
+    public SparseItemModelBuilder(MemHelper helper, int method) {
+        if (method != PEARSON && method != ADJUSTED_COSINE)
+            throw new IllegalArgumentException("Unknown method " + method);
+        this.helper = helper;
+        this.store = helper.getRatingStore();
+        this.method = method;
+    }
+
+    /**
+     * Sets the least number of users two items need in common
+     * to be neighbors, as SimilarityMethod.setNumMinUsers does.
+     * @param numMinUsers - the number of users
+     */
+    public void setNumMinUsers(int numMinUsers) {
+        this.numMinUsers = Math.max(1, numMinUsers);
+    }
+
+    /**
+     * Sets the lowest similarity kept in the model.
+     * @param minSimilarity - the threshold
+     */
+    public void setMinSimilarity(double minSimilarity) {
+        this.minSimilarity = minSimilarity;
+    }
+
+    /**
+     * Sets the number of threads, each with its own accumulators.
+     * @param numThreads - the number of threads
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Computes the similarities and writes the numSimilarItems most
+     * similar items of each item, most similar first. The writer is
+     * closed afterwards.
+     * @param similarityWriter - where to write the model
+     * @param numSimilarItems - the number of neighbors per item
+     * @return true on completion, false if it failed
+     */
+    public boolean buildModel(SimilarityWriter similarityWriter, int numSimilarItems) {
+        Timer227 tim = new Timer227();
+        tim.start();
+        prepare();
+
+        final TopKHeap[] neighbors = new TopKHeap[numIds];
+        for (int i = 0; i < numIds; i++)
+            neighbors[i] = new TopKHeap(numSimilarItems);
+
+        long perRow = Math.max(1, numIds * 28L);
+        final int blockRows = (int) Math.max(1, Math.min(numIds, ACCUMULATOR_BYTES / perRow));
+        final int numBlocks = (numIds + blockRows - 1) / blockRows;
+        final AtomicInteger nextBlock = new AtomicInteger();
+
+        int workers = Math.max(1, Math.min(numThreads, numBlocks));
+        ExecutorService pool = workers > 1 ? Executors.newFixedThreadPool(workers) : null;
+        try {
+            if (pool == null) {
+                new Accumulator(blockRows).run(nextBlock, numBlocks, neighbors);
+            }
+            else {
+                ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+                for (int t = 0; t < workers; t++) {
+                    futures.add(pool.submit(new Callable<Object>() {
+                            public Object call() {
+                                new Accumulator(blockRows).run(nextBlock, numBlocks, neighbors);
+                                return null;
+                            }
+                        }));
+                }
+                for (Future<Object> f : futures)
+                    Futures.waitFor(f);
+            }
+            tim.stop();
+            System.out.println("Computed similarities of " + numIds + " items in "
+                               + numBlocks + " blocks in " + tim.getMilliTime() + " ms");
+
+            ItemBasedModelBuilder.writeNeighbors(neighbors, 0, numIds, similarityWriter);
+            similarityWriter.close();
+        } catch(Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+        return true;
+    }
+
+    /**
+     * Sorts the users and looks up the averages used to
+     * center the ratings.
+     */
+    private void prepare() {
+        IntArrayList users = helper.getListOfUsers().copy();
+        users.sort();
+        users.trimToSize();
+        uids = users.elements();
+
+        if (store == null) {
+            userLists = new IntArrayList[uids.length];
+            for (int u = 0; u < uids.length; u++)
+                userLists[u] = helper.getMoviesSeenByUser(uids[u]);
+        }
+
+        IntArrayList movies = helper.getListOfMovies();
+        int maxId = -1;
+        for (int i = 0; i < movies.size(); i++)
+            maxId = Math.max(maxId, movies.getQuick(i));
+        numIds = maxId + 1;
+
+        if (method == PEARSON) {
+            itemAverages = new double[numIds];
+            for (int i = 0; i < movies.size(); i++)
+                itemAverages[movies.getQuick(i)] = helper.getAverageRatingForMovie(movies.getQuick(i));
+        }
+        else {
+            userAverages = new double[uids.length];
+            for (int u = 0; u < uids.length; u++)
+                userAverages[u] = helper.getAverageRatingForUser(uids[u]);
+        }
+    }
+
+    /**
+     * The sums for one block of rows, and a copy of the part of
+     * a user's ratings that is being paired up.
+     */
+    private class Accumulator {
+        int rows;
+        double[] dot, sq1, sq2;
+        int[] count;
+        int[] mids = new int[16];
+        double[] diffs = new double[16];
+
+        Accumulator(int rows) {
+            this.rows = rows;
+            dot = new double[rows * numIds];
+            sq1 = new double[rows * numIds];
+            sq2 = new double[rows * numIds];
+            count = new int[rows * numIds];
+        }
+
+        /**
+         * Works on blocks until there are none left.
+         */
+        void run(AtomicInteger nextBlock, int numBlocks, TopKHeap[] neighbors) {
+            int block;
+            while ((block = nextBlock.getAndIncrement()) < numBlocks) {
+                int lo = block * rows;
+                int hi = Math.min(numIds, lo + rows);
+                for (int u = 0; u < uids.length; u++)
+                    addUser(u, lo, hi);
+                offer(lo, hi, neighbors);
+            }
+        }
+
+        /**
+         * Adds the pairs of a user's items that start in [lo, hi).
+         */
+        void addUser(int u, int lo, int hi) {
+            int start, end;
+            if (store != null) {
+                int row = store.userRow(uids[u]);
+                start = store.userStart(row);
+                end = store.userEnd(row);
+            }
+            else {
+                start = 0;
+                end = userLists[u].size();
+            }
+
+            // The ratings are sorted by movie, so find the first in the block
+            int first = start, last = end, mid;
+            while (first < last) {
+                mid = (first + last) >>> 1;
+                if (MemHelper.parseUserOrMovie(block(u, mid)) < lo)
+                    first = mid + 1;
+                else
+                    last = mid;
+            }
+            if (first == end || MemHelper.parseUserOrMovie(block(u, first)) >= hi)
+                return;
+
+            int n = end - first;
+            if (mids.length < n) {
+                mids = new int[Math.max(n, 2 * mids.length)];
+                diffs = new double[mids.length];
+            }
+            int packed, rating;
+            for (int k = 0; k < n; k++) {
+                packed = block(u, first + k);
+                mids[k] = MemHelper.parseUserOrMovie(packed);
+                rating = MemHelper.parseRating(packed);
+                diffs[k] = method == PEARSON ? rating - itemAverages[mids[k]]
+                                             : rating - userAverages[u];
+            }
+
+            int base, idx;
+            double d1, d2;
+            for (int a = 0; a < n && mids[a] < hi; a++) {
+                base = (mids[a] - lo) * numIds;
+                d1 = diffs[a];
+                for (int b = a + 1; b < n; b++) {
+                    idx = base + mids[b];
+                    d2 = diffs[b];
+                    dot[idx] += d1 * d2;
+                    sq1[idx] += d1 * d1;
+                    sq2[idx] += d2 * d2;
+                    count[idx]++;
+                }
+            }
+        }
+
+        int block(int u, int pos) {
+            return store != null ? store.userBlock(pos) : userLists[u].getQuick(pos);
+        }
+
+        /**
+         * Offers the similarities of rows [lo, hi) to the heaps
+         * of both items, and clears the sums.
+         */
+        void offer(int lo, int hi, TopKHeap[] neighbors) {
+            int base, idx;
+            double den, sim;
+            for (int i = lo; i < hi; i++) {
+                base = (i - lo) * numIds;
+                for (int j = i + 1; j < numIds; j++) {
+                    idx = base + j;
+                    if (count[idx] == 0)
+                        continue;
+
+                    if (count[idx] >= numMinUsers) {
+                        den = Math.sqrt(sq1[idx]) * Math.sqrt(sq2[idx]);
+                        sim = den == 0.0 ? 0.0 : dot[idx] / den;
+                        if (sim >= minSimilarity) {
+                            synchronized (neighbors[i]) {
+                                neighbors[i].offer(j, sim);
+                            }
+                            synchronized (neighbors[j]) {
+                                neighbors[j].offer(i, sim);
+                            }
+                        }
+                    }
+
+                    dot[idx] = 0;
+                    sq1[idx] = 0;
+                    sq2[idx] = 0;
+                    count[idx] = 0;
+                }
+            }
+        }
+    }
+
+
+    public static void main(String[] args) {
+        try {
+            String memHelperFile = args[0];
+            String outputFile = args[1];
+            int method = args.length > 2 && args[2].equals("pearson") ? PEARSON : ADJUSTED_COSINE;
+            int numSimilarItems = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+            SparseItemModelBuilder builder =
+                new SparseItemModelBuilder(new MemHelper(memHelperFile), method);
+            builder.setNumMinUsers(3);
+            builder.setNumThreads(Runtime.getRuntime().availableProcessors());
+            builder.buildModel(new SimilarityWriterToFile(outputFile), numSimilarItems);
+        }
+        catch(Exception e) {
+            System.out.println("usage: java SparseItemModelBuilder dataFile outputFile [pearson|adjcos] [k]");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
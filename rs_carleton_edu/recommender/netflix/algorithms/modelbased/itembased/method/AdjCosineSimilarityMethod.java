@@ -3,6 +3,7 @@ package netflix.algorithms.modelbased.itembased.method;
 import java.util.ArrayList;
 
 import netflix.algorithms.modelbased.reader.DataReader;
+import netflix.algorithms.modelbased.reader.StreamingDataReader;
 import netflix.utilities.Triple;
 
 public class AdjCosineSimilarityMethod implements SimilarityMethod {
@@ -20,6 +21,13 @@ public class AdjCosineSimilarityMethod implements SimilarityMethod {
      * @see netflix.algorithms.modelbased.itembased.method.SimilarityMethod#findSimilarity(netflix.algorithms.modelbased.reader.DataReader, int, int)
      */
     public double findSimilarity(DataReader dataReader, int mid1, int mid2) {
+        if (dataReader instanceof StreamingDataReader) {
+            CoRatingSums sums = CoRatingSums.forThread();
+            sums.resetAdjusted();
+            ((StreamingDataReader) dataReader).addCommonUserRatings(mid1, mid2, sums);
+            if (sums.getCount() < numMinUsers) return -100.0;
+            return sums.similarity();
+        }
         ArrayList<Triple> commonUsers = dataReader.getCommonUserRatAndAve(mid1, mid2);
         if (commonUsers.size() < numMinUsers) return  -100.0;
         double num = 0.0, den1 = 0.0, den2 = 0.0;
@@ -45,6 +53,14 @@ public class AdjCosineSimilarityMethod implements SimilarityMethod {
      * @return - the similarity between user 1 and user 2
      */
 	public double findUserSimilarity(DataReader dataReader, int uid1, int uid2) {
+		if (dataReader instanceof StreamingDataReader) {
+			CoRatingSums sums = CoRatingSums.forThread();
+			sums.resetAdjusted();
+			((StreamingDataReader) dataReader).addCommonMovieRatings(uid1, uid2, sums);
+			if (sums.getCount() < numMinMovies)
+				return -100.0;
+			return sums.similarity();
+		}
 		ArrayList<Triple> commonMovies = dataReader.getCommonMovieRatAndAve(uid1, uid2);
 		if (commonMovies.size() < numMinMovies)
 			return -100.0;
@@ -53,8 +69,8 @@ public class AdjCosineSimilarityMethod implements SimilarityMethod {
 			diff1 = m.r1 - m.a;
 			diff2 = m.r2 - m.a;
 			num += diff1 * diff2;
-			den1 = diff1 * diff1;
-			den2 = diff2 * diff2;
+			den1 += diff1 * diff1;
+			den2 += diff2 * diff2;
 		}
 		double den = Math.sqrt(den1) * Math.sqrt(den2);
 		if (den == 0.0)
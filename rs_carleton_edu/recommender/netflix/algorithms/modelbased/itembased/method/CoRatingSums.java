@@ -0,0 +1,110 @@
+package netflix.algorithms.modelbased.itembased.method;
+
+import netflix.algorithms.modelbased.reader.CoRatingAccumulator;
+
+/**
+ * Accumulates the sums behind the Pearson and adjusted cosine
+ * similarities in one pass over the ratings in common. Each pair
+ * of ratings is centered, either on a fixed value per side (the
+ * two items' averages, for Pearson) or on the average passed with
+ * it (the user's average, for adjusted cosine), and
+ *
+ *   sum d1 d2,  sum d1^2,  sum d2^2
+ *
+ * are added up in the order the ratings arrive. One instance is
+ * kept per thread and reset for every pair of items, so computing
+ * a similarity allocates nothing.
+ */
+public class CoRatingSums implements CoRatingAccumulator {
+
+    private static final ThreadLocal<CoRatingSums> PER_THREAD =
+        new ThreadLocal<CoRatingSums>() {
+            protected CoRatingSums initialValue() {
+                return new CoRatingSums();
+            }
+        };
+
+    private double center1, center2;
+    private boolean adjusted;
+    private int count;
+    private double num, den1, den2;
+
+    /**
+     * Returns this thread's instance, which is not reset.
+     * @return the sums for the calling thread
+     */
+    public static CoRatingSums forThread() {
+        return PER_THREAD.get();
+    }
+
+    /**
+     * Clears the sums and centers ratings on fixed values,
+     * as Pearson does.
+     * @param center1 subtracted from the first rating of each pair
+     * @param center2 subtracted from the second rating of each pair
+     */
+    public void reset(double center1, double center2) {
+        this.center1 = center1;
+        this.center2 = center2;
+        this.adjusted = false;
+        clear();
+    }
+
+    /**
+     * Clears the sums and centers both ratings of each pair on
+     * the average passed with it, as adjusted cosine does.
+     */
+    public void resetAdjusted() {
+        this.adjusted = true;
+        clear();
+    }
+
+    private void clear() {
+        count = 0;
+        num = 0.0;
+        den1 = 0.0;
+        den2 = 0.0;
+    }
+
+    public void add(int rating1, int rating2, double average) {
+        double diff1, diff2;
+        if (adjusted) {
+            diff1 = rating1 - average;
+            diff2 = rating2 - average;
+        } else {
+            diff1 = rating1 - center1;
+            diff2 = rating2 - center2;
+        }
+        num += diff1 * diff2;
+        den1 += diff1 * diff1;
+        den2 += diff2 * diff2;
+        count++;
+    }
+
+    /**
+     * Returns true only after resetAdjusted, since Pearson
+     * centers on fixed values and ignores the average.
+     * @return true if the ratings are centered on the average
+     */
+    public boolean needsAverage() {
+        return adjusted;
+    }
+
+    /**
+     * Returns the number of ratings added since the last reset.
+     * @return the number of ratings in common
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the cosine of the centered ratings.
+     * @return the similarity, or 0 if either side is all zeros
+     */
+    public double similarity() {
+        double den = Math.sqrt(den1) * Math.sqrt(den2);
+        if (den == 0.0) return 0.0;
+        return num / den;
+    }
+}
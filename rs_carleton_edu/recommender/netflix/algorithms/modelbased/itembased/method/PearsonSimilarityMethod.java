@@ -2,6 +2,7 @@ package netflix.algorithms.modelbased.itembased.method;
 
 import java.util.ArrayList;
 import netflix.algorithms.modelbased.reader.DataReader;
+import netflix.algorithms.modelbased.reader.StreamingDataReader;
 import netflix.utilities.Pair;
 
 //TODO: combine methods better so less copied code - steinbel
@@ -13,6 +14,14 @@ public class PearsonSimilarityMethod implements SimilarityMethod {
      * @see netflix.algorithms.modelbased.itembased.method.SimilarityMethod#findSimilarity(netflix.algorithms.modelbased.reader.DataReader, int, int)
      */
     public double findSimilarity(DataReader dataReader, int mid1, int mid2) {
+        if (dataReader instanceof StreamingDataReader) {
+            CoRatingSums sums = CoRatingSums.forThread();
+            sums.reset(dataReader.getAverageMovieRating(mid1), 
+                       dataReader.getAverageMovieRating(mid2));
+            ((StreamingDataReader) dataReader).addCommonUserRatings(mid1, mid2, sums);
+            if (sums.getCount() < numMinUsers) return -100.0;
+            return sums.similarity();
+        }
         ArrayList<Pair> commonUserRatings = dataReader.getCommonUserRatings(mid1, mid2);
         if (commonUserRatings.size() < numMinUsers) return -100.0;
         double num = 0.0, den1 = 0.0, den2 = 0.0;
@@ -55,6 +64,15 @@ public class PearsonSimilarityMethod implements SimilarityMethod {
      * @return - the similarity between user 1 and user 2
      */
     public double findUserSimilarity(DataReader dataReader, int uid1, int uid2) {
+    	if (dataReader instanceof StreamingDataReader) {
+    		CoRatingSums sums = CoRatingSums.forThread();
+    		sums.reset(dataReader.getAverageRatingForUser(uid1), 
+    				dataReader.getAverageRatingForUser(uid2));
+    		((StreamingDataReader) dataReader).addCommonMovieRatings(uid1, uid2, sums);
+    		if (sums.getCount() < numMinMovies)
+    			return -100.0;
+    		return sums.similarity();
+    	}
     	ArrayList<Pair> commonMovieRatings = dataReader.getCommonMovieRatings(uid1, uid2);
     	if (commonMovieRatings.size() < numMinMovies)
     		return -100.0;
@@ -0,0 +1,25 @@
+package netflix.algorithms.modelbased.reader;
+
+/**
+ * Receives the ratings two movies (or two users) have in common,
+ * one at a time, from a StreamingDataReader. An accumulator keeps
+ * running sums in primitive fields, so a similarity can be worked
+ * out as the ratings are read instead of from a list of Pairs or
+ * Triples built first.
+ */
+public interface CoRatingAccumulator {
+    /**
+     * Adds one rating in common.
+     * @param rating1 the rating given to the first movie (or by the first user)
+     * @param rating2 the rating given to the second movie (or by the second user)
+     * @param average the average rating of the user who gave both ratings
+     * (or of the movie both users rated), or 0 if needsAverage is false
+     */
+    public void add(int rating1, int rating2, double average);
+    /**
+     * Says whether add uses the average. If not, the reader passes
+     * 0 instead and skips looking the average up for every rating.
+     * @return true if add needs the average
+     */
+    public boolean needsAverage();
+}
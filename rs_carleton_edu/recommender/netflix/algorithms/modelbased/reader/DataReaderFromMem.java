@@ -2,17 +2,29 @@ package netflix.algorithms.modelbased.reader;
 
 import java.util.ArrayList;
 
+import cern.colt.function.IntIntProcedure;
 import netflix.memreader.MemHelper;
 import netflix.utilities.Pair;
 import netflix.utilities.Triple;
 
 /**
- *  A DataReader that reads in movies data from a serialized object
+ *  A DataReader that reads in movies data from a serialized object.
+ *  It can also stream ratings in common straight from the MemHelper's
+ *  join into a CoRatingAccumulator, without building any lists.
+ *  It is safe to use from several threads at once.
  * @author Amrit Tuladhar
  *
  */
-public class DataReaderFromMem implements DataReader {
+public class DataReaderFromMem implements StreamingDataReader {
     MemHelper memHelper;
+
+    // Passes each pair of blocks from the join on to an accumulator.
+    // One is kept per thread, since the join runs in the caller's thread.
+    private final ThreadLocal<Forwarder> forwarders = new ThreadLocal<Forwarder>() {
+        protected Forwarder initialValue() {
+            return new Forwarder();
+        }
+    };
     
     public DataReaderFromMem(MemHelper memHelper) {
         this.memHelper = memHelper;
@@ -52,6 +64,45 @@ public class DataReaderFromMem implements DataReader {
         return commonUserAverages;
     }
     
+    public void addCommonUserRatings(int mId1, int mId2, CoRatingAccumulator accumulator) {
+        stream(mId1, mId2, false, accumulator);
+    }
+
+    public void addCommonMovieRatings(int uid1, int uid2, CoRatingAccumulator accumulator) {
+        stream(uid1, uid2, true, accumulator);
+    }
+
+    private void stream(int a, int b, boolean users, CoRatingAccumulator accumulator) {
+        Forwarder forwarder = forwarders.get();
+        forwarder.accumulator = accumulator;
+        forwarder.users = users;
+        forwarder.averages = accumulator.needsAverage();
+        memHelper.innerJoinOnMoviesOrRating(a, b, users, forwarder);
+        forwarder.accumulator = null;
+    }
+
+    /**
+     * Unpacks the blocks of a join and adds their ratings, with 
+     * the average of the user (or movie) they belong to if the
+     * accumulator needs it.
+     */
+    private class Forwarder implements IntIntProcedure {
+        CoRatingAccumulator accumulator;
+        boolean users; //true if joining two users, so the blocks are movies
+        boolean averages; //false if the accumulator ignores the average
+
+        public boolean apply(int a, int b) {
+            double average = 0.0;
+            if (averages) {
+                int id = MemHelper.parseUserOrMovie(a);
+                average = users ? memHelper.getAverageRatingForMovie(id) 
+                                : memHelper.getAverageRatingForUser(id);
+            }
+            accumulator.add(MemHelper.parseRating(a), MemHelper.parseRating(b), average);
+            return true;
+        }
+    }
+    
     public int getRatingFromComposite(int composite) {
         return MemHelper.parseRating(composite);
     }
@@ -0,0 +1,27 @@
+package netflix.algorithms.modelbased.reader;
+
+/**
+ * A DataReader that can push the ratings two movies or two users
+ * have in common into a CoRatingAccumulator, rather than returning
+ * them as a list. The ratings are passed in the same order, with the
+ * same averages, as getCommonUserRatAndAve and getCommonMovieRatAndAve
+ * return them, and nothing is allocated per rating.
+ */
+public interface StreamingDataReader extends DataReader {
+    /**
+     * Adds the ratings of the users who rated both movies, with
+     * each user's average rating.
+     * @param mId1
+     * @param mId2
+     * @param accumulator receives the ratings
+     */
+    public void addCommonUserRatings(int mId1, int mId2, CoRatingAccumulator accumulator);
+    /**
+     * Adds the ratings of the movies both users rated, with
+     * each movie's average rating.
+     * @param uid1
+     * @param uid2
+     * @param accumulator receives the ratings
+     */
+    public void addCommonMovieRatings(int uid1, int uid2, CoRatingAccumulator accumulator);
+}
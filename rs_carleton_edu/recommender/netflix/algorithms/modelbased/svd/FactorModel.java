@@ -0,0 +1,148 @@
+package netflix.algorithms.modelbased.svd;
+
+import netflix.utilities.*;
+import cern.colt.matrix.*;
+
+/**
+ * A rank k approximation U S V' of the movie by user matrix, kept
+ * as its two factors rather than multiplied out. Following Sarwar
+ * et al., the singular values are split evenly between the sides,
+ * so each movie has the vector of its row of U sqrt(S), each user
+ * has the vector of its row of V sqrt(S), and an entry of the
+ * approximation is the dot product of the two.
+ *
+ * The vectors are packed into one array per side, so scoring reads
+ * two runs of k doubles, and scoring every movie for a user sweeps
+ * the movie array from start to finish. The model takes
+ * (numMovies + numUsers) * k doubles, where the multiplied-out
+ * matrix would take numMovies * numUsers.
+ */
+public class FactorModel {
+
+    private int k;
+    private int numMovies;
+    private int numUsers;
+    private double[] movieFactors;
+    private double[] userFactors;
+
+    /**
+     * Creates the model for the first k singular values
+     * of a decomposition.
+     *
+     * @param  U  The left singular vectors, one row per movie.
+     * @param  S  The singular values, on the diagonal.
+     * @param  Vt  The right singular vectors, one column per user.
+     * @param  k  The number of singular values to use.
+     */
+    public FactorModel(DoubleMatrix2D U, DoubleMatrix2D S, DoubleMatrix2D Vt, int k) {
+        this.k = k;
+        numMovies = U.rows();
+        numUsers = Vt.columns();
+        movieFactors = new double[numMovies * k];
+        userFactors = new double[numUsers * k];
+
+        double root;
+        for(int f = 0; f < k; f++) {
+            root = Math.sqrt(S.getQuick(f, f));
+            for(int i = 0; i < numMovies; i++)
+                movieFactors[i * k + f] = U.getQuick(i, f) * root;
+            for(int j = 0; j < numUsers; j++)
+                userFactors[j * k + f] = Vt.getQuick(f, j) * root;
+        }
+    }
+
+    /**
+     * Returns the entry of the approximation for
+     * a user and movie.
+     *
+     * @param  uid  The user, a column of the matrix.
+     * @param  mid  The movie, a row of the matrix.
+     * @return The entry.
+     * @throws IndexOutOfBoundsException if either is
+     *         outside the matrix.
+     */
+    public double predict(int uid, int mid) throws IndexOutOfBoundsException {
+        if(uid < 0 || uid >= numUsers || mid < 0 || mid >= numMovies)
+            throw new IndexOutOfBoundsException("uid: " + uid + ", mid: " + mid);
+
+        int u = uid * k, m = mid * k;
+        double sum = 0;
+        for(int f = 0; f < k; f++)
+            sum += movieFactors[m + f] * userFactors[u + f];
+        return sum;
+    }
+
+    /**
+     * Works out the entries of a user's column for every movie
+     * at once. The user's vector is loaded once and the movie
+     * vectors are read in order.
+     *
+     * @param  uid  The user.
+     * @param  scores  Receives the entries, indexed by mid. It
+     *                 must have room for getNumberOfMovies().
+     * @throws IndexOutOfBoundsException if uid is outside
+     *         the matrix.
+     */
+    public void scoreMovies(int uid, double[] scores) throws IndexOutOfBoundsException {
+        if(uid < 0 || uid >= numUsers)
+            throw new IndexOutOfBoundsException("uid: " + uid);
+
+        double[] user = new double[k];
+        System.arraycopy(userFactors, uid * k, user, 0, k);
+
+        double sum;
+        int m = 0;
+        for(int mid = 0; mid < numMovies; mid++) {
+            sum = 0;
+            for(int f = 0; f < k; f++)
+                sum += movieFactors[m + f] * user[f];
+            scores[mid] = sum;
+            m += k;
+        }
+    }
+
+    /**
+     * Returns the movies with the highest entries for a user.
+     *
+     * @param  uid  The user.
+     * @param  n  The number of movies.
+     * @return The movies and their entries, highest first.
+     */
+    public TopKHeap topMovies(int uid, int n) {
+        double[] scores = new double[numMovies];
+        scoreMovies(uid, scores);
+
+        TopKHeap heap = new TopKHeap(n);
+        for(int mid = 0; mid < numMovies; mid++)
+            heap.offer(mid, scores[mid]);
+        heap.sort();
+        return heap;
+    }
+
+    /**
+     * Returns the number of movies, the rows of the matrix.
+     *
+     * @return The number of movies.
+     */
+    public int getNumberOfMovies() {
+        return numMovies;
+    }
+
+    /**
+     * Returns the number of users, the columns of the matrix.
+     *
+     * @return The number of users.
+     */
+    public int getNumberOfUsers() {
+        return numUsers;
+    }
+
+    /**
+     * Returns the rank of the approximation.
+     *
+     * @return k.
+     */
+    public int getRank() {
+        return k;
+    }
+}
@@ -226,6 +226,198 @@ public class MatrixHelper {
         return B;
     }
 
+    /*
+     * The methods below work in place, or on matrices that are
+     * views over arrays owned by the caller, so that they can be
+     * used over and over without allocating anything the size of
+     * the matrices involved. A capacity-backed matrix is a plain
+     * row-major double[] that is larger than the rows it holds,
+     * grown by doubling with ensureCapacity and seen through a
+     * view made by wrap.
+     */
+
+    /**
+     * A dense matrix over an existing array, so that
+     * the array is shared rather than copied.
+     */
+    private static class ArrayMatrix extends DenseDoubleMatrix2D {
+        private static final long serialVersionUID = -2958714309622150771L;
+
+        ArrayMatrix(int rows, int columns, double[] elements) {
+            super(rows, columns, elements, 0, 0, Math.max(1, columns), 1);
+        }
+    }
+
+    /**
+     * Returns a view of the start of a row-major array as a
+     * matrix. Changes to the view write through to the array,
+     * and the array may be longer than the matrix.
+     *
+     * @param elements The backing array.
+     * @param rows The number of rows.
+     * @param columns The number of columns, which is also 
+     *                the length of each row in the array.
+     * @throws IllegalArgumentException if the array is too short.
+     * @return A rows by columns view of the array.
+     */
+    public static DoubleMatrix2D wrap(double[] elements, int rows, int columns)
+        throws IllegalArgumentException {
+
+        if((long) rows * columns > elements.length)
+            throw new IllegalArgumentException(rows + "x" + columns + " > " 
+                                               + elements.length);
+        return new ArrayMatrix(rows, columns, elements);
+    }
+
+    /**
+     * Returns an array of at least the specified length holding
+     * the contents of the old one. The old array is returned if
+     * it is long enough, and otherwise its length is at least 
+     * doubled, so that growing a matrix one row at a time only
+     * copies it a logarithmic number of times. 
+     *
+     * @param elements The array.
+     * @param minLength The length needed.
+     * @return elements, or a longer copy of it.
+     */
+    public static double[] ensureCapacity(double[] elements, int minLength) {
+        if(elements.length >= minLength)
+            return elements;
+
+        long length = Math.max((long) minLength, 2L * elements.length);
+        double[] grown = new double[(int) Math.min(length, Integer.MAX_VALUE - 8)];
+        System.arraycopy(elements, 0, grown, 0, elements.length);
+        return grown;
+    }
+
+    /**
+     * Copies a vector into a row of a row-major array. 
+     *
+     * @param a The vector.
+     * @param elements The array.
+     * @param row The row to copy to.
+     * @param columns The length of each row, which must be
+     *                a.size().
+     */
+    public static void setRow(DoubleMatrix1D a, double[] elements, int row, int columns) {
+        int offset = row * columns;
+        for(int i = 0; i < columns; i++) {
+            elements[offset + i] = a.getQuick(i);
+        }
+    }
+
+    /**
+     * Adds a multiple of one vector to another, in place. 
+     *
+     * @param alpha The multiple. 
+     * @param x The vector to add. 
+     * @param y The vector to add to. 
+     * @throws IllegalArgumentException if x.size() != y.size()
+     */
+    public static void axpy(double alpha, DoubleMatrix1D x, DoubleMatrix1D y)
+        throws IllegalArgumentException {
+
+        if(x.size() != y.size())
+            throw new IllegalArgumentException();
+
+        for(int i = 0; i < x.size(); i++) {
+            y.setQuick(i, y.getQuick(i) + alpha * x.getQuick(i));
+        }
+    }
+
+    /**
+     * Subtracts two vectors into a third, which may
+     * be either of them. 
+     *
+     * @param a
+     * @param b
+     * @param c Receives a - b. 
+     * @throws IllegalArgumentException if the sizes differ
+     */
+    public static void subVectors(DoubleMatrix1D a, DoubleMatrix1D b, DoubleMatrix1D c) 
+        throws IllegalArgumentException {
+
+        if(a.size() != b.size() || a.size() != c.size())
+            throw new IllegalArgumentException();
+
+        for(int i = 0; i < a.size(); i++) {
+            c.setQuick(i, a.getQuick(i) - b.getQuick(i));
+        }
+    }
+
+    /**
+     * Divides a vector by a scalar, in place. 
+     *
+     * @param a Vector
+     * @param b Scalar to divide a by. 
+     */
+    public static void divideVectorInPlace(DoubleMatrix1D a, double b) {
+        for(int i = 0; i < a.size(); i++) {
+            a.setQuick(i, a.getQuick(i) / b);
+        }
+    }
+
+    /**
+     * Adds B to A, in place. 
+     * 
+     * @param A The matrix to add to. 
+     * @param B The matrix to add. 
+     * @throws IllegalArgumentException if A and B are not the same size. 
+     */
+    public static void addMatricesInPlace(DoubleMatrix2D A, DoubleMatrix2D B) 
+        throws IllegalArgumentException {
+        
+        if(A.rows() != B.rows() || A.columns() != B.columns())
+            throw new IllegalArgumentException();
+            
+        for (int row=0; row < A.rows(); row++) {
+            for (int column=0; column < A.columns(); column++) {
+                A.setQuick(row,column, A.getQuick(row,column) + B.getQuick(row,column));
+            }
+        }
+    }
+
+    /**
+     * Multiplies each row of a row-major array by a square
+     * matrix, in place: row = row W. One row is worked on at
+     * a time, in a buffer that is the only extra memory. 
+     *
+     * @param elements The array.
+     * @param rows The number of rows to multiply.
+     * @param W The matrix, W.rows() == W.columns() == the 
+     *          length of each row.
+     * @throws IllegalArgumentException if W is not square.
+     */
+    public static void multiplyRowsInPlace(double[] elements, int rows, DoubleMatrix2D W) 
+        throws IllegalArgumentException {
+
+        int n = W.rows();
+        if(W.columns() != n)
+            throw new IllegalArgumentException();
+
+        //Copy W into an array so the inner loop is plain indexing
+        double[] w = new double[n * n];
+        for(int i = 0; i < n; i++) {
+            for(int j = 0; j < n; j++) {
+                w[i * n + j] = W.getQuick(i, j);
+            }
+        }
+
+        double[] buffer = new double[n];
+        double x;
+        for(int row = 0; row < rows; row++) {
+            int offset = row * n;
+            java.util.Arrays.fill(buffer, 0);
+            for(int i = 0; i < n; i++) {
+                x = elements[offset + i];
+                for(int j = 0; j < n; j++) {
+                    buffer[j] += x * w[i * n + j];
+                }
+            }
+            System.arraycopy(buffer, 0, elements, offset, n);
+        }
+    }
+
 //     public static void main(String[] args) {
 
 //         DoubleMatrix2D A = new DenseDoubleMatrix2D(4,4);
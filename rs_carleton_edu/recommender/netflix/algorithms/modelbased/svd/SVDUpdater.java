@@ -3,6 +3,7 @@ package netflix.algorithms.modelbased.svd;
 import java.text.*;
 
 import netflix.memreader.*;
+import netflix.utilities.*;
 
 import cern.colt.matrix.*;
 import cern.colt.matrix.impl.*;
@@ -22,7 +23,20 @@ public class SVDUpdater {
     //The number of singular values to retain. 
     private int k;
 
-    private DoubleMatrix2D S, U, Vt, recMatrix;
+    private DoubleMatrix2D S, U;
+    private FactorModel model;
+
+    //U is a view of uElements, one row of k per movie. Each
+    //update builds the new U in uSpare and swaps the two, so
+    //they are only allocated once. 
+    private double[] uElements, uSpare;
+    private int numMovies;
+
+    //V is kept one row of k per user in the start of 
+    //vElements, which has room for more so that users can 
+    //be appended without copying it every time. 
+    private double[] vElements;
+    private int numUsers;
 
     //For Matrix Algebra. 
     private Algebra alg;
@@ -37,14 +51,62 @@ public class SVDUpdater {
      */
     public SVDUpdater(SingularValueDecomposition svd,
                        int k) {
+        this(new TruncatedSVD(svd), k);
+    }
+
+    /**
+     * Constructor. Initializes objects and reduces the SVD to
+     * its rank k version. 
+     * 
+     * @param  svd  The SVD, with at least k singular values,
+     *              such as SparseSVDBuilder computes. 
+     * @param  k  The number of singular values to keep. 
+     */
+    public SVDUpdater(TruncatedSVD svd, int k) {
         this.k = k;
         alg = new Algebra();
 
 
         S = svd.getS().viewPart(0, 0, k, k).copy();
-        U = svd.getU().viewPart(0, 0, svd.getU().rows(), k).copy();
-        Vt = alg.transpose(svd.getV()).copy();
-        Vt = Vt.viewPart(0,0,k,Vt.columns()).copy();
+        setU(svd.getU().viewPart(0, 0, svd.getU().rows(), k));
+        setVt(alg.transpose(svd.getV()).viewPart(0, 0, k, svd.getV().rows()));
+    }
+
+    /**
+     * Returns V', a view of the used part of vElements. 
+     */
+    private DoubleMatrix2D Vt() {
+        return MatrixHelper.wrap(vElements, numUsers, k).viewDice();
+    }
+
+    /**
+     * Replaces U with a copy of a numMovies by k matrix. 
+     */
+    private void setU(DoubleMatrix2D newU) {
+        numMovies = newU.rows();
+        uElements = new double[numMovies * k];
+        uSpare = new double[numMovies * k];
+        U = MatrixHelper.wrap(uElements, numMovies, k);
+        U.assign(newU);
+    }
+
+    /**
+     * Replaces V' with a copy of a k by numUsers matrix. 
+     */
+    private void setVt(DoubleMatrix2D Vt) {
+        numUsers = Vt.columns();
+        vElements = new double[numUsers * k];
+        MatrixHelper.wrap(vElements, numUsers, k).assign(Vt.viewDice());
+    }
+
+    /**
+     * Makes room in vElements for more users, doubling 
+     * its capacity when it is full. 
+     *
+     * @param  count  The number of users to add. 
+     */
+    private void reserveUsers(int count) {
+        vElements = MatrixHelper.ensureCapacity(vElements, (numUsers + count) * k);
     }
 
     /**
@@ -62,26 +124,27 @@ public class SVDUpdater {
     private void rank1Modification(DoubleMatrix1D a, DoubleMatrix1D b) {
         //m = U'a
         DoubleMatrix1D m = alg.mult(alg.transpose(U), a);
-        //pVec = a - Um
-        DoubleMatrix1D pVec = MatrixHelper.subVectors(a, alg.mult(U, m));
-        //p = sqrt(p'p)
-        double p = Math.sqrt(alg.mult(pVec, pVec));
-        //P = pVec/p
-        DoubleMatrix1D P = MatrixHelper.divideVector(pVec, p);
+        //P = a - Um
+        DoubleMatrix1D P = alg.mult(U, m);
+        MatrixHelper.subVectors(a, P, P);
+        //p = sqrt(P'P)
+        double p = Math.sqrt(alg.mult(P, P));
+        //P = P/p
+        MatrixHelper.divideVectorInPlace(P, p);
         //n = V'b
-        DoubleMatrix1D n = alg.mult(Vt, b);
-        //pVec = b - Vn
-        DoubleMatrix1D qVec 
-            = MatrixHelper.subVectors(b, alg.mult(alg.transpose(Vt), n));
-        //p = sqrt(p'p)
-        double q = Math.sqrt(alg.mult(qVec, qVec));
-        //Q = qVec/q
-        DoubleMatrix1D Q = MatrixHelper.divideVector(qVec, q);
+        DoubleMatrix1D n = alg.mult(Vt(), b);
+        //Q = b - Vn
+        DoubleMatrix1D Q = alg.mult(alg.transpose(Vt()), n);
+        MatrixHelper.subVectors(b, Q, Q);
+        //q = sqrt(Q'Q)
+        double q = Math.sqrt(alg.mult(Q, Q));
+        //Q = Q/q
+        MatrixHelper.divideVectorInPlace(Q, q);
         DoubleMatrix2D rhs = alg.multOuter(MatrixHelper.appendToVector(m, p),         
                                            MatrixHelper.appendToVector(n, q),
                                            null);
 
-        rhs = MatrixHelper.addMatrices(MatrixHelper.growMatrix(S), rhs);
+        MatrixHelper.addMatricesInPlace(rhs, MatrixHelper.growMatrix(S));
 
         SingularValueDecomposition newSVD = new SingularValueDecomposition(rhs);
 
@@ -92,98 +155,173 @@ public class SVDUpdater {
         DoubleMatrix2D newS = newSVD.getS();
 
         DoubleMatrix2D newVt = alg.mult(MatrixHelper.appendToMatrix(
-                                            alg.transpose(Vt), Q), newSVD.getV());
+                                            alg.transpose(Vt()), Q), newSVD.getV());
         
         newVt = alg.transpose(newVt);
 
-        S = newS;
-        U = newU;
-        Vt = newVt;
+        //The result has rank k + 1; keep the largest k, 
+        //as addUsers does. 
+        S = newS.viewPart(0, 0, k, k).copy();
+        setU(newU.viewPart(0, 0, newU.rows(), k));
+        setVt(newVt.viewPart(0, 0, k, newVt.columns()));
     }
 
 
 
     /**
      * Perfoms the rank 1 modification that is necessary to add
-     * a user to the matrix. By removing some of steps that are
-     * not necessary in this case, this method is faster than 
-     * the general rank1modification method. 
+     * a user to the matrix. This is addUsers with a single user;
+     * when several users are waiting, adding them together is
+     * much cheaper. 
      *
      * @param  user  The user to add, represented as a vector 
      *               of movie ratings. 
      */
     public void addUser(DoubleMatrix1D user) {
+        DoubleMatrix2D C = new DenseDoubleMatrix2D(user.size(), 1);
+        C.viewColumn(0).assign(user);
+        addUsers(C);
+    }
 
+    /**
+     * Adds a block of users to the matrix with one update,
+     * following Brand's update for appending columns. With
+     * C the new columns, 
+     *
+     *   M = U'C,  P R = C - U M  (a QR decomposition),
+     *
+     *   [U S V'  C] = [U P] K [V 0; 0 I]'  where  K = [S M; 0 R],
+     *
+     * so only the small (k + c) by (k + c) matrix K has to be
+     * decomposed. The result is truncated back to rank k. 
+     *
+     * U is rebuilt into a spare array, at a cost of 
+     * numMovies * k * (k + c), and the existing rows of V are
+     * rotated in place, at a cost of numUsers * k * k, so an
+     * update allocates nothing the size of U or V unless V
+     * has to grow. Both costs are
+     * paid once per update rather than once per user. Since 
+     * decomposing K costs (k + c)^3, a large block is split
+     * into updates of about cbrt(numUsers * k^2 / 2) users,
+     * which balances the two. The new users get the next 
+     * columns of V', in order. 
+     *
+     * @param  C  The users to add, one column of movie ratings
+     *            per user. 
+     */
+    public void addUsers(DoubleMatrix2D C) {
 
-        //Append a row of zeros to V
-        Vt = MatrixHelper.appendColToMatrix(Vt);
-
-        DoubleMatrix1D b = new DenseDoubleMatrix1D(Vt.columns());
-
-        b.set(b.size() - 1, 1);
-        
-        //m = U'a
-        DoubleMatrix1D m = alg.mult(alg.transpose(U), user);
-        //pVec = a - Um
-        DoubleMatrix1D pVec = MatrixHelper.subVectors(user, alg.mult(U, m));
-        //p = sqrt(p'p)
-        double p = Math.sqrt(alg.mult(pVec, pVec));
-        DoubleMatrix1D P = MatrixHelper.divideVector(pVec, p);
-
-        DoubleMatrix2D matrix = 
-            new DenseDoubleMatrix2D(S.rows() + 1, S.columns() + 1);
-
-        for(int i = 0; i < S.rows(); i++) {
-            matrix.set(i, i, S.get(i, i));
-        }
-
-        for(int i = 0; i < m.size(); i++) {
-            matrix.set(i, S.rows(), m.get(i));
+        int batch;
+        for(int start = 0; start < C.columns(); start += batch) {
+            batch = (int) Math.cbrt(numUsers * (double) k * k / 2);
+            batch = Math.min(Math.max(1, batch), C.columns() - start);
+            addBatch(C.viewPart(0, start, C.rows(), batch));
         }
+    }
 
-        matrix.set(S.rows(), S.columns(), p);
-
-        SingularValueDecomposition newSVD
-            = new SingularValueDecomposition(matrix);
-
+    /**
+     * Adds one block of users with a single update. 
+     */
+    private void addBatch(DoubleMatrix2D C) {
+
+        int c = C.columns();
+
+        //M = U'C, Pvec = C - UM
+        DoubleMatrix2D M = alg.mult(alg.transpose(U), C);
+        DoubleMatrix2D Pvec = C.copy();
+        U.zMult(M, Pvec, -1, 1, false, false);
+
+        //Pvec = PR. Colt's QR needs at least as many rows
+        //as columns, which holds unless c > numMovies. 
+        QRDecomposition qr = new QRDecomposition(Pvec);
+        DoubleMatrix2D P = qr.getQ();
+        DoubleMatrix2D R = qr.getR();
+
+        DoubleMatrix2D K = new DenseDoubleMatrix2D(k + c, k + c);
+        K.viewPart(0, 0, k, k).assign(S);
+        K.viewPart(0, k, k, c).assign(M);
+        K.viewPart(k, k, c, c).assign(R);
+
+        SingularValueDecomposition newSVD = new SingularValueDecomposition(K);
+        DoubleMatrix2D Uk = newSVD.getU().viewPart(0, 0, k + c, k);
+        DoubleMatrix2D Vk = newSVD.getV();
+
+        //U = [U P] Uk, truncated to rank k, built in uSpare
+        DoubleMatrix2D newU = MatrixHelper.wrap(uSpare, numMovies, k);
+        U.zMult(Uk.viewPart(0, 0, k, k), newU);
+        P.zMult(Uk.viewPart(k, 0, c, k), newU, 1, 1, false, false);
+
+        //The old rows of V are rotated by the top of Vk...
+        MatrixHelper.multiplyRowsInPlace(vElements, numUsers, Vk.viewPart(0, 0, k, k));
+
+        //...and the new users' rows are the bottom of Vk
+        reserveUsers(c);
+        MatrixHelper.wrap(vElements, numUsers + c, k).viewPart(numUsers, 0, c, k)
+            .assign(Vk.viewPart(k, 0, c, k));
+        numUsers += c;
+
+        double[] swap = uElements;
+        uElements = uSpare;
+        uSpare = swap;
+        U = newU;
+        S = newSVD.getS().viewPart(0, 0, k, k).copy();
+    }
 
-        DoubleMatrix2D newU = alg.mult(MatrixHelper.appendToMatrix(U, P),
-                                       newSVD.getU());
+    /**
+     * Adds a user by projecting it onto the current singular
+     * vectors, v = S^-1 U' user, as in Sarwar et al.'s fold-in.
+     * U and S are left alone, so this only costs numMovies * k,
+     * but the new user does not change the model for anyone
+     * else. It suits users whose full update can wait for the 
+     * next batch, or for the SVD to be rebuilt. 
+     *
+     * @param  user  The user to add, represented as a vector 
+     *               of movie ratings. 
+     */
+    public void foldInUser(DoubleMatrix1D user) {
 
-        DoubleMatrix2D newS = newSVD.getS();
+        DoubleMatrix1D v = alg.mult(alg.transpose(U), user);
+        for(int i = 0; i < k; i++) {
+            double s = S.getQuick(i, i);
+            v.setQuick(i, s == 0 ? 0 : v.getQuick(i) / s);
+        }
 
-        DoubleMatrix2D newVt = alg.mult(MatrixHelper.appendToMatrix(
-                                            alg.transpose(Vt), b), newSVD.getV());
+        reserveUsers(1);
+        MatrixHelper.setRow(v, vElements, numUsers, k);
+        numUsers++;
+    }
 
-        newVt = alg.transpose(newVt);
+    /**
+     * Returns the number of movies, the length of 
+     * a user's vector of ratings. 
+     *
+     * @return The number of movies.
+     */
+    public int getNumberOfMovies() {
+        return numMovies;
+    }
 
-        S = newS;
-        U = newU;
-        Vt = newVt;
+    /**
+     * Returns the number of users in the model.
+     *
+     * @return The number of users.
+     */
+    public int getNumberOfUsers() {
+        return numUsers;
     }
 
 
     /**
-     * Creates a recommendation matrix from the
+     * Creates a recommendation model from the
      * singular value decomposition using the
      * technique described in the paper "Application
      * of Dimensionality Reduction in Recommender
      * Systems - A Case Study" by Sarwar et al. 
+     * The model keeps the factors U sqrt(S) and
+     * sqrt(S) V' rather than multiplying them out. 
      */
     public void makeRecommendationMatrix() {
-
-         Algebra alg = new Algebra();
-
-         DoubleMatrix2D rootS = S.copy();
-
-         for(int i = 0; i < k; i++) {
-             rootS.set(i,i,Math.sqrt(rootS.get(i,i)));
-         }
-            
-         DoubleMatrix2D left = alg.mult(U, rootS);
-         DoubleMatrix2D right = alg.mult(rootS, Vt);
-         
-         recMatrix = alg.mult(left, right);
+        model = new FactorModel(U, S, Vt(), k);
     }
 
 
@@ -196,8 +334,21 @@ public class SVDUpdater {
      * @return Predicted rating for movie mid by user uid.
      */
     public double recommend(int uid, int mid) {
-        double entry = recMatrix.get(mid, uid);
+        double entry = model.predict(uid, mid);
         return entry;
     }
 
+    /**
+     * Returns the movies with the highest predicted
+     * ratings for user uid. 
+     *
+     * @param  uid  The user
+     * @param  n  The number of movies
+     * @return The movies and their predicted ratings,
+     *         highest first.
+     */
+    public TopKHeap recommendTopN(int uid, int n) {
+        return model.topMovies(uid, n);
+    }
+
 }
@@ -0,0 +1,335 @@
+package netflix.algorithms.modelbased.svd;
+
+import java.util.*;
+import netflix.memreader.*;
+import netflix.utilities.*;
+import cern.colt.list.*;
+import cern.colt.matrix.*;
+import cern.colt.matrix.impl.*;
+import cern.colt.matrix.linalg.*;
+
+/**
+ * Computes the k largest singular values and vectors of the same
+ * movie by user matrix that SVDBuilder decomposes, without ever
+ * building it. That matrix holds
+ *
+ *   rating - userAverage            where the user rated the movie,
+ *   movieAverage - userAverage      everywhere else,
+ *
+ * which is a sparse matrix D of (rating - movieAverage) plus the
+ * rank two matrix movieAverage 1' - 1 userAverage'. Products with
+ * it are worked out from those two parts, so each one costs a pass
+ * over the ratings rather than numMovies * numUsers operations,
+ * and the ratings are read in place from the MemHelper.
+ *
+ * The decomposition uses the randomized range finder of Halko,
+ * Martinsson and Tropp, "Finding Structure with Randomness":
+ * the matrix is multiplied by k + oversampling random vectors,
+ * sharpened by a few power iterations, and the small matrix left
+ * after projecting onto that range is decomposed exactly. The
+ * result is a TruncatedSVD, which SVDRecommender and SVDUpdater
+ * accept in place of a full SingularValueDecomposition.
+ *
+ * The program takes the same arguments as SVDBuilder, plus k:
+ *     1) The number of movies.
+ *     2) The number of users.
+ *     3) The file containing the MemReader or RatingStore.
+ *     4) The file to write the SVD to.
+ *     5) The number of singular values to compute.
+ */
+public class SparseSVDBuilder {
+
+    public static final int DEFAULT_OVERSAMPLING = 10;
+    public static final int DEFAULT_POWER_ITERATIONS = 2;
+
+    private MemHelper helper;
+    private RatingStore store;
+    private int numMovies;
+    private int numUsers;
+    private double[] movieAverages;
+    private double[] userAverages;
+
+    /**
+     * Creates a builder for the matrix of a training set.
+     * Movies and users are numbered from 0, and ratings with
+     * larger ids are left out, as in SVDBuilder.
+     *
+     * @param  helper  The MemHelper for the training set.
+     * @param  numMovies  The number of rows of the matrix.
+     * @param  numUsers  The number of columns of the matrix.
+     */
+    public SparseSVDBuilder(MemHelper helper, int numMovies, int numUsers) {
+        this.helper = helper;
+        this.store = helper.getRatingStore();
+        this.numMovies = numMovies;
+        this.numUsers = numUsers;
+
+        movieAverages = new double[numMovies];
+        for(int i = 0; i < numMovies; i++)
+            movieAverages[i] = helper.getAverageRatingForMovie(i);
+
+        userAverages = new double[numUsers];
+        for(int j = 0; j < numUsers; j++)
+            userAverages[j] = helper.getAverageRatingForUser(j);
+    }
+
+    /**
+     * Computes the k largest singular values, with the default
+     * oversampling and number of power iterations.
+     *
+     * @param  k  The number of singular values.
+     * @return The truncated SVD.
+     */
+    public TruncatedSVD build(int k) {
+        return build(k, DEFAULT_OVERSAMPLING, DEFAULT_POWER_ITERATIONS, 227);
+    }
+
+    /**
+     * Computes the k largest singular values.
+     *
+     * @param  k  The number of singular values.
+     * @param  oversampling  The number of extra random vectors,
+     *                       which make the smaller of the k
+     *                       values more accurate.
+     * @param  powerIterations  The number of power iterations,
+     *                          each costing two passes over the
+     *                          ratings. More are needed when the
+     *                          singular values decay slowly.
+     * @param  seed  The seed for the random vectors.
+     * @return The truncated SVD.
+     */
+    public TruncatedSVD build(int k, int oversampling, int powerIterations, long seed) {
+
+        k = Math.min(k, Math.min(numMovies, numUsers));
+        int l = Math.min(k + oversampling, Math.min(numMovies, numUsers));
+
+        Random rand = new Random(seed);
+        double[] omega = new double[numUsers * l];
+        for(int i = 0; i < omega.length; i++)
+            omega[i] = rand.nextGaussian();
+
+        // Find an orthonormal basis Q for the range of A
+        double[] Q = new double[numMovies * l];
+        double[] Z = new double[numUsers * l];
+        multiply(omega, Q, l);
+        orthonormalize(Q, numMovies, l);
+
+        for(int q = 0; q < powerIterations; q++) {
+            multiplyTransposed(Q, Z, l);
+            orthonormalize(Z, numUsers, l);
+            multiply(Z, Q, l);
+            orthonormalize(Q, numMovies, l);
+        }
+
+        // B' = A'Q = Q2 R, so A ~ Q B = Q R' Q2'
+        multiplyTransposed(Q, Z, l);
+        double[][] R = orthonormalize(Z, numUsers, l);
+
+        // R = Ur S Wr', so A ~ (Q Wr) S (Q2 Ur)'
+        SingularValueDecomposition small =
+            new SingularValueDecomposition(new DenseDoubleMatrix2D(R));
+
+        double[] s = new double[k];
+        System.arraycopy(small.getSingularValues(), 0, s, 0, k);
+
+        return new TruncatedSVD(project(Q, numMovies, l, small.getV(), k),
+                                s,
+                                project(Z, numUsers, l, small.getU(), k));
+    }
+
+    /**
+     * Computes out = A in, where in has numUsers rows
+     * and out has numMovies rows, both of width l.
+     */
+    private void multiply(double[] in, double[] out, int l) {
+        Arrays.fill(out, 0);
+        applySparse(in, out, l, false);
+
+        double[] sums = new double[l];
+        double[] userDots = new double[l];
+        for(int j = 0; j < numUsers; j++) {
+            for(int c = 0; c < l; c++) {
+                sums[c] += in[j * l + c];
+                userDots[c] += userAverages[j] * in[j * l + c];
+            }
+        }
+
+        for(int i = 0; i < numMovies; i++)
+            for(int c = 0; c < l; c++)
+                out[i * l + c] += movieAverages[i] * sums[c] - userDots[c];
+    }
+
+    /**
+     * Computes out = A' in, where in has numMovies rows
+     * and out has numUsers rows, both of width l.
+     */
+    private void multiplyTransposed(double[] in, double[] out, int l) {
+        Arrays.fill(out, 0);
+        applySparse(in, out, l, true);
+
+        double[] sums = new double[l];
+        double[] movieDots = new double[l];
+        for(int i = 0; i < numMovies; i++) {
+            for(int c = 0; c < l; c++) {
+                sums[c] += in[i * l + c];
+                movieDots[c] += movieAverages[i] * in[i * l + c];
+            }
+        }
+
+        for(int j = 0; j < numUsers; j++)
+            for(int c = 0; c < l; c++)
+                out[j * l + c] += movieDots[c] - userAverages[j] * sums[c];
+    }
+
+    /**
+     * Adds D in, or D' in, to out, in one pass over the
+     * ratings of every movie.
+     */
+    private void applySparse(double[] in, double[] out, int l, boolean transpose) {
+
+        IntArrayList users = null;
+        int row = -1, start, end, block, uid, from, to;
+        double value;
+
+        for(int i = 0; i < numMovies; i++) {
+            if(store != null) {
+                row = store.movieRow(i);
+                if(row < 0)
+                    continue;
+                start = store.movieStart(row);
+                end = store.movieEnd(row);
+            }
+            else {
+                users = helper.getUsersWhoSawMovie(i);
+                start = 0;
+                end = users.size();
+            }
+
+            for(int pos = start; pos < end; pos++) {
+                block = store != null ? store.movieBlock(pos) : users.getQuick(pos);
+                uid = MemHelper.parseUserOrMovie(block);
+                if(uid >= numUsers)
+                    continue;
+
+                value = MemHelper.parseRating(block) - movieAverages[i];
+                if(transpose) {
+                    from = i * l;
+                    to = uid * l;
+                }
+                else {
+                    from = uid * l;
+                    to = i * l;
+                }
+                for(int c = 0; c < l; c++)
+                    out[to + c] += value * in[from + c];
+            }
+        }
+    }
+
+    /**
+     * Orthonormalizes the columns of a rows by l matrix in
+     * place, with modified Gram-Schmidt applied twice for
+     * stability, and returns R such that the old matrix is
+     * the new one times R. A column that is dependent on the
+     * ones before it is set to 0.
+     */
+    private static double[][] orthonormalize(double[] A, int rows, int l) {
+
+        // Work on columns, so each dot product is contiguous
+        double[][] cols = new double[l][rows];
+        for(int r = 0; r < rows; r++)
+            for(int c = 0; c < l; c++)
+                cols[c][r] = A[r * l + c];
+
+        double[][] R = new double[l][l];
+        double dot, norm, original;
+        double[] col, prev;
+
+        for(int c = 0; c < l; c++) {
+            col = cols[c];
+            original = Math.sqrt(dot(col, col));
+
+            for(int pass = 0; pass < 2; pass++) {
+                for(int p = 0; p < c; p++) {
+                    prev = cols[p];
+                    dot = dot(col, prev);
+                    R[p][c] += dot;
+                    for(int r = 0; r < rows; r++)
+                        col[r] -= dot * prev[r];
+                }
+            }
+
+            norm = Math.sqrt(dot(col, col));
+            if(norm <= 1e-12 * original || norm == 0) {
+                Arrays.fill(col, 0);
+                continue;
+            }
+
+            R[c][c] = norm;
+            for(int r = 0; r < rows; r++)
+                col[r] /= norm;
+        }
+
+        for(int r = 0; r < rows; r++)
+            for(int c = 0; c < l; c++)
+                A[r * l + c] = cols[c][r];
+
+        return R;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for(int i = 0; i < a.length; i++)
+            sum += a[i] * b[i];
+        return sum;
+    }
+
+    /**
+     * Multiplies a rows by l matrix by the first k
+     * columns of an l by l matrix.
+     */
+    private static DoubleMatrix2D project(double[] A, int rows, int l,
+                                         DoubleMatrix2D W, int k) {
+
+        double[][] result = new double[rows][k];
+        double a;
+        for(int r = 0; r < rows; r++) {
+            for(int c = 0; c < l; c++) {
+                a = A[r * l + c];
+                if(a == 0)
+                    continue;
+                for(int j = 0; j < k; j++)
+                    result[r][j] += a * W.getQuick(c, j);
+            }
+        }
+
+        return new DenseDoubleMatrix2D(result);
+    }
+
+
+    public static void main(String args[]) {
+
+        try {
+            int numMovies = Integer.parseInt(args[0]);
+            int numUsers = Integer.parseInt(args[1]);
+            String datFile = args[2];
+            String destFile = args[3];
+            int k = Integer.parseInt(args[4]);
+
+            MemHelper helper = new MemHelper(datFile);
+            Timer227 timer = new Timer227();
+
+            timer.start();
+            TruncatedSVD svd =
+                new SparseSVDBuilder(helper, numMovies, numUsers).build(k);
+            timer.stop();
+            System.out.println("SVD Calculation took: " + timer.getTime());
+
+            TruncatedSVD.write(destFile, svd);
+        }
+        catch(Exception e) {
+            System.out.println("usage: java SparseSVDBuilder numMovies numUsers dataFile destFile k");
+            e.printStackTrace();
+        }
+    }
+}
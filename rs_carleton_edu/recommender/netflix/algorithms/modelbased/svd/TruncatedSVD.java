@@ -0,0 +1,160 @@
+package netflix.algorithms.modelbased.svd;
+
+import java.io.*;
+import cern.colt.matrix.*;
+import cern.colt.matrix.impl.*;
+import cern.colt.matrix.linalg.*;
+
+/**
+ * The k largest singular values of a matrix and their singular
+ * vectors, A ~ U S V'. It has the same getU, getS and getV as the
+ * colt SingularValueDecomposition, so the SVD based recommenders
+ * can use either, but U and V only have k columns, so it can hold
+ * a decomposition of a matrix far too large for a full SVD.
+ *
+ * A TruncatedSVD is built by SparseSVDBuilder, or from a full
+ * SingularValueDecomposition, and serialized like one. The read
+ * method accepts a file holding either.
+ */
+public class TruncatedSVD implements Serializable {
+
+    private static final long serialVersionUID = 6086227424539286474L;
+
+    private DoubleMatrix2D U;
+    private double[] s;
+    private DoubleMatrix2D V;
+
+    /**
+     * Creates a decomposition from its parts.
+     *
+     * @param  U  The left singular vectors, one per column.
+     * @param  s  The singular values, largest first.
+     * @param  V  The right singular vectors, one per column.
+     * @throws IllegalArgumentException if the sizes do not agree.
+     */
+    public TruncatedSVD(DoubleMatrix2D U, double[] s, DoubleMatrix2D V)
+        throws IllegalArgumentException {
+
+        if(U.columns() != s.length || V.columns() != s.length)
+            throw new IllegalArgumentException(U.columns() + " " + s.length
+                                               + " " + V.columns());
+        this.U = U;
+        this.s = s;
+        this.V = V;
+    }
+
+    /**
+     * Wraps a full singular value decomposition.
+     *
+     * @param  svd  The SingularValueDecomposition.
+     */
+    public TruncatedSVD(SingularValueDecomposition svd) {
+        this(svd.getU(), svd.getSingularValues(), svd.getV());
+    }
+
+    /**
+     * Returns the left singular vectors.
+     *
+     * @return U, with one column per singular value.
+     */
+    public DoubleMatrix2D getU() {
+        return U;
+    }
+
+    /**
+     * Returns the singular values as a diagonal matrix.
+     * A new matrix is returned each time, so it can be
+     * changed freely, as with SingularValueDecomposition.
+     *
+     * @return S.
+     */
+    public DoubleMatrix2D getS() {
+        DoubleMatrix2D S = new DenseDoubleMatrix2D(s.length, s.length);
+        for(int i = 0; i < s.length; i++)
+            S.setQuick(i, i, s[i]);
+        return S;
+    }
+
+    /**
+     * Returns the right singular vectors.
+     *
+     * @return V, with one column per singular value.
+     */
+    public DoubleMatrix2D getV() {
+        return V;
+    }
+
+    /**
+     * Returns a copy of the singular values.
+     *
+     * @return The singular values, largest first.
+     */
+    public double[] getSingularValues() {
+        return s.clone();
+    }
+
+    /**
+     * Returns the number of singular values kept.
+     *
+     * @return k.
+     */
+    public int rank() {
+        return s.length;
+    }
+
+    /**
+     * Reads a serialized TruncatedSVD, or a serialized
+     * SingularValueDecomposition such as SVDBuilder writes.
+     *
+     * @param  fileName  The file to read.
+     * @return The decomposition, or null if the file could
+     *         not be read.
+     */
+    public static TruncatedSVD read(String fileName) {
+
+        try {
+            FileInputStream fis = new FileInputStream(fileName);
+            ObjectInputStream in = new ObjectInputStream(fis);
+            Object svd = in.readObject();
+            in.close();
+
+            if(svd instanceof SingularValueDecomposition)
+                return new TruncatedSVD((SingularValueDecomposition) svd);
+            return (TruncatedSVD) svd;
+        }
+        catch(ClassNotFoundException e) {
+            System.out.println("Can't find class");
+            e.printStackTrace();
+        }
+        catch(IOException e) {
+            System.out.println("IO error");
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Serializes a TruncatedSVD to a file.
+     *
+     * @param  fileName  The file to write to.
+     * @param  svd  The decomposition.
+     */
+    public static void write(String fileName, TruncatedSVD svd) {
+
+        try {
+            FileOutputStream fos = new FileOutputStream(fileName);
+            ObjectOutputStream os = new ObjectOutputStream(fos);
+            os.writeObject(svd);
+            os.close();
+        }
+        catch(FileNotFoundException e) {
+            System.out.println("Can't find file " + fileName);
+            e.printStackTrace();
+        }
+        catch(IOException e) {
+            System.out.println("IO error");
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,7 +1,14 @@
 package netflix.algorithms.modelbased.svd.incremental;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import netflix.memreader.*;
+import netflix.utilities.Futures;
+import cern.colt.list.IntArrayList;
 import cern.colt.map.OpenIntIntHashMap;
 
 
@@ -37,18 +44,36 @@ public class IncrementalSVD implements Serializable {
 
     private static final long serialVersionUID = 1526472295622776147L;
 
+    /** Identifies a checkpoint file ("ISVD"). */
+    public static final int CHECKPOINT_MAGIC = 0x44565349;
 
-    private final int NUM_RATINGS = 100480508;
-    private final int NUM_USERS = 480190;
-    private final int NUM_MOVIES = 17771;
-    private final int NUM_FEATURES = 64;
-    private final int MIN_EPOCHS = 120;
-    private final int MAX_EPOCHS = 200;
+    /** The current version of the checkpoint layout. */
+    public static final int CHECKPOINT_VERSION = 1;
+
+    // Eight ints, a long and two doubles
+    private static final int CHECKPOINT_HEADER_BYTES = 56;
+
+
+    // Orders for the training ratings, see reorderRatings
+    public static final int ORDER_BY_MOVIE = 0;
+    public static final int ORDER_BY_USER = 1;
+    public static final int ORDER_BLOCKED = 2;
+
+    // Tile size for ORDER_BLOCKED, in bits of the user and movie ids
+    private static final int USER_BLOCK_BITS = 12;
+    private static final int MOVIE_BLOCK_BITS = 10;
+
+    private final int NUM_RATINGS;
+    private final int NUM_USERS;
+    private final int NUM_MOVIES;
+    private final int NUM_FEATURES;
+    private final int MIN_EPOCHS;
+    private final int MAX_EPOCHS;
     
-    private final float INIT_VALUE = 0.1f;
-    private final float MIN_IMPROVEMENT = 0.0001f;
-    private final float LRATE = 0.001f;
-    private final float K = 0.015f;
+    private final float INIT_VALUE;
+    private final float MIN_IMPROVEMENT;
+    private final float LRATE;
+    private final float K;
 
     private int[] uid;
     private short[] mid;
@@ -58,12 +83,73 @@ public class IncrementalSVD implements Serializable {
     private float[][] userFeatures;
     private OpenIntIntHashMap idMap;
 
+    // The number of training threads, not saved with the model
+    private transient int numThreads;
+
+    // How far training has got, saved in checkpoints
+    private transient int currentFeature;
+    private transient int currentEpoch;
+    private transient double currentRmse;
+    private transient double lastRmse;
+
+    // Where and how often to write checkpoints
+    private transient String checkpointFile;
+    private transient int checkpointEpochs;
+
+    // The probe set, with compact uids, and its cached predictions
+    private transient int[] probeUid;
+    private transient short[] probeMid;
+    private transient byte[] probeRating;
+    private transient float[] probeCache;
+
+    // The features of each user and movie packed together for
+    // scoring, built from the arrays above when first needed
+    private transient float[] userVectors;
+    private transient float[] movieVectors;
+    private transient boolean fastDotProduct;
+
 
     /**
      * Default constructor. Initializes
-     * data structures.  
+     * data structures for the full Netflix data.  
      */
     public IncrementalSVD() {
+        this(100480508, 480190, 17771, 64);
+    }
+
+    /**
+     * Initializes data structures for a data set of 
+     * the specified size, with the default parameters. 
+     *
+     * @param  numRatings  The number of ratings.
+     * @param  numUsers  The number of distinct users.
+     * @param  numMovies  One more than the largest movie id.
+     * @param  numFeatures  The number of features to train.
+     */
+    IncrementalSVD(int numRatings, int numUsers, int numMovies, int numFeatures) {
+        this(numRatings, numUsers, numMovies, new Builder().setFeatures(numFeatures));
+    }
+
+    /**
+     * Initializes data structures for a data set of 
+     * the specified size, taking the parameters from
+     * a Builder. 
+     */
+    private IncrementalSVD(int numRatings, int numUsers, int numMovies, Builder params) {
+        NUM_RATINGS = numRatings;
+        NUM_USERS = numUsers;
+        NUM_MOVIES = numMovies;
+        NUM_FEATURES = params.features;
+        MIN_EPOCHS = params.minEpochs;
+        MAX_EPOCHS = params.maxEpochs;
+        INIT_VALUE = params.initValue;
+        MIN_IMPROVEMENT = params.minImprovement;
+        LRATE = params.learningRate;
+        K = params.regularization;
+        numThreads = params.numThreads;
+        currentRmse = 2.0;
+        lastRmse = 2.0;
+
         uid = new int[NUM_RATINGS];
         mid = new short[NUM_RATINGS];
         rating = new byte[NUM_RATINGS];
@@ -84,54 +170,753 @@ public class IncrementalSVD implements Serializable {
     }
 
     
+    /**
+     * Sets the number of threads used to train the features.
+     *
+     * With more than one thread, the ratings are split into one
+     * contiguous shard per thread, and the threads run their 
+     * updates on the shared feature arrays at the same time
+     * without any locking (Hogwild!).  Two threads occasionally
+     * update the same user or movie at once and one update is
+     * lost, but each update only touches one feature of one user
+     * and one movie, so this is rare and the final RMSE is very
+     * close to that of sequential training.  Since the ratings
+     * are in file order, which is by movie, the threads mostly
+     * work on different movies. 
+     *
+     * @param  numThreads  The number of threads, 1 to train 
+     *                     sequentially.
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Trains every feature on the ratings the model
+     * was built or loaded with. If the model was resumed
+     * from a checkpoint, training picks up where the
+     * checkpoint left off. 
+     */
+    public void train() {
+        calcFeatures();
+    }
+
+    /**
+     * Chooses how predictions are added up. 
+     *
+     * By default the running sum is clamped to [1, 5] after
+     * every feature, which is how the features were trained. 
+     * With the fast dot product, the features are multiplied
+     * and summed with four independent sums and clamped once at
+     * the end, which lets the processor (and the JIT, where it
+     * can) overlap the multiplies. This only changes a 
+     * prediction if its running sum leaves [1, 5] part way. 
+     *
+     * @param  fast  true to clamp only once.
+     */
+    public void setFastDotProduct(boolean fast) {
+        fastDotProduct = fast;
+    }
+
+    /**
+     * Writes a checkpoint to a file every few epochs, and
+     * whenever a feature is finished, so that a long training
+     * run can be resumed after a crash. Each checkpoint
+     * replaces the last one. 
+     *
+     * @param  fileName  The checkpoint file, or null to stop
+     *                   writing checkpoints.
+     * @param  epochs  The number of epochs between checkpoints.
+     */
+    public void setCheckpoint(String fileName, int epochs) {
+        checkpointFile = fileName;
+        checkpointEpochs = Math.max(1, epochs);
+    }
+
+    /**
+     * Sets a probe set of held-out ratings to stop training
+     * early, before the features overfit the training data. 
+     *
+     * With a probe set, a feature stops training as soon as
+     * an epoch makes the probe RMSE worse, even if it has not
+     * reached MIN_EPOCHS yet, and that epoch is undone. Training
+     * stops altogether once a finished feature lowers the probe
+     * RMSE by less than MIN_IMPROVEMENT; that feature and the
+     * remaining ones are set to 0 so that they do not change
+     * the predictions. 
+     *
+     * Probe ratings by users or for movies that are not in the
+     * training data are skipped. 
+     *
+     * @param  probe  The probe ratings, or null to train on
+     *                training RMSE alone.
+     */
+    public void setProbe(MemHelper probe) {
+
+        if(probe == null) {
+            probeUid = null;
+            probeMid = null;
+            probeRating = null;
+            probeCache = null;
+            return;
+        }
+
+        IntArrayList users = probe.getListOfUsers();
+        IntArrayList movies;
+        int n = 0, user, movie;
+        for(int i = 0; i < users.size(); i++)
+            n += probe.getNumberOfMoviesSeen(users.get(i));
+
+        probeUid = new int[n];
+        probeMid = new short[n];
+        probeRating = new byte[n];
+
+        n = 0;
+        for(int i = 0; i < users.size(); i++) {
+            user = users.get(i);
+            if(!idMap.containsKey(user))
+                continue;
+
+            movies = probe.getMoviesSeenByUser(user);
+            for(int j = 0; j < movies.size(); j++) {
+                movie = MemHelper.parseUserOrMovie(movies.getQuick(j));
+                if(movie >= NUM_MOVIES)
+                    continue;
+
+                probeUid[n] = idMap.get(user);
+                probeMid[n] = (short) movie;
+                probeRating[n] = (byte) MemHelper.parseRating(movies.getQuick(j));
+                n++;
+            }
+        }
+
+        probeUid = Arrays.copyOf(probeUid, n);
+        probeMid = Arrays.copyOf(probeMid, n);
+        probeRating = Arrays.copyOf(probeRating, n);
+        rebuildProbeCache();
+    }
+
     /**
      * Train each feature on 
      * the entire data set. 
      */
     private void calcFeatures() {
 
-        double err, p, sq, rmse_last = 2.0, rmse = 2.0;
-        short currMid;
-        int currUid;
-        float cf, mf;
+        ExecutorService pool = numThreads > 1 ? 
+            Executors.newFixedThreadPool(numThreads) : null;
+        double probeRmse, probeLast, probeBefore;
+        boolean stop;
+        float[] userSaved = null, movieSaved = null;
+        if(probeUid != null) {
+            userSaved = new float[NUM_USERS];
+            movieSaved = new float[NUM_MOVIES];
+        }
+        userVectors = null;
+        movieVectors = null;
 
-        for(int i = 0; i < NUM_FEATURES; i++) {
+        try {
+            while(currentFeature < NUM_FEATURES) {
 
-            System.out.println("Calculating feature: " + i);
+                int i = currentFeature;
+                System.out.println("Calculating feature: " + i);
 
-            for(int j = 0; (j < MIN_EPOCHS) || (rmse <= rmse_last - MIN_IMPROVEMENT); j++) {
+                probeBefore = probeUid == null ? 0 : probeRmse(i, false);
+                probeLast = Double.POSITIVE_INFINITY;
 
-                sq = 0;
-                rmse_last = rmse;
+                while(currentEpoch < MAX_EPOCHS
+                      && ((currentEpoch < MIN_EPOCHS) || (currentRmse <= lastRmse - MIN_IMPROVEMENT))) {
+                    if(probeUid != null) {
+                        System.arraycopy(userFeatures[i], 0, userSaved, 0, NUM_USERS);
+                        System.arraycopy(movieFeatures[i], 0, movieSaved, 0, NUM_MOVIES);
+                    }
 
-                for(int k = 0; k < rating.length; k++) {
+                    lastRmse = currentRmse;
+                    currentRmse = Math.sqrt(trainEpoch(pool, i) / rating.length);
+                    currentEpoch++;
 
-                    currMid = mid[k];
-                    currUid = uid[k];
+                    // Stop this feature once it starts to overfit,
+                    // undoing the epoch that made the probe worse
+                    if(probeUid != null) {
+                        probeRmse = probeRmse(i, true);
+                        if(probeRmse > probeLast) {
+                            System.arraycopy(userSaved, 0, userFeatures[i], 0, NUM_USERS);
+                            System.arraycopy(movieSaved, 0, movieFeatures[i], 0, NUM_MOVIES);
+                            currentRmse = lastRmse;
+                            break;
+                        }
+                        probeLast = probeRmse;
+                    }
 
-                    // Predict rating and calculate error
-                    p = predictRating(currMid, currUid, i, cache[k], true);
-                    err = (1.0 * rating[k] - p);
-                    sq += err*err;
+                    if(checkpointFile != null && currentEpoch % checkpointEpochs == 0)
+                        checkpoint(checkpointFile);
+                }
 
-                    // Cache old features
-                    cf = userFeatures[i][currUid];
-                    mf = movieFeatures[i][currMid];
+                // Stop adding features once they stop helping. The
+                // feature that did not help is dropped along with the
+                // rest, before it goes into the caches.
+                stop = false;
+                if(probeUid != null) {
+                    probeRmse = probeRmse(i, true);
+                    System.out.println("Probe RMSE: " + probeRmse);
 
-                    // Cross-train
-                    userFeatures[i][currUid] += (float) (LRATE * (err * mf - K * cf));
-                    movieFeatures[i][currMid] += (float) (LRATE * (err * cf - K * mf));
+                    if(probeRmse > probeBefore - MIN_IMPROVEMENT) {
+                        for(int j = i; j < NUM_FEATURES; j++) {
+                            Arrays.fill(userFeatures[j], 0f);
+                            Arrays.fill(movieFeatures[j], 0f);
+                        }
+                        stop = true;
+                    }
                 }
-                rmse = Math.sqrt(sq/rating.length);
+
+                //Cache old predictions
+                cachePredictions(pool, i);
+                if(probeUid != null)
+                    cacheProbe(i);
+                currentFeature = stop ? NUM_FEATURES : currentFeature + 1;
+                currentEpoch = 0;
+
+                if(checkpointFile != null)
+                    checkpoint(checkpointFile);
             }
+        }
+        finally {
+            if(pool != null)
+                pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns the RMSE on the probe set, either including
+     * the feature being trained or from the cached 
+     * predictions alone. 
+     *
+     * @param  feature  The feature being trained.
+     * @param  current  true to include the feature.
+     * @return The probe RMSE.
+     */
+    private double probeRmse(int feature, boolean current) {
+
+        double err, p, sq = 0;
+        for(int k = 0; k < probeRating.length; k++) {
+            if(current)
+                p = predictRating(probeMid[k], probeUid[k], feature, probeCache[k], false);
+            else 
+                p = probeCache[k] > 0 ? probeCache[k] : 1;
+            err = probeRating[k] - p;
+            sq += err * err;
+        }
 
-            //Cache old predictions
-            for(int j=0; j<rating.length; j++) {
-                cache[j] = (float)predictRating(mid[j], uid[j], i, cache[j], false);
+        return Math.sqrt(sq / probeRating.length);
+    }
+
+    /**
+     * Adds a trained feature to the cached
+     * probe predictions.
+     */
+    private void cacheProbe(int feature) {
+        for(int k = 0; k < probeRating.length; k++)
+            probeCache[k] = (float) predictRating(probeMid[k], probeUid[k], feature, 
+                                                  probeCache[k], false);
+    }
+
+    /**
+     * Works out the cached probe predictions for
+     * the features trained so far.
+     */
+    private void rebuildProbeCache() {
+        if(probeRating == null)
+            return;
+
+        probeCache = new float[probeRating.length];
+        for(int f = 0; f < Math.min(currentFeature, NUM_FEATURES); f++)
+            cacheProbe(f);
+    }
+
+    /**
+     * Writes the state of training to a checkpoint file,
+     * which is replaced in one step so that a crash while
+     * writing leaves the last checkpoint intact. The layout
+     * is (all values little-endian):
+     *
+     *   magic, version, numRatings, numUsers, numMovies,
+     *   numFeatures, currentFeature, currentEpoch (ints)
+     *   checksum of the training ratings (long)
+     *   currentRmse, lastRmse (doubles)
+     *   userFeatures and movieFeatures rows 0..currentFeature
+     *   cache[numRatings] (floats)
+     *
+     * Rows of features that have not been started yet are
+     * still at INIT_VALUE and are not written. 
+     *
+     * @param  fileName  The checkpoint file.
+     */
+    public void checkpoint(String fileName) {
+
+        File file = new File(fileName);
+        File temp = new File(fileName + ".tmp");
+
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            FileChannel channel = fos.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(CHECKPOINT_MAGIC);
+            buffer.putInt(CHECKPOINT_VERSION);
+            buffer.putInt(NUM_RATINGS);
+            buffer.putInt(NUM_USERS);
+            buffer.putInt(NUM_MOVIES);
+            buffer.putInt(NUM_FEATURES);
+            buffer.putInt(currentFeature);
+            buffer.putInt(currentEpoch);
+            buffer.putLong(ratingChecksum());
+            buffer.putDouble(currentRmse);
+            buffer.putDouble(lastRmse);
+
+            int rows = Math.min(currentFeature + 1, NUM_FEATURES);
+            for(int f = 0; f < rows; f++) {
+                writeFloats(channel, buffer, userFeatures[f]);
+                writeFloats(channel, buffer, movieFeatures[f]);
             }
+            writeFloats(channel, buffer, cache);
+
+            buffer.flip();
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            fos.close();
+
+            if(!temp.renameTo(file)) {
+                file.delete();
+                if(!temp.renameTo(file))
+                    throw new IOException("Can't replace " + fileName);
+            }
+        }
+        catch(FileNotFoundException e) {
+            System.out.println("Can't find file " + fileName);
+            e.printStackTrace();
+        }
+        catch(IOException e) {
+            System.out.println("IO error");
+            e.printStackTrace();
         }
     }
 
+    /**
+     * Restores the state of training from a checkpoint file
+     * written by checkpoint. The model must hold the same
+     * training ratings, in the same order, as the model that
+     * wrote the checkpoint; a model built the same way from
+     * the same data does. Calling train then carries on from
+     * the feature and epoch where the checkpoint was taken. 
+     *
+     * The features and cache are read into new arrays and only
+     * replace the model's once the whole file has been read, so
+     * a truncated or corrupt checkpoint leaves the model as it
+     * was. 
+     *
+     * @param  fileName  The checkpoint file.
+     * @return true if the checkpoint was restored.
+     */
+    public boolean resume(String fileName) {
+
+        try {
+            FileInputStream fis = new FileInputStream(fileName);
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            int feature, epoch, rows;
+            double rmse, rmseLast;
+            float[][] users, movies;
+            float[] newCache;
+
+            try {
+                buffer.limit(CHECKPOINT_HEADER_BYTES);
+                fill(channel, buffer);
+                if(buffer.remaining() < CHECKPOINT_HEADER_BYTES)
+                    throw new EOFException("Checkpoint file is truncated");
+
+                if(buffer.getInt() != CHECKPOINT_MAGIC)
+                    throw new IOException(fileName + " is not a checkpoint file");
+                int version = buffer.getInt();
+                if(version != CHECKPOINT_VERSION)
+                    throw new IOException("Unsupported checkpoint version " + version);
+                if(buffer.getInt() != NUM_RATINGS || buffer.getInt() != NUM_USERS
+                   || buffer.getInt() != NUM_MOVIES || buffer.getInt() != NUM_FEATURES)
+                    throw new IOException(fileName + " is for a model of a different size");
+
+                feature = buffer.getInt();
+                epoch = buffer.getInt();
+                if(feature < 0 || feature > NUM_FEATURES || epoch < 0)
+                    throw new IOException(fileName + " is corrupt");
+                if(buffer.getLong() != ratingChecksum())
+                    throw new IOException(fileName + " is for different training ratings");
+                rmse = buffer.getDouble();
+                rmseLast = buffer.getDouble();
+
+                rows = Math.min(feature + 1, NUM_FEATURES);
+                long length = CHECKPOINT_HEADER_BYTES 
+                    + 4L * rows * (NUM_USERS + NUM_MOVIES) + 4L * NUM_RATINGS;
+                if(channel.size() != length)
+                    throw new IOException(fileName + " is " + channel.size()
+                                          + " bytes, expected " + length);
+
+                buffer.clear();
+                buffer.flip();
+
+                users = new float[rows][NUM_USERS];
+                movies = new float[rows][NUM_MOVIES];
+                for(int f = 0; f < rows; f++) {
+                    readFloats(channel, buffer, users[f]);
+                    readFloats(channel, buffer, movies[f]);
+                }
+                newCache = new float[NUM_RATINGS];
+                readFloats(channel, buffer, newCache);
+            }
+            finally {
+                fis.close();
+            }
+
+            // The whole file has been read, so swap it in
+            for(int f = 0; f < NUM_FEATURES; f++) {
+                if(f < rows) {
+                    userFeatures[f] = users[f];
+                    movieFeatures[f] = movies[f];
+                }
+                else {
+                    Arrays.fill(userFeatures[f], INIT_VALUE);
+                    Arrays.fill(movieFeatures[f], INIT_VALUE);
+                }
+            }
+            cache = newCache;
+
+            currentFeature = feature;
+            currentEpoch = epoch;
+            userVectors = null;
+            movieVectors = null;
+            currentRmse = rmse;
+            lastRmse = rmseLast;
+
+            rebuildProbeCache();
+            System.out.println("Resuming at feature " + currentFeature 
+                               + ", epoch " + currentEpoch);
+            return true;
+        }
+        catch(FileNotFoundException e) {
+            System.out.println("Can't find file " + fileName);
+            e.printStackTrace();
+        }
+        catch(IOException e) {
+            System.out.println("IO error");
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns a checksum of the training ratings, so that a
+     * checkpoint is not restored into a model whose ratings
+     * are different or in a different order. 
+     */
+    private long ratingChecksum() {
+        long sum = 0;
+        for(int k = 0; k < rating.length; k++)
+            sum = 31 * sum + (((long) uid[k] << 24) ^ (mid[k] << 8) ^ rating[k]);
+        return sum;
+    }
+
+    /**
+     * Appends an array of floats to the file, flushing the
+     * staging buffer whenever it fills up. 
+     */
+    private static void writeFloats(FileChannel channel, ByteBuffer buffer,
+                                    float[] floats) throws IOException {
+
+        int pos = 0, count;
+        while(pos < floats.length) {
+            if(buffer.remaining() < 4) {
+                buffer.flip();
+                while(buffer.hasRemaining())
+                    channel.write(buffer);
+                buffer.clear();
+            }
+
+            count = Math.min(buffer.remaining() / 4, floats.length - pos);
+            buffer.asFloatBuffer().put(floats, pos, count);
+            buffer.position(buffer.position() + count * 4);
+            pos += count;
+        }
+    }
+
+    /**
+     * Reads an array of floats from the file, refilling the
+     * staging buffer whenever it runs out. The buffer is
+     * left holding any bytes it read past the array. 
+     */
+    private static void readFloats(FileChannel channel, ByteBuffer buffer,
+                                   float[] floats) throws IOException {
+
+        int pos = 0, count;
+        while(pos < floats.length) {
+            if(buffer.remaining() < 4) {
+                buffer.compact();
+                fill(channel, buffer);
+            }
+
+            count = Math.min(buffer.remaining() / 4, floats.length - pos);
+            buffer.asFloatBuffer().get(floats, pos, count);
+            buffer.position(buffer.position() + count * 4);
+            pos += count;
+        }
+    }
+
+    /**
+     * Reads from the file until the buffer is full or the
+     * file ends, and flips the buffer for reading. 
+     */
+    private static void fill(FileChannel channel, ByteBuffer buffer) 
+        throws IOException {
+
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                if(buffer.position() < 4)
+                    throw new EOFException("Checkpoint file is truncated");
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Runs one pass of training for a feature over
+     * every rating, in parallel if there is a pool.
+     *
+     * @param  pool  The training threads, or null.
+     * @param  feature  The feature being trained.
+     * @return The sum of the squared errors.
+     */
+    private double trainEpoch(ExecutorService pool, final int feature) {
+
+        if(pool == null)
+            return trainFeature(feature, 0, rating.length);
+
+        ArrayList<Future<Double>> futures = new ArrayList<Future<Double>>();
+        for(int t = 0; t < numThreads; t++) {
+            final int from = shardStart(t), to = shardStart(t + 1);
+            futures.add(pool.submit(new Callable<Double>() {
+                    public Double call() {
+                        return trainFeature(feature, from, to);
+                    }
+                }));
+        }
+
+        double sq = 0;
+        for(Future<Double> f : futures)
+            sq += Futures.waitFor(f);
+        return sq;
+    }
+
+    /**
+     * Trains a feature on part of the ratings.
+     *
+     * @param  feature  The feature being trained.
+     * @param  from  The first rating.
+     * @param  to  The position past the last rating.
+     * @return The sum of the squared errors.
+     */
+    double trainFeature(int feature, int from, int to) {
+
+        double err, p, sq = 0;
+        short currMid;
+        int currUid;
+        float cf, mf;
+        float[] userFeature = userFeatures[feature];
+        float[] movieFeature = movieFeatures[feature];
+
+        for(int k = from; k < to; k++) {
+
+            currMid = mid[k];
+            currUid = uid[k];
+
+            // Predict rating and calculate error
+            p = predictRating(currMid, currUid, feature, cache[k], true);
+            err = (1.0 * rating[k] - p);
+            sq += err*err;
+
+            // Cache old features
+            cf = userFeature[currUid];
+            mf = movieFeature[currMid];
+
+            // Cross-train
+            userFeature[currUid] += (float) (LRATE * (err * mf - K * cf));
+            movieFeature[currMid] += (float) (LRATE * (err * cf - K * mf));
+        }
+
+        return sq;
+    }
+
+    /**
+     * Adds a trained feature to the cached predictions,
+     * in parallel if there is a pool.
+     *
+     * @param  pool  The training threads, or null.
+     * @param  feature  The feature that was trained.
+     */
+    private void cachePredictions(ExecutorService pool, final int feature) {
+
+        if(pool == null) {
+            cacheFeature(feature, 0, rating.length);
+            return;
+        }
+
+        ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for(int t = 0; t < numThreads; t++) {
+            final int from = shardStart(t), to = shardStart(t + 1);
+            futures.add(pool.submit(new Callable<Object>() {
+                    public Object call() {
+                        cacheFeature(feature, from, to);
+                        return null;
+                    }
+                }));
+        }
+
+        for(Future<Object> f : futures)
+            Futures.waitFor(f);
+    }
+
+    /**
+     * Adds a trained feature to the cached predictions 
+     * for part of the ratings.
+     *
+     * @param  feature  The feature that was trained.
+     * @param  from  The first rating.
+     * @param  to  The position past the last rating.
+     */
+    private void cacheFeature(int feature, int from, int to) {
+        for(int j = from; j < to; j++) {
+            cache[j] = (float)predictRating(mid[j], uid[j], feature, cache[j], false);
+        }
+    }
+
+    /**
+     * Reorders the training ratings. The order changes which
+     * parts of the feature arrays each stretch of an epoch 
+     * touches:
+     *
+     * ORDER_BY_MOVIE is the order of the Netflix training file.
+     * Each movie's feature stays in cache, but every rating 
+     * jumps to a random user.
+     *
+     * ORDER_BY_USER is the reverse: users are read in order and
+     * each rating jumps to a random movie, which is much cheaper
+     * since there are only 17,770 movies.
+     *
+     * ORDER_BLOCKED splits the (user, movie) matrix into tiles of
+     * 4096 users by 1024 movies, visited along a Z-order curve.
+     * Each tile's slice of both feature arrays fits in the L1 
+     * cache, and neighbouring tiles share most of their rows or
+     * columns. 
+     *
+     * Within a user, movie or tile the existing order is kept.
+     * The features themselves stay feature-major, since each
+     * epoch trains a single feature and only reads that 
+     * feature's row of userFeatures and movieFeatures. 
+     *
+     * @param  order  ORDER_BY_MOVIE, ORDER_BY_USER or ORDER_BLOCKED.
+     */
+    public void reorderRatings(int order) {
+
+        int n = rating.length, numKeys;
+        if(order == ORDER_BY_MOVIE)
+            numKeys = NUM_MOVIES;
+        else if(order == ORDER_BY_USER)
+            numKeys = NUM_USERS;
+        else
+            numKeys = blockKey((NUM_USERS - 1) >> USER_BLOCK_BITS, 
+                               (NUM_MOVIES - 1) >> MOVIE_BLOCK_BITS) + 1;
+
+        // Counting sort: find where each rating goes...
+        int[] start = new int[numKeys + 1];
+        for(int k = 0; k < n; k++)
+            start[ratingKey(order, k) + 1]++;
+        for(int i = 0; i < numKeys; i++)
+            start[i + 1] += start[i];
+
+        int[] dest = new int[n];
+        for(int k = 0; k < n; k++)
+            dest[k] = start[ratingKey(order, k)]++;
+
+        // ...then move the arrays one at a time
+        int[] newUid = new int[n];
+        for(int k = 0; k < n; k++)
+            newUid[dest[k]] = uid[k];
+        uid = newUid;
+
+        short[] newMid = new short[n];
+        for(int k = 0; k < n; k++)
+            newMid[dest[k]] = mid[k];
+        mid = newMid;
+
+        byte[] newRating = new byte[n];
+        for(int k = 0; k < n; k++)
+            newRating[dest[k]] = rating[k];
+        rating = newRating;
+
+        float[] newCache = new float[n];
+        for(int k = 0; k < n; k++)
+            newCache[dest[k]] = cache[k];
+        cache = newCache;
+    }
+
+    /**
+     * Returns the sort key of a rating for reorderRatings.
+     */
+    private int ratingKey(int order, int k) {
+        if(order == ORDER_BY_MOVIE)
+            return mid[k];
+        else if(order == ORDER_BY_USER)
+            return uid[k];
+        else
+            return blockKey(uid[k] >> USER_BLOCK_BITS, mid[k] >> MOVIE_BLOCK_BITS);
+    }
+
+    /**
+     * Interleaves the bits of a tile's row and column,
+     * giving its position along a Z-order curve.
+     */
+    private static int blockKey(int userBlock, int movieBlock) {
+        int key = 0;
+        for(int bit = 0; bit < 15; bit++) {
+            key |= ((userBlock >> bit) & 1) << (2 * bit + 1);
+            key |= ((movieBlock >> bit) & 1) << (2 * bit);
+        }
+        return key;
+    }
+
+    /**
+     * Sets a training rating directly, for filling in 
+     * a model without a data file.
+     *
+     * @param  k  The position of the rating.
+     * @param  userIndex  The compact user id, between 0 
+     *                    and numUsers - 1.
+     * @param  movie  The movie id.
+     * @param  value  The rating.
+     */
+    void setRating(int k, int userIndex, short movie, byte value) {
+        uid[k] = userIndex;
+        mid[k] = movie;
+        rating[k] = value;
+    }
+
+    /**
+     * Returns the first rating of a training shard.
+     */
+    private int shardStart(int shard) {
+        return (int) ((long) rating.length * shard / numThreads);
+    }
+
     /**
      * For use during training. 
      *
@@ -179,42 +964,130 @@ public class IncrementalSVD implements Serializable {
      */
     private double predictRating(short mid, int uid) {
 
+        if(userVectors == null)
+            packVectors();
+
+        return dotProduct(movieVectors, mid * NUM_FEATURES,
+                          userVectors, uid * NUM_FEATURES);
+    }
+
+    /**
+     * Predicts the ratings of several users for one movie. 
+     * The movie's features are read once and stay in cache
+     * while each user's features are streamed past them. 
+     *
+     * @param  mid  The movie to predict ratings for.
+     * @param  uids  The compact user ids.
+     * @param  n  The number of users.
+     * @param  predictions  Receives the n predicted ratings.
+     */
+    private void predictRatings(short mid, int[] uids, int n, double[] predictions) {
+
+        if(userVectors == null)
+            packVectors();
+
+        int movieOffset = mid * NUM_FEATURES;
+        for(int i = 0; i < n; i++)
+            predictions[i] = dotProduct(movieVectors, movieOffset,
+                                        userVectors, uids[i] * NUM_FEATURES);
+    }
+
+    /**
+     * Adds up the products of a movie's and a user's features,
+     * clamping as chosen by setFastDotProduct. 
+     */
+    private double dotProduct(float[] mv, int mo, float[] uv, int uo) {
+
         double sum = 1;
 
-        for(int i = 0; i < NUM_FEATURES; i++) {
-            sum += movieFeatures[i][mid] * userFeatures[i][uid];
-            if(sum > 5)
-                sum = 5;
-            else if(sum < 1)
-                sum = 1;
+        if(!fastDotProduct) {
+            for(int i = 0; i < NUM_FEATURES; i++) {
+                sum += mv[mo + i] * uv[uo + i];
+                if(sum > 5)
+                    sum = 5;
+                else if(sum < 1)
+                    sum = 1;
+            }
+            return sum;
+        }
+
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for(; i + 3 < NUM_FEATURES; i += 4) {
+            s0 += mv[mo + i] * uv[uo + i];
+            s1 += mv[mo + i + 1] * uv[uo + i + 1];
+            s2 += mv[mo + i + 2] * uv[uo + i + 2];
+            s3 += mv[mo + i + 3] * uv[uo + i + 3];
         }
+        for(; i < NUM_FEATURES; i++)
+            s0 += mv[mo + i] * uv[uo + i];
 
+        sum += (s0 + s1) + (s2 + s3);
+        if(sum > 5)
+            sum = 5;
+        else if(sum < 1)
+            sum = 1;
         return sum;
     }
 
+    /**
+     * Copies the feature-major arrays used in training into one
+     * contiguous vector per user and per movie, so that scoring
+     * a pair reads two short runs of memory rather than one
+     * float from each of 2 * NUM_FEATURES rows. 
+     */
+    private synchronized void packVectors() {
+
+        if(userVectors != null)
+            return;
+
+        float[] users = new float[NUM_USERS * NUM_FEATURES];
+        float[] movies = new float[NUM_MOVIES * NUM_FEATURES];
+        float[] row;
+
+        for(int f = 0; f < NUM_FEATURES; f++) {
+            row = userFeatures[f];
+            for(int u = 0; u < NUM_USERS; u++)
+                users[u * NUM_FEATURES + f] = row[u];
+            row = movieFeatures[f];
+            for(int m = 0; m < NUM_MOVIES; m++)
+                movies[m * NUM_FEATURES + f] = row[m];
+        }
+
+        movieVectors = movies;
+        userVectors = users;
+    }
+
 
     /**
      * Loads file containg all of the known 
-     * ratings. 
+     * ratings. Each line is mid,uid,rating. 
      *
      * @param  fileName  The data file. 
      */
     public void loadData(String fileName) throws FileNotFoundException, IOException {
 
-        Scanner in = new Scanner(new File(fileName));
+        BufferedReader in = new BufferedReader(new FileReader(fileName));
 
-        String[] line;
+        String line;
         short currMid;
-        int currUid, newUid;
+        int currUid, newUid, comma1, comma2, end;
         byte currRating;
-        String date;
         int idCounter = 0, ratingCounter = 0;
-        while(in.hasNextLine()) {
+        while((line = in.readLine()) != null) {
 
-            line = in.nextLine().split(",");
-            currMid = Short.parseShort(line[0]);
-            currUid = Integer.parseInt(line[1]);
-            currRating = Byte.parseByte(line[2]);
+            // Any fields after the rating, such as a date, are ignored
+            comma1 = line.indexOf(',');
+            comma2 = line.indexOf(',', comma1 + 1);
+            if(comma2 < 0)
+                throw new NumberFormatException("Bad line: " + line);
+            end = line.indexOf(',', comma2 + 1);
+            if(end < 0)
+                end = line.length();
+
+            currMid = (short) parseInt(line, 0, comma1);
+            currUid = parseInt(line, comma1 + 1, comma2);
+            currRating = (byte) parseInt(line, comma2 + 1, end);
 
             //Converts the sparse uid to a compact version
             //if we haven't seen this user before, and 
@@ -233,6 +1106,23 @@ public class IncrementalSVD implements Serializable {
             rating[ratingCounter] = currRating;
             ratingCounter++;
         }
+
+        in.close();
+    }
+
+    /**
+     * Parses the non-negative integer between two
+     * positions of a line, without making a substring. 
+     */
+    private static int parseInt(String line, int from, int to) {
+        int value = 0;
+        for(int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if(c < '0' || c > '9')
+                throw new NumberFormatException("Bad number in line: " + line);
+            value = 10 * value + (c - '0');
+        }
+        return value;
     }
 
 
@@ -255,16 +1145,16 @@ public class IncrementalSVD implements Serializable {
      * @param inFile the name of the input file
      */
     public void processTest(String inFile, String outFile) {
-        File in = new File(inFile);
-        Scanner sc = null;
+        BufferedReader in;
         BufferedWriter out;
         String currLine;
-        String[] split;
         short currMovie = (short) 0;
-        int uid;
+        int comma, n = 0;
+        int[] users = new int[1024];
+        double[] predictions = new double[1024];
 
         try {
-            sc = new Scanner(in);
+            in = new BufferedReader(new FileReader(inFile));
         }
         catch (FileNotFoundException e) {
             System.out.println("Infile error, file not found!  Java error: "
@@ -275,23 +1165,33 @@ public class IncrementalSVD implements Serializable {
         try {
             out = new BufferedWriter(new FileWriter(outFile));
 
-            while (sc.hasNextLine()) {
-                currLine = sc.nextLine().trim();
-                split = currLine.split(",");
+            // Users are collected until the end of each movie's
+            // block, and then scored together
+            while ((currLine = in.readLine()) != null) {
+                currLine = currLine.trim();
+
+                if (currLine.endsWith(":")) {
+                    writePredictions(out, currMovie, users, n, predictions);
+                    n = 0;
 
-                if (split.length == 1) {
-                    currMovie = Short.parseShort(
-                        currLine.substring(0, currLine.length() - 1));
+                    currMovie = (short) parseInt(currLine, 0, currLine.length() - 1);
                     out.write(currLine);
+                    out.newLine();
                 }
                 else {
-                    uid = idMap.get(Integer.parseInt(split[0]));
-                    out.write(Double.toString(predictRating(currMovie, uid)));
-                 }
+                    if (n == users.length) {
+                        users = Arrays.copyOf(users, 2 * n);
+                        predictions = new double[2 * n];
+                    }
 
-                out.newLine();
+                    comma = currLine.indexOf(',');
+                    users[n++] = idMap.get(parseInt(currLine, 0, 
+                                                    comma < 0 ? currLine.length() : comma));
+                }
             }
+            writePredictions(out, currMovie, users, n, predictions);
 
+            in.close();
             out.close();
         }
         catch (IOException e) {
@@ -300,6 +1200,22 @@ public class IncrementalSVD implements Serializable {
         }
     }
 
+    /**
+     * Scores a block of users for one movie and writes
+     * the predictions, one per line. 
+     */
+    private void writePredictions(BufferedWriter out, short movie, int[] users, 
+                                  int n, double[] predictions) throws IOException {
+        if (n == 0)
+            return;
+
+        predictRatings(movie, users, n, predictions);
+        for (int i = 0; i < n; i++) {
+            out.write(Double.toString(predictions[i]));
+            out.newLine();
+        }
+    }
+
     public static void serialize(String fileName, IncrementalSVD obj) {
 
         try {
@@ -341,6 +1257,230 @@ public class IncrementalSVD implements Serializable {
     }
 
 
+    /**
+     * Builds an IncrementalSVD sized for the data it is trained
+     * on, rather than for the full Netflix data. The ratings are
+     * copied straight out of a MemHelper, so no text file has to
+     * be written or parsed, and the arrays hold exactly as many
+     * users, movies and ratings as the data has. 
+     *
+     * The training parameters all default to the values used for
+     * the Netflix data, and each setter returns the Builder so
+     * that calls can be chained:
+     *
+     *   IncrementalSVD svd = new IncrementalSVD.Builder()
+     *       .setFeatures(20)
+     *       .setLearningRate(0.002f)
+     *       .build(helper);
+     *   svd.train();
+     *
+     * Movie ids are stored as shorts, so they must be less
+     * than 32768. 
+     */
+    public static class Builder {
+
+        private int features = 64;
+        private int minEpochs = 120;
+        private int maxEpochs = 200;
+        private float initValue = 0.1f;
+        private float minImprovement = 0.0001f;
+        private float learningRate = 0.001f;
+        private float regularization = 0.015f;
+        private int numThreads = 1;
+
+        /**
+         * Sets the number of features to train.
+         *
+         * @param  features  The number of features.
+         * @return This Builder.
+         */
+        public Builder setFeatures(int features) {
+            this.features = features;
+            return this;
+        }
+
+        /**
+         * Sets the number of epochs each feature is trained
+         * for before checking whether the RMSE is still 
+         * improving.
+         *
+         * @param  minEpochs  The minimum number of epochs.
+         * @return This Builder.
+         */
+        public Builder setMinEpochs(int minEpochs) {
+            this.minEpochs = minEpochs;
+            return this;
+        }
+
+        /**
+         * Sets the largest number of epochs any feature is
+         * trained for.
+         *
+         * @param  maxEpochs  The maximum number of epochs.
+         * @return This Builder.
+         */
+        public Builder setMaxEpochs(int maxEpochs) {
+            this.maxEpochs = maxEpochs;
+            return this;
+        }
+
+        /**
+         * Sets the value every feature starts at.
+         *
+         * @param  initValue  The initial feature value.
+         * @return This Builder.
+         */
+        public Builder setInitValue(float initValue) {
+            this.initValue = initValue;
+            return this;
+        }
+
+        /**
+         * Sets the smallest drop in training RMSE per epoch
+         * that keeps a feature training after minEpochs.
+         *
+         * @param  minImprovement  The minimum improvement.
+         * @return This Builder.
+         */
+        public Builder setMinImprovement(float minImprovement) {
+            this.minImprovement = minImprovement;
+            return this;
+        }
+
+        /**
+         * Sets the learning rate.
+         *
+         * @param  learningRate  The learning rate.
+         * @return This Builder.
+         */
+        public Builder setLearningRate(float learningRate) {
+            this.learningRate = learningRate;
+            return this;
+        }
+
+        /**
+         * Sets the regularization constant, K.
+         *
+         * @param  regularization  The regularization constant.
+         * @return This Builder.
+         */
+        public Builder setRegularization(float regularization) {
+            this.regularization = regularization;
+            return this;
+        }
+
+        /**
+         * Sets the number of training threads, see
+         * IncrementalSVD.setNumThreads.
+         *
+         * @param  numThreads  The number of threads.
+         * @return This Builder.
+         */
+        public Builder setNumThreads(int numThreads) {
+            this.numThreads = Math.max(1, numThreads);
+            return this;
+        }
+
+        /**
+         * Builds a model for the ratings in a file, which may
+         * be either a serialized MemReader or a RatingStore.
+         *
+         * @param  fileName  The data file.
+         * @return An untrained model holding every rating.
+         */
+        public IncrementalSVD build(String fileName) {
+            return build(new MemHelper(fileName));
+        }
+
+        /**
+         * Builds a model for the ratings of a MemHelper.
+         * The ratings are stored grouped by movie, as in the
+         * Netflix training file, and users are numbered in
+         * order of id. 
+         *
+         * @param  helper  The MemHelper holding the data.
+         * @return An untrained model holding every rating.
+         */
+        public IncrementalSVD build(MemHelper helper) {
+
+            RatingStore store = helper.getRatingStore();
+            if(store != null)
+                return build(store);
+
+            IntArrayList users = helper.getListOfUsers();
+            IntArrayList movies = helper.getListOfMovies();
+            users.sort();
+            movies.sort();
+
+            int numRatings = 0;
+            for(int i = 0; i < movies.size(); i++)
+                numRatings += helper.getNumberOfUsersWhoSawMovie(movies.get(i));
+
+            IncrementalSVD svd = new IncrementalSVD(numRatings, users.size(), 
+                                                    numMovies(movies.size() == 0 
+                                                              ? 0 : movies.get(movies.size() - 1)), 
+                                                    this);
+
+            for(int i = 0; i < users.size(); i++)
+                svd.idMap.put(users.get(i), i);
+
+            int k = 0, block;
+            IntArrayList ratings;
+            for(int i = 0; i < movies.size(); i++) {
+                short movie = (short) movies.get(i);
+                ratings = helper.getUsersWhoSawMovie(movie);
+                for(int j = 0; j < ratings.size(); j++) {
+                    block = ratings.getQuick(j);
+                    svd.setRating(k++, svd.idMap.get(MemHelper.parseUserOrMovie(block)), 
+                                  movie, (byte) MemHelper.parseRating(block));
+                }
+            }
+
+            return svd;
+        }
+
+        /**
+         * Builds a model for the ratings of a RatingStore,
+         * reading the movie rows in place. Users are numbered
+         * by their row in the store. 
+         */
+        private IncrementalSVD build(RatingStore store) {
+
+            int numMovieRows = store.getNumberOfMovies();
+            IncrementalSVD svd = new IncrementalSVD(store.getNumberOfRatings(), 
+                                                    store.getNumberOfUsers(), 
+                                                    numMovies(numMovieRows == 0 
+                                                              ? 0 : store.movieId(numMovieRows - 1)), 
+                                                    this);
+
+            for(int row = 0; row < store.getNumberOfUsers(); row++)
+                svd.idMap.put(store.userId(row), row);
+
+            int k = 0, block;
+            for(int row = 0; row < numMovieRows; row++) {
+                short movie = (short) store.movieId(row);
+                for(int pos = store.movieStart(row); pos < store.movieEnd(row); pos++) {
+                    block = store.movieBlock(pos);
+                    svd.setRating(k++, store.userRow(MemHelper.parseUserOrMovie(block)), 
+                                  movie, (byte) MemHelper.parseRating(block));
+                }
+            }
+
+            return svd;
+        }
+
+        /**
+         * Returns the size of the movie feature arrays for
+         * the largest movie id, checking that it fits in a short.
+         */
+        private static int numMovies(int maxMid) {
+            if(maxMid > Short.MAX_VALUE)
+                throw new RuntimeException("movie id " + maxMid + " does not fit in a short");
+            return maxMid + 1;
+        }
+    }
+
+
     public static void main(String[] args) {
 
         try {
@@ -350,12 +1490,21 @@ public class IncrementalSVD implements Serializable {
             String testFile = "/recommender/qualifying/qualifying.txt";
             String outFile = "/recommender/svdRun.txt";
 
-            if(args.length != 1) {
-                System.out.println("usage: java IncrementalSVD serialFile");
+            if(args.length < 1 || args.length > 2) {
+                System.out.println("usage: java IncrementalSVD serialFile [checkpointFile]");
             }
             else {
                 IncrementalSVD incSVD = new IncrementalSVD();
                 incSVD.loadData(dataFile);
+
+                // Checkpoint every 20 epochs, resuming from the
+                // last checkpoint if there is one
+                if(args.length == 2) {
+                    if(new File(args[1]).exists())
+                        incSVD.resume(args[1]);
+                    incSVD.setCheckpoint(args[1], 20);
+                }
+
                 incSVD.calcFeatures();
                 IncrementalSVD.serialize(args[0], incSVD);
                 incSVD.processTest(testFile, outFile);
@@ -363,7 +1512,7 @@ public class IncrementalSVD implements Serializable {
         }
         catch(FileNotFoundException e) {
             System.out.println("Could not find file.");
-            System.out.println("usage: java IncrementalSVD serialFile");
+            System.out.println("usage: java IncrementalSVD serialFile [checkpointFile]");
             e.printStackTrace();
         }
         catch(IOException e) {
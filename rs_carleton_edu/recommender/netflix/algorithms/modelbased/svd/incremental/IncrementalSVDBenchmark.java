@@ -0,0 +1,89 @@
+package netflix.algorithms.modelbased.svd.incremental;
+
+import java.util.Random;
+
+/**
+ * Times training epochs of IncrementalSVD with the ratings in
+ * each of the orders offered by reorderRatings.
+ *
+ * The ratings are synthetic but shaped like the Netflix data:
+ * 480,189 users and 17,770 movies, with the number of ratings per
+ * movie and per user both heavily skewed. They start out grouped
+ * by movie, like the Netflix training file.
+ *
+ * usage: java IncrementalSVDBenchmark [numRatings] [epochs]
+ */
+public class IncrementalSVDBenchmark {
+
+    private static final int NUM_USERS = 480189;
+    private static final int NUM_MOVIES = 17771;
+
+    public static void main(String[] args) {
+
+        int numRatings = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int epochs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        System.out.println("Generating " + numRatings + " ratings");
+        IncrementalSVD svd = new IncrementalSVD(numRatings, NUM_USERS, NUM_MOVIES, 1);
+        generate(svd, numRatings, new Random(227));
+
+        int[] orders = {IncrementalSVD.ORDER_BY_MOVIE,
+                        IncrementalSVD.ORDER_BY_USER,
+                        IncrementalSVD.ORDER_BLOCKED};
+        String[] names = {"by movie (file order)", "by user", "blocked"};
+
+        for(int o = 0; o < orders.length; o++) {
+            long start = System.nanoTime();
+            svd.reorderRatings(orders[o]);
+            long sortTime = (System.nanoTime() - start) / 1000000;
+
+            // One untimed epoch to warm up
+            svd.trainFeature(0, 0, numRatings);
+
+            start = System.nanoTime();
+            double sq = 0;
+            for(int e = 0; e < epochs; e++)
+                sq = svd.trainFeature(0, 0, numRatings);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(names[o] + ": "
+                               + Math.round(epochs / seconds * 100) / 100.0 + " epochs/s, "
+                               + Math.round(numRatings * epochs / seconds / 1e6) + "M ratings/s"
+                               + " (reorder took " + sortTime + " ms, rmse "
+                               + Math.round(Math.sqrt(sq / numRatings) * 10000) / 10000.0 + ")");
+        }
+    }
+
+    /**
+     * Fills in the ratings, grouped by movie. Movie and user
+     * popularity both follow a power law, and users are
+     * numbered in random order so that popular users are
+     * spread over the whole array.
+     */
+    private static void generate(IncrementalSVD svd, int numRatings, Random rand) {
+
+        int[] userOrder = new int[NUM_USERS];
+        for(int i = 0; i < NUM_USERS; i++)
+            userOrder[i] = i;
+        for(int i = NUM_USERS - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1), t = userOrder[i];
+            userOrder[i] = userOrder[j];
+            userOrder[j] = t;
+        }
+
+        // Share the ratings out between movies in proportion to 1/rank
+        double norm = 0;
+        for(int m = 1; m < NUM_MOVIES; m++)
+            norm += 1.0 / m;
+
+        int k = 0;
+        for(int m = 1; m < NUM_MOVIES && k < numRatings; m++) {
+            int count = (int) Math.ceil(numRatings / norm / m);
+            for(int i = 0; i < count && k < numRatings; i++) {
+                double u = rand.nextDouble();
+                int user = userOrder[(int) (NUM_USERS * u * u * u)];
+                svd.setRating(k++, user, (short) m, (byte) (1 + rand.nextInt(5)));
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package netflix.algorithms.modelbased.writer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only access to a neighbor file written by
+ * SimilarityWriterToBinary. The file is memory-mapped rather
+ * than read into the heap, so opening a model is nearly instant
+ * and several recommenders on one machine share a copy of it in
+ * the page cache.
+ *
+ * The neighbors of an id are at positions getStart(id) (inclusive)
+ * to getEnd(id) (exclusive), in the order they were written, which
+ * for the model builders is most similar first. Lookups read the
+ * mapped buffers by position and allocate nothing, as with
+ * RatingStore.movieStart, movieEnd and movieBlock.
+ *
+ *     for(int i = model.getStart(mid); i < model.getEnd(mid); i++)
+ *         use(model.getNeighbor(i), model.getSimilarity(i));
+ *
+ * A model can also be built in the heap from arrays in the same
+ * layout with wrap, as DatabaseImpl.getSimilarityModel does.
+ */
+public class SimilarityModel {
+
+    private int numIds;
+    private IntBuffer offsets;
+    private IntBuffer neighbors;
+    private FloatBuffer similarities;
+
+    private SimilarityModel(IntBuffer offsets, IntBuffer neighbors,
+                            FloatBuffer similarities) {
+        this.numIds = offsets.capacity() - 1;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.similarities = similarities;
+    }
+
+    /**
+     * Opens a neighbor file written by SimilarityWriterToBinary.
+     *
+     * @param  fileName  The file.
+     * @return The mapped model, or null if the file could
+     *         not be read.
+     */
+    public static SimilarityModel map(String fileName) {
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(fileName, "r");
+            try {
+                FileChannel channel = file.getChannel();
+
+                IntBuffer header = mapBytes(channel, 0,
+                    SimilarityWriterToBinary.HEADER_INTS * 4L).asIntBuffer();
+                if(header.get(0) != SimilarityWriterToBinary.MAGIC)
+                    throw new IOException(fileName + " is not a similarity file");
+                if(header.get(1) != SimilarityWriterToBinary.VERSION)
+                    throw new IOException("Unsupported similarity file version "
+                                          + header.get(1));
+
+                int numIds = header.get(2);
+                int numEntries = header.get(3);
+                long pos = SimilarityWriterToBinary.HEADER_INTS * 4L;
+
+                IntBuffer offsets = mapBytes(channel, pos, (numIds + 1) * 4L).asIntBuffer();
+                pos += (numIds + 1) * 4L;
+                IntBuffer neighbors = mapBytes(channel, pos, numEntries * 4L).asIntBuffer();
+                pos += numEntries * 4L;
+                FloatBuffer similarities = mapBytes(channel, pos, numEntries * 4L).asFloatBuffer();
+
+                return new SimilarityModel(offsets, neighbors, similarities);
+            }
+            finally {
+                // The mappings stay valid after the file is closed
+                file.close();
+            }
+        }
+        catch(FileNotFoundException e) {
+            System.out.println("Can't find file " + fileName);
+            e.printStackTrace();
+        }
+        catch(IOException e) {
+            System.out.println("IO error");
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Creates a model over arrays in the layout of the file:
+     * the neighbors of id i are between offsets[i] (inclusive)
+     * and offsets[i+1] (exclusive) of the other two arrays.
+     * The arrays are not copied.
+     *
+     * @param  offsets  The offsets, one more than the number of ids.
+     * @param  neighbors  The neighbors' ids.
+     * @param  similarities  The similarities.
+     * @return The model.
+     * @throws IllegalArgumentException if the neighbor and
+     *         similarity arrays differ in length.
+     */
+    public static SimilarityModel wrap(int[] offsets, int[] neighbors, float[] similarities)
+        throws IllegalArgumentException {
+
+        if(neighbors.length != similarities.length)
+            throw new IllegalArgumentException(neighbors.length + " neighbors, "
+                                               + similarities.length + " similarities");
+        return new SimilarityModel(IntBuffer.wrap(offsets), IntBuffer.wrap(neighbors),
+                                   FloatBuffer.wrap(similarities));
+    }
+
+    /**
+     * Maps a section of the file as little-endian bytes.
+     */
+    private static ByteBuffer mapBytes(FileChannel channel, long pos, long length)
+        throws IOException {
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Checks whether a file starts with the similarity
+     * file magic number.
+     *
+     * @param  fileName  The file to check.
+     * @return true if the file is a similarity file.
+     */
+    public static boolean isSimilarityFile(String fileName) {
+
+        try {
+            FileInputStream in = new FileInputStream(fileName);
+            byte[] magic = new byte[4];
+            int read = in.read(magic);
+            in.close();
+
+            return read == 4 && ByteBuffer.wrap(magic)
+                .order(ByteOrder.LITTLE_ENDIAN).getInt() == SimilarityWriterToBinary.MAGIC;
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the position of the first neighbor of an id.
+     *
+     * @param  id  The id.
+     * @return The first position, which equals getEnd(id)
+     *         if the id has no neighbors.
+     */
+    public int getStart(int id) {
+        if(id < 0 || id >= numIds)
+            return 0;
+        return offsets.get(id);
+    }
+
+    /**
+     * Returns the position after the last neighbor of an id.
+     *
+     * @param  id  The id.
+     * @return The end position.
+     */
+    public int getEnd(int id) {
+        if(id < 0 || id >= numIds)
+            return 0;
+        return offsets.get(id + 1);
+    }
+
+    /**
+     * Returns the number of neighbors of an id.
+     *
+     * @param  id  The id.
+     * @return The number of neighbors.
+     */
+    public int getNumberOfNeighbors(int id) {
+        return getEnd(id) - getStart(id);
+    }
+
+    /**
+     * Returns the neighbor at a position.
+     *
+     * @param  pos  The position.
+     * @return The neighbor's id.
+     */
+    public int getNeighbor(int pos) {
+        return neighbors.get(pos);
+    }
+
+    /**
+     * Returns the similarity at a position.
+     *
+     * @param  pos  The position.
+     * @return The similarity.
+     */
+    public double getSimilarity(int pos) {
+        return similarities.get(pos);
+    }
+
+    /**
+     * Returns one more than the largest id in the model.
+     *
+     * @return The number of ids.
+     */
+    public int getNumberOfIds() {
+        return numIds;
+    }
+
+    /**
+     * Returns the number of similarities in the model.
+     *
+     * @return The number of similarities.
+     */
+    public int getNumberOfEntries() {
+        return neighbors.capacity();
+    }
+}
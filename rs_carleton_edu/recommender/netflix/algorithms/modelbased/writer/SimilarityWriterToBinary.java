@@ -0,0 +1,189 @@
+package netflix.algorithms.modelbased.writer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import cern.colt.list.FloatArrayList;
+import cern.colt.list.IntArrayList;
+
+/**
+ * A SimilarityWriter that writes a binary neighbor file, which
+ * SimilarityModel maps into memory. The similarities are kept in
+ * primitive lists until close, then grouped by their first id,
+ * keeping the order they were written in within each id, and
+ * written out as (all values little-endian):
+ *
+ *   magic, version, numIds, numEntries
+ *   offsets[numIds + 1]
+ *   neighbors[numEntries]              (ints)
+ *   similarities[numEntries]           (floats)
+ *
+ * The neighbors of id i are between offsets[i] (inclusive) and
+ * offsets[i+1] (exclusive). numIds is one more than the largest
+ * first id written. Each similarity takes 8 bytes, against about
+ * 20 for a line of the text file SimilarityWriterToFile writes,
+ * and the lists are held in memory until close, so this suits
+ * models cut to the top neighbors of each item, such as
+ * ItemBasedModelBuilder.buildTopKModel writes.
+ *
+ * The program converts a text model written by
+ * SimilarityWriterToFile:
+ *     1) The text file.
+ *     2) The binary file to write.
+ */
+public class SimilarityWriterToBinary implements SimilarityWriter {
+
+    /** Identifies a similarity file ("SIMS"). */
+    public static final int MAGIC = 0x53494D53;
+
+    /** The current version of the file layout. */
+    public static final int VERSION = 1;
+
+    static final int HEADER_INTS = 4;
+
+    private String fileName;
+    private IntArrayList ids;
+    private IntArrayList neighbors;
+    private FloatArrayList similarities;
+    private int maxId;
+
+    /**
+     * Creates a writer for a file. Nothing is written
+     * until close is called.
+     *
+     * @param  fileName  The file to write to.
+     */
+    public SimilarityWriterToBinary(String fileName) {
+        this.fileName = fileName;
+        ids = new IntArrayList();
+        neighbors = new IntArrayList();
+        similarities = new FloatArrayList();
+        maxId = -1;
+    }
+
+    /**
+     * Records the similarity of movieId2 to movieId1, as
+     * a neighbor of movieId1 only.
+     *
+     * @param  movieId1  The id whose list this goes in.
+     * @param  movieId2  The neighbor.
+     * @param  similarity  The similarity, stored as a float.
+     * @throws IllegalArgumentException if movieId1 is negative.
+     */
+    public void write(int movieId1, int movieId2, double similarity)
+        throws IllegalArgumentException {
+
+        if(movieId1 < 0)
+            throw new IllegalArgumentException("Negative id " + movieId1);
+
+        ids.add(movieId1);
+        neighbors.add(movieId2);
+        similarities.add((float) similarity);
+        maxId = Math.max(maxId, movieId1);
+    }
+
+    /**
+     * Groups the similarities by id and writes the file.
+     *
+     * @throws IOException if the file could not be written.
+     */
+    public void close() throws IOException {
+        int numIds = maxId + 1;
+        int numEntries = ids.size();
+
+        // Counting sort by id, which keeps the order each
+        // id's neighbors were written in
+        int[] offsets = new int[numIds + 1];
+        for(int i = 0; i < numEntries; i++)
+            offsets[ids.getQuick(i) + 1]++;
+        for(int i = 0; i < numIds; i++)
+            offsets[i + 1] += offsets[i];
+
+        int[] next = new int[numIds];
+        System.arraycopy(offsets, 0, next, 0, numIds);
+        int[] sortedNeighbors = new int[numEntries];
+        float[] sortedSims = new float[numEntries];
+        int pos;
+        for(int i = 0; i < numEntries; i++) {
+            pos = next[ids.getQuick(i)]++;
+            sortedNeighbors[pos] = neighbors.getQuick(i);
+            sortedSims[pos] = similarities.getQuick(i);
+        }
+        ids = null;
+        neighbors = null;
+        similarities = null;
+
+        FileOutputStream fos = new FileOutputStream(fileName);
+        try {
+            FileChannel channel = fos.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(numIds);
+            buffer.putInt(numEntries);
+
+            for(int i = 0; i < offsets.length; i++) {
+                if(buffer.remaining() < 4)
+                    flush(channel, buffer);
+                buffer.putInt(offsets[i]);
+            }
+            for(int i = 0; i < numEntries; i++) {
+                if(buffer.remaining() < 4)
+                    flush(channel, buffer);
+                buffer.putInt(sortedNeighbors[i]);
+            }
+            for(int i = 0; i < numEntries; i++) {
+                if(buffer.remaining() < 4)
+                    flush(channel, buffer);
+                buffer.putFloat(sortedSims[i]);
+            }
+            flush(channel, buffer);
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Writes out the staging buffer and empties it.
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer)
+        throws IOException {
+
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+
+    public static void main(String[] args) {
+
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(args[0]));
+            SimilarityWriterToBinary writer = new SimilarityWriterToBinary(args[1]);
+            String line;
+            int first, second;
+
+            while((line = in.readLine()) != null) {
+                first = line.indexOf(',');
+                second = line.indexOf(',', first + 1);
+                if(first < 0 || second < 0)
+                    continue;
+                writer.write(Integer.parseInt(line.substring(0, first)),
+                             Integer.parseInt(line.substring(first + 1, second)),
+                             Double.parseDouble(line.substring(second + 1)));
+            }
+            in.close();
+            writer.close();
+        }
+        catch(Exception e) {
+            System.out.println("usage: java SimilarityWriterToBinary textFile binaryFile");
+            e.printStackTrace();
+        }
+    }
+}
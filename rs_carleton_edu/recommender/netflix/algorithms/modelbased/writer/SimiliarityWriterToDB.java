@@ -1,34 +1,122 @@
 package netflix.algorithms.modelbased.writer;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
 import netflix.algorithms.modelbased.itembased.DatabaseImpl;
 
 /**
- * A SimilarityWriter that writes to a database
+ * A SimilarityWriter that writes to a database. Similarities
+ * are added to a batch of a prepared INSERT, and each full batch
+ * is sent in one round trip and committed as one transaction, so
+ * writing a model costs numSimilarities / batchSize round trips
+ * rather than one per similarity. If a batch fails, it is rolled
+ * back and the exception is thrown from write or close; the
+ * batches before it stay committed.
  * @author Amrit Tuladhar
  *
  */
 public class SimiliarityWriterToDB implements SimilarityWriter {
 
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
     private DatabaseImpl databaseImpl;
     private String similarityTable;
+    private Connection con;
+    private PreparedStatement insert;
+    private int batchSize;
+    private int pending;
+    private boolean autoCommit;
+    private boolean opened;
 
     public SimiliarityWriterToDB(DatabaseImpl databaseImpl,
             String similarityTable) {
+        this(databaseImpl, similarityTable, DEFAULT_BATCH_SIZE, true);
+    }
+
+    /**
+     * Creates a writer for a similarity table.
+     * @param databaseImpl - the database
+     * @param similarityTable - the table, with columns mid1, mid2 and similarity
+     * @param batchSize - the number of similarities sent and committed at once
+     * @param open - true to open the database connection, and close it
+     * in close, false if it is already open, such as a connection to an
+     * embedded database, and is left open
+     */
+    public SimiliarityWriterToDB(DatabaseImpl databaseImpl,
+            String similarityTable, int batchSize, boolean open) {
         this.databaseImpl = databaseImpl;
-        if (!databaseImpl.openConnection()) {
+        if (open && !databaseImpl.openConnection()) {
             System.out.println("Could not open database connection.");
             System.exit(1);
         }
+        this.opened = open;
         this.similarityTable = similarityTable;
+        this.batchSize = Math.max(1, batchSize);
+
+        try {
+            con = databaseImpl.getConnection();
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            insert = con.prepareStatement("INSERT INTO " + similarityTable
+                    + "(mid1, mid2, similarity) VALUES(?, ?, ?)");
+        }
+        catch (SQLException e) {
+            System.out.println("Could not prepare insert into " + similarityTable);
+            e.printStackTrace();
+            System.exit(1);
+        }
     }
 
     public void write(int movieId1, int movieId2, double similarity) throws Exception{
-        String sql = "INSERT INTO " + similarityTable + "(mid1, mid2, similarity) VALUES(" +
-        movieId1 + ", " + movieId2 + ", " + similarity + ");";
-        databaseImpl.updateDB(sql);
+        insert.setInt(1, movieId1);
+        insert.setInt(2, movieId2);
+        insert.setDouble(3, similarity);
+        insert.addBatch();
+        pending++;
+
+        if (pending >= batchSize)
+            flush();
+    }
+
+    /**
+     * Sends and commits the similarities written since the
+     * last batch, rolling them back if that fails.
+     * @throws SQLException if the batch could not be written
+     */
+    public void flush() throws SQLException {
+        if (pending == 0)
+            return;
+
+        try {
+            insert.executeBatch();
+            con.commit();
+        }
+        catch (SQLException e) {
+            try {
+                insert.clearBatch();
+                con.rollback();
+            }
+            catch (SQLException rollbackFailed) {
+                e.addSuppressed(rollbackFailed);
+            }
+            throw e;
+        }
+        finally {
+            pending = 0;
+        }
     }
 
     public void close() throws Exception {
-        this.databaseImpl.closeConnection();
+        try {
+            flush();
+        }
+        finally {
+            insert.close();
+            con.setAutoCommit(autoCommit);
+            if (opened)
+                this.databaseImpl.closeConnection();
+        }
     }
 }
\ No newline at end of file
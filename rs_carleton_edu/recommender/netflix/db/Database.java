@@ -49,11 +49,32 @@ public class Database {
 	 * @return boolean true on successful connection, false if problems
 	 */
 	public boolean openConnection(){
-		boolean success = false;
 		try{
 			Class.forName("com.mysql.jdbc.Driver");
-			con = DriverManager.getConnection("jdbc:mysql://" +
-			"localhost:3306/" + dbName, "recommender", "recommender");
+		} catch (Exception e){
+			System.err.println("Error getting connection.");
+			e.printStackTrace();
+			return false;
+		}
+		//rewriteBatchedStatements lets the driver send a batch of
+		//INSERTs as one multi-row statement
+		return openConnection("jdbc:mysql://localhost:3306/" + dbName
+				+ "?rewriteBatchedStatements=true", "recommender", "recommender");
+	}
+
+	/**
+	 * Opens a connection to any JDBC url, such as an embedded
+	 * in-process database.  The driver must already be loaded
+	 * or registered.
+	 * @param url - the JDBC url
+	 * @param user - the user name
+	 * @param password - the password
+	 * @return boolean true on successful connection, false if problems
+	 */
+	public boolean openConnection(String url, String user, String password){
+		boolean success = false;
+		try{
+			con = DriverManager.getConnection(url, user, password);
 			success = true;
 
 		} catch (Exception e){
@@ -0,0 +1,157 @@
+package netflix.memreader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import cern.colt.function.IntIntProcedure;
+
+/**
+ * Micro-benchmark for the SortedJoin strategies. For each size
+ * ratio it builds pairs of random sorted rating lists, a short one
+ * and one ratio times longer, and times the inner join of every
+ * pair with MERGE, GALLOP and ADAPTIVE, over both int arrays (the
+ * MemReader lists) and a direct IntBuffer (the mapped RatingStore).
+ *
+ * The number of matches found by each strategy is checked against
+ * MERGE, and the time per join is printed in nanoseconds.
+ *
+ * usage: java netflix.memreader.JoinBenchmark [shortSize] [numIds]
+ */
+public class JoinBenchmark {
+
+    private static final int[] RATIOS = {1, 2, 4, 8, 16, 32, 64, 128, 256};
+    private static final int[] STRATEGIES = {SortedJoin.MERGE,
+                                             SortedJoin.GALLOP,
+                                             SortedJoin.ADAPTIVE};
+    private static final String[] NAMES = {"merge", "gallop", "adaptive"};
+    private static final int PAIRS = 64;
+    private static final int ROUNDS = 5;
+
+    /**
+     * Counts the matches of a join, summing the ratings
+     * so that the join cannot be optimized away.
+     */
+    private static class Counter implements IntIntProcedure {
+        long matches, sum;
+
+        public boolean apply(int left, int right) {
+            matches++;
+            sum += MemHelper.parseRating(left) + MemHelper.parseRating(right);
+            return true;
+        }
+    }
+
+    /**
+     * Builds a sorted list of distinct random ids, each
+     * packed with a random rating.
+     *
+     * @param  size  The number of blocks.
+     * @param  numIds  The number of possible ids.
+     * @param  rand  The random number generator.
+     */
+    private static int[] makeList(int size, int numIds, Random rand) {
+        boolean[] used = new boolean[numIds];
+        int[] list = new int[size];
+        int n = 0;
+
+        while (n < size) {
+            int id = 1 + rand.nextInt(numIds - 1);
+            if (!used[id]) {
+                used[id] = true;
+                n++;
+            }
+        }
+
+        n = 0;
+        for (int id = 0; id < numIds; id++) {
+            if (used[id])
+                list[n++] = id<<8 | (1 + rand.nextInt(5));
+        }
+
+        return list;
+    }
+
+    public static void main(String[] args) {
+
+        int shortSize = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int numIds = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        Random rand = new Random(227);
+
+        System.out.println("short list: " + shortSize + " ids: " + numIds
+                           + " (ns per join)");
+        System.out.println("ratio\tbackend\tmerge\tgallop\tadaptive");
+
+        for (int ratio : RATIOS) {
+            int longSize = shortSize * ratio;
+            if (longSize >= numIds) {
+                System.out.println(ratio + "\tskipped, long list needs more than "
+                                   + numIds + " ids");
+                continue;
+            }
+
+            // Lay the pairs out one after the other, as in a RatingStore
+            int[] blocks = new int[PAIRS * (shortSize + longSize)];
+            int[] starts = new int[2 * PAIRS + 1];
+            int pos = 0;
+            for (int p = 0; p < PAIRS; p++) {
+                int[] a = makeList(shortSize, numIds, rand);
+                int[] b = makeList(longSize, numIds, rand);
+                starts[2*p] = pos;
+                System.arraycopy(a, 0, blocks, pos, a.length);
+                pos += a.length;
+                starts[2*p + 1] = pos;
+                System.arraycopy(b, 0, blocks, pos, b.length);
+                pos += b.length;
+            }
+            starts[2 * PAIRS] = pos;
+
+            IntBuffer buffer = ByteBuffer.allocateDirect(blocks.length * 4)
+                .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            buffer.put(blocks);
+
+            // Alternate which side is short, as the callers will
+            for (int backend = 0; backend < 2; backend++) {
+                StringBuilder line = new StringBuilder();
+                line.append(ratio).append(backend == 0 ? "\tarray" : "\tbuffer");
+                long expected = -1;
+
+                for (int s = 0; s < STRATEGIES.length; s++) {
+                    Counter counter = new Counter();
+                    long best = Long.MAX_VALUE;
+                    int reps = Math.max(1, 20000 / ratio);
+
+                    for (int round = 0; round < ROUNDS; round++) {
+                        counter.matches = 0;
+                        long start = System.nanoTime();
+                        for (int r = 0; r < reps; r++) {
+                            for (int p = 0; p < PAIRS; p++) {
+                                int l = 2*p + (p & 1), rt = 2*p + 1 - (p & 1);
+                                if (backend == 0)
+                                    SortedJoin.innerJoin(blocks, starts[l], starts[l+1],
+                                                         blocks, starts[rt], starts[rt+1],
+                                                         STRATEGIES[s], counter);
+                                else
+                                    SortedJoin.innerJoin(buffer, starts[l], starts[l+1],
+                                                         buffer, starts[rt], starts[rt+1],
+                                                         STRATEGIES[s], counter);
+                            }
+                        }
+                        long time = System.nanoTime() - start;
+                        best = Math.min(best, time / ((long) reps * PAIRS));
+                    }
+
+                    if (expected < 0)
+                        expected = counter.matches;
+                    else if (counter.matches != expected)
+                        System.out.println("Mismatch: " + NAMES[s] + " found "
+                                           + counter.matches + " matches, merge found "
+                                           + expected);
+                    line.append('\t').append(best);
+                }
+                System.out.println(line);
+            }
+        }
+    }
+}
@@ -3,9 +3,11 @@ package netflix.memreader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 
 import netflix.utilities.Pair;
+import cern.colt.function.IntIntProcedure;
 import cern.colt.function.IntObjectProcedure;
 import cern.colt.list.IntArrayList;
 import cern.colt.map.OpenIntIntHashMap;
@@ -15,6 +17,12 @@ import cern.colt.map.OpenIntObjectHashMap;
  * MemHelper provides all the methods for retrieving, parsing,
  * and joining data together from a MemReader object.
  *
+ * A MemHelper can also be built on an immutable RatingStore
+ * instead of a MemReader. All of the query methods work the
+ * same way in that case, but the methods that hand out the
+ * underlying Colt hashes are unavailable, and the lists returned
+ * by getUsersWhoSawMovie and getMoviesSeenByUser are copies.
+ *
  * @author Dan Lew
  * @author Amrit Tuladhar
  * @author Ben Sowell
@@ -22,7 +30,12 @@ import cern.colt.map.OpenIntObjectHashMap;
 public class MemHelper {
     // The "database" for this MemHelper
     private MemReader mr;
+    private RatingStore store;
+    private RatingIndex index;
+    private RatingStats userStats;
+    private RatingStats movieStats;
     private OpenIntObjectHashMap midToName;
+    private int joinStrategy = SortedJoin.ADAPTIVE;
 
     /**
      * Constructs a new MemHelper that uses the specified MemReader for data
@@ -35,12 +48,29 @@ public class MemHelper {
 
     /**
      * Constructs a new MemHelper by loading the serialized
-     * MemReader from the specified file. 
+     * MemReader from the specified file. If the file is a 
+     * RatingStore file instead, it is memory-mapped and 
+     * queried in place. 
      *
      * @param  fileName  The file containing serialized MemReader object
+     *                   or a RatingStore
      */
     public MemHelper(String fileName) {
-        mr = MemReader.deserialize(fileName);
+        if(RatingStore.isRatingStoreFile(fileName))
+            store = RatingStore.map(fileName);
+        else
+            mr = MemReader.deserialize(fileName);
+        midToName = null;
+    }
+
+    /**
+     * Constructs a new MemHelper that uses the specified
+     * RatingStore for data. 
+     *
+     * @param  store  The RatingStore that holds all the data
+     */
+    public MemHelper(RatingStore store) {
+        this.store = store;
         midToName = null;
     }
 
@@ -49,18 +79,42 @@ public class MemHelper {
      * by this MemHelper. 
      *
      * @return  The MemReader object managed by
-     *          this MemHelper.
+     *          this MemHelper, or null if this MemHelper
+     *          is built on a RatingStore.
      */
     public MemReader getMemReader() {
         return mr;
     }
 
+    /**
+     * Returns the RatingStore object maintained
+     * by this MemHelper. 
+     *
+     * @return  The RatingStore, or null if this MemHelper
+     *          is built on a MemReader. 
+     */
+    public RatingStore getRatingStore() {
+        return store;
+    }
+
+    /**
+     * Throws an exception if this MemHelper is built
+     * on a RatingStore, for the methods that expose
+     * the MemReader hashes directly.
+     */
+    private void checkMemReader() {
+        if(mr == null) {
+            throw new RuntimeException("hashes not available for a RatingStore");
+        }
+    }
+
     /**
      * Returns the customer to movie hash table. 
      *
      * @return  The custToMovie hash table. 
      */
     public OpenIntObjectHashMap getCustToMovie() {
+        checkMemReader();
         return mr.custToMovie;
     }
 
@@ -70,6 +124,7 @@ public class MemHelper {
      * @return  The custToMovie hash table. 
      */
     public OpenIntObjectHashMap getMovieToCust() {
+        checkMemReader();
         return mr.movieToCust;
     }
 
@@ -79,6 +134,7 @@ public class MemHelper {
      * @return  The custToMovie hash table. 
      */
     public OpenIntIntHashMap getSumByCust() {
+        checkMemReader();
         return mr.sumByCust;
     }
 
@@ -88,6 +144,7 @@ public class MemHelper {
      * @return  The custToMovie hash table. 
      */
     public OpenIntIntHashMap getSumByMovie() {
+        checkMemReader();
         return mr.sumByMovie;
     }
 
@@ -100,6 +157,13 @@ public class MemHelper {
      * @return  True if the apply function returned true. 
      */
     public boolean applyToUserPairs(IntObjectProcedure procedure) {
+        if(store != null) {
+            for(int i = 0; i < store.getNumberOfUsers(); i++) {
+                if(!procedure.apply(store.userId(i), store.copyUserRow(i)))
+                    return false;
+            }
+            return true;
+        }
         return mr.custToMovie.forEachPair(procedure);
     }
 
@@ -112,6 +176,13 @@ public class MemHelper {
      * @return  True if the apply function returned true. 
      */
     public boolean applyToMoviePairs(IntObjectProcedure procedure) {
+        if(store != null) {
+            for(int i = 0; i < store.getNumberOfMovies(); i++) {
+                if(!procedure.apply(store.movieId(i), store.copyMovieRow(i)))
+                    return false;
+            }
+            return true;
+        }
         return mr.movieToCust.forEachPair(procedure);
     }
 
@@ -145,30 +216,160 @@ public class MemHelper {
      * @return the rating
      */
     public int getRating(int uid, int mid) {
-        if (mr.movieToCust.containsKey(mid) && mr.custToMovie.containsKey(uid)) {
-            IntArrayList custList = (IntArrayList) mr.movieToCust.get(mid);
-            IntArrayList movieList = (IntArrayList) mr.custToMovie.get(uid);
-			
-            // Binary search through a list, assuming:
-            // 1. The list is already sorted
-            // 2. Ratings are limited to 1-5
-            if (custList.size() > movieList.size()) {
-                int tempmid = mid << 8;
-                for (int i=1; i<=5; i++)
-                    if (movieList.binarySearch(++tempmid) >= 0)
-                        return i;
-            } else {
-                int tempuid = uid << 8;
-                for (int i=1; i<=5; i++)
-                    if (custList.binarySearch(++tempuid) >= 0)
-                        return i;
-            }
+        if (index != null) {
+            return index.getRating(uid, mid);
+        }
+
+        if (store != null) {
+            return getStoreRating(uid, mid);
+        }
+
+        IntArrayList custList = (IntArrayList) mr.movieToCust.get(mid);
+        IntArrayList movieList = (IntArrayList) mr.custToMovie.get(uid);
+
+        // Search the shorter list on the id portion of the block,
+        // assuming that the list is already sorted
+        if (custList != null && movieList != null) {
+            if (custList.size() > movieList.size())
+                return searchRating(movieList.elements(), 0, movieList.size(), mid);
+            else
+                return searchRating(custList.elements(), 0, custList.size(), uid);
         }
 
         // Not found, return default value
         return -99;
     }
 
+    /**
+     * Looks up a rating in the RatingStore, using the 
+     * same search as getRating on the shorter of the two
+     * rows. 
+     * 
+     * @param uid the user id
+     * @param mid the movie id
+     * @return the rating, or -99 if not found
+     */
+    private int getStoreRating(int uid, int mid) {
+        int userRow = store.userRow(uid), movieRow = store.movieRow(mid);
+
+        if (userRow >= 0 && movieRow >= 0) {
+            int userStart = store.userStart(userRow), userEnd = store.userEnd(userRow);
+            int movieStart = store.movieStart(movieRow), movieEnd = store.movieEnd(movieRow);
+
+            if (userEnd - userStart < movieEnd - movieStart)
+                return searchRating(store.getUserRatings(), userStart, userEnd, mid);
+            else
+                return searchRating(store.getMovieRatings(), movieStart, movieEnd, uid);
+        }
+
+        return -99;
+    }
+
+    /**
+     * Binary searches a sorted list of blocks on the id 
+     * portion of each block, so that a rating is found
+     * with one search no matter what its value is.
+     * 
+     * @param blocks the uid/rating or mid/rating blocks
+     * @param low the first position of the list
+     * @param end the position past the end of the list
+     * @param key the uid or mid to look for
+     * @return the rating, or -99 if not found
+     */
+    private static int searchRating(int[] blocks, int low, int end, int key) {
+        int high = end - 1, middle, id;
+
+        while (low <= high) {
+            middle = (low + high) >>> 1;
+            id = parseUserOrMovie(blocks[middle]);
+            if (id < key)
+                low = middle + 1;
+            else if (id > key)
+                high = middle - 1;
+            else
+                return parseRating(blocks[middle]);
+        }
+
+        return -99;
+    }
+
+    /**
+     * Binary searches a sorted list of blocks held in
+     * an IntBuffer on the id portion of each block.
+     */
+    private static int searchRating(IntBuffer blocks, int low, int end, int key) {
+        int high = end - 1, middle, block, id;
+
+        while (low <= high) {
+            middle = (low + high) >>> 1;
+            block = blocks.get(middle);
+            id = parseUserOrMovie(block);
+            if (id < key)
+                low = middle + 1;
+            else if (id > key)
+                high = middle - 1;
+            else
+                return parseRating(block);
+        }
+
+        return -99;
+    }
+
+    /**
+     * Builds a RatingIndex over the RatingStore, so that
+     * getRating is answered with a single hash probe. The 
+     * index takes 16 bytes per rating, so it is only built 
+     * on request. 
+     *
+     * Only a MemHelper built on a RatingStore can be indexed,
+     * since a MemReader can still be added to. 
+     */
+    public void buildRatingIndex() {
+        if (store == null) {
+            throw new RuntimeException("rating index requires a RatingStore");
+        }
+        if (index == null) {
+            index = new RatingIndex(store);
+        }
+    }
+
+    /**
+     * Returns the statistics table for the users, with the 
+     * count, sum, mean and standard deviation of each user's 
+     * ratings. For a MemReader this is the table it keeps up 
+     * to date as ratings are added; for a RatingStore it is 
+     * built the first time it is asked for.
+     *
+     * @return the RatingStats for the users
+     */
+    public RatingStats getUserStats() {
+        if (store == null)
+            return mr.statsByCust;
+
+        synchronized (this) {
+            if (userStats == null)
+                userStats = RatingStats.forUsers(store);
+            return userStats;
+        }
+    }
+
+    /**
+     * Returns the statistics table for the movies. 
+     *
+     * @return the RatingStats for the movies
+     * @see #getUserStats()
+     */
+    public RatingStats getMovieStats() {
+        if (store == null)
+            return mr.statsByMovie;
+
+        synchronized (this) {
+            if (movieStats == null)
+                movieStats = RatingStats.forMovies(store);
+            return movieStats;
+        }
+    }
+
     /**
      * Returns the average rating for a particular movie
      *
@@ -176,13 +377,7 @@ public class MemHelper {
      * @return the average rating for the movie
      */
     public double getAverageRatingForMovie(int mid) {
-        double avg = (double) mr.sumByMovie.get(mid) 
-            / (double) getNumberOfUsersWhoSawMovie(mid);
-
-        if(Double.isNaN(avg))
-            return 0.0;
-        else 
-            return avg;
+        return getMovieStats().getMean(mid);
     }
 
     /**
@@ -192,52 +387,25 @@ public class MemHelper {
      * @return the average rating for the user
      */
     public double getAverageRatingForUser(int uid) {
-
-        double avg = (double) mr.sumByCust.get(uid) 
-            / (double)getNumberOfMoviesSeen(uid);
-
-        if(Double.isNaN(avg))
-            return 0.0;
-        else 
-            return avg;
-
-
+        return getUserStats().getMean(uid);
     }
 
     /**
-     * Calculates the standard deviation for a particular user
+     * Returns the standard deviation for a particular user
      * @param uid the user id
      * @return the user's standard deviation
      */
     public double getStandardDeviationForUser(int uid) {
-        double avg = getAverageRatingForUser(uid), sd = 0;
-        IntArrayList movies = getMoviesSeenByUser(uid);
-        
-        for(int i = 0; i < movies.size(); i++)
-            sd += Math.pow((double)parseRating(movies.getQuick(i)) - avg, 2);
-            
-        if(movies.size() == 1)
-           return Math.sqrt(sd);
-        else
-           return Math.sqrt(sd / (movies.size() - 1.0));
+        return getUserStats().getStandardDeviation(uid);
     }
     
     /**
-     * Calculates the standard deviation for a particular movie
+     * Returns the standard deviation for a particular movie
      * @param mid the movie id
      * @return the movie's standard deviation
      */
     public double getStandardDeviationForMovie(int mid) {
-        double avg = getAverageRatingForMovie(mid), sd = 0;
-        IntArrayList users = getUsersWhoSawMovie(mid);
-        
-        for(int i = 0; i < users.size(); i++)
-            sd += Math.pow((double)parseRating(users.getQuick(i)) - avg, 2);
-            
-        if(users.size() == 1)
-            return Math.sqrt(sd);
-        else
-            return Math.sqrt(sd / (users.size() - 1.0));        
+        return getMovieStats().getStandardDeviation(mid);
     }
     
     
@@ -251,25 +419,35 @@ public class MemHelper {
      * @return The averagae rating for the user. 
      */
     public double getRatingSumForUser(int uid) {
+        if(store != null) {
+            int row = store.userRow(uid);
+            return row < 0 ? 0 : store.userSum(row);
+        }
         return mr.sumByCust.get(uid);
      }
 
+    /**
+     * Returns the sum of the ratings for a 
+     * particular movie. 
+     *
+     * @param  mid  The movie id
+     * @return The sum of the ratings for the movie. 
+     */
+    public double getRatingSumForMovie(int mid) {
+        if(store != null) {
+            int row = store.movieRow(mid);
+            return row < 0 ? 0 : store.movieSum(row);
+        }
+        return mr.sumByMovie.get(mid);
+    }
+
     /**
      * Returns the average rating in the dataset. 
      *
      * @return The average rating in the dataset. 
      */
     public double getGlobalAverage() {
-        IntArrayList users = getListOfUsers();
-        double sum = 0.0;
-        int count = 0;
-
-        for(int i = 0; i < users.size(); i++) {
-            sum += getRatingSumForUser(users.get(i));
-            count += getNumberOfMoviesSeen(users.get(i));
-        }
-        
-        return sum/count;
+        return getUserStats().getGlobalMean();
     }
 
 
@@ -279,6 +457,8 @@ public class MemHelper {
      * @return the list of all mid/rating blocks for movies
      */
     public IntArrayList getListOfMovies() {
+        if(store != null)
+            return store.getMovieIds();
         return mr.movieToCust.keys();
     }
 
@@ -288,6 +468,8 @@ public class MemHelper {
      * @return the list of all uid/rating blocks for users
      */
     public IntArrayList getListOfUsers() {
+        if(store != null)
+            return store.getUserIds();
         return mr.custToMovie.keys();
     }
 
@@ -297,6 +479,8 @@ public class MemHelper {
      * @return the number of movies
      */
     public int getNumberOfMovies() {
+        if(store != null)
+            return store.getNumberOfMovies();
         return mr.movieToCust.size();
     }
 
@@ -306,6 +490,8 @@ public class MemHelper {
      * @return the number of users
      */
     public int getNumberOfUsers() {
+        if(store != null)
+            return store.getNumberOfUsers();
         return mr.custToMovie.size();
     }
 
@@ -316,6 +502,10 @@ public class MemHelper {
      * @return the number of users who saw the movie
      */
     public int getNumberOfUsersWhoSawMovie(int mid) {
+        if (store != null) {
+            int row = store.movieRow(mid);
+            return row < 0 ? 0 : store.movieEnd(row) - store.movieStart(row);
+        }
         if (mr.movieToCust.containsKey(mid)) {
             return ((IntArrayList)mr.movieToCust.get(mid)).size();
         }
@@ -329,6 +519,10 @@ public class MemHelper {
      * @return the number of movies seen by the user
      */
     public int getNumberOfMoviesSeen(int uid) {
+        if (store != null) {
+            int row = store.userRow(uid);
+            return row < 0 ? 0 : store.userEnd(row) - store.userStart(row);
+        }
         if (mr.custToMovie.containsKey(uid)) {
             return ((IntArrayList)mr.custToMovie.get(uid)).size();
         }
@@ -338,11 +532,16 @@ public class MemHelper {
     /**
      * Returns all users/ratings who have seen a particular movie.
      * 
-     * It is returned as an array of uid/rating blocks.
+     * It is returned as an array of uid/rating blocks.  If this
+     * MemHelper is built on a RatingStore the array is a copy.
      * @param mid the movie id
      * @return an array of uid/rating blocks
      */
     public IntArrayList getUsersWhoSawMovie(int mid) {
+        if (store != null) {
+            int row = store.movieRow(mid);
+            return row < 0 ? new IntArrayList() : store.copyMovieRow(row);
+        }
         if (mr.movieToCust.containsKey(mid)) {
             return (IntArrayList) mr.movieToCust.get(mid);
         }
@@ -353,11 +552,16 @@ public class MemHelper {
     /**
      * Returns all movies/ratings that a particular user has rated.
      * 
-     * It is returned as an array of mid/rating blocks.
+     * It is returned as an array of mid/rating blocks.  If this
+     * MemHelper is built on a RatingStore the array is a copy.
      * @param uid the user id
      * @return an array of mid/rating blocks
      */
     public IntArrayList getMoviesSeenByUser(int uid) {
+        if (store != null) {
+            int row = store.userRow(uid);
+            return row < 0 ? new IntArrayList() : store.copyUserRow(row);
+        }
         if (mr.custToMovie.containsKey(uid)) {
             return (IntArrayList) mr.custToMovie.get(uid);
         }
@@ -380,37 +584,9 @@ public class MemHelper {
      * blocks (depending)
      */
     public ArrayList<Pair> innerJoinOnMoviesOrRating(int a, int b, boolean which) {
-        // Get the movies/users for each parameter
-        IntArrayList left, right;
-        if(which) {
-            left = getMoviesSeenByUser(a);
-            right = getMoviesSeenByUser(b);
-        }
-        else {
-            left = getUsersWhoSawMovie(a);
-            right = getUsersWhoSawMovie(b);
-        }
-
-        // Join the two using a sort-merge join
-        // Assumes that they two lists are already sorted
-        ArrayList<Pair> match = new ArrayList<Pair>();
-        int leftIndex = 0, rightIndex = 0;
-        while (leftIndex < left.size() && rightIndex < right.size()) {
-            if (parseUserOrMovie(left.getQuick(leftIndex)) 
-                == parseUserOrMovie(right.getQuick(rightIndex))) {
-                match.add(new Pair(left.getQuick(leftIndex++),
-                                   right.getQuick(rightIndex++)));
-            }
-            else if(parseUserOrMovie(left.getQuick(leftIndex)) 
-                    < parseUserOrMovie(right.getQuick(rightIndex))) {
-                leftIndex++;
-            }
-            else {
-                rightIndex++;
-            }
-        }
-
-        return match;
+        PairCollector match = new PairCollector();
+        join(a, b, which, false, match);
+        return match.pairs;
     }
 
     /**
@@ -429,37 +605,127 @@ public class MemHelper {
      * blocks (depending)
      */
     public ArrayList<Pair> fullOuterJoinOnMoviesOrRating(int a, int b, boolean which) {
-        // Get the movies/users for each parameter
-        IntArrayList left, right;
-        if(which) {
-            left = getMoviesSeenByUser(a);
-            right = getMoviesSeenByUser(b);
-        }
-        else {
-            left = getUsersWhoSawMovie(a);
-            right = getUsersWhoSawMovie(b);
-        }
+        PairCollector match = new PairCollector();
+        join(a, b, which, true, match);
+        return match.pairs;
+    }
 
-        // Join the two using a sort-merge join
-        // Assumes that they two lists are already sorted
-        ArrayList<Pair> match = new ArrayList<Pair>();
-        int leftIndex = 0, rightIndex = 0;
-        while (leftIndex < left.size() && rightIndex < right.size()) {
-            if (parseUserOrMovie(left.getQuick(leftIndex)) 
-                == parseUserOrMovie(right.getQuick(rightIndex))) {
-                match.add(new Pair(left.getQuick(leftIndex++),
-                                   right.getQuick(rightIndex++)));
-            }
-            else if(parseUserOrMovie(left.getQuick(leftIndex))
-                    < parseUserOrMovie(right.getQuick(rightIndex))) {
-                match.add(new Pair(left.getQuick(leftIndex++), 0));
-            }
-            else {
-                match.add(new Pair(0, right.getQuick(rightIndex++)));
-            }
+    /**
+     * Inner joins together the data from two uids or two mids, exactly
+     * like innerJoinOnMoviesOrRating, but instead of building a list 
+     * it calls procedure.apply(left, right) with each matching pair of
+     * blocks, in order.  Nothing is allocated during the join, so 
+     * similarity calculations can do their summations as the lists
+     * are merged.
+     * 
+     * @param a movie id or user id one
+     * @param b movie id or user id two
+     * @param which true if the parameters are user ids, false if the
+     * parameters are movie ids
+     * @param procedure called with the block from a and the block from b
+     * for every match; returning false stops the join
+     * @return false if the procedure stopped the join, true otherwise
+     */
+    public boolean innerJoinOnMoviesOrRating(int a, int b, boolean which, 
+                                             IntIntProcedure procedure) {
+        return join(a, b, which, false, procedure);
+    }
+
+    /**
+     * Full outer joins together the data from two uids or two mids, 
+     * exactly like fullOuterJoinOnMoviesOrRating, but calls 
+     * procedure.apply(left, right) with each pair of blocks instead of 
+     * building a list.  The missing side of a pair is passed as 0.
+     * 
+     * @param a movie id or user id one
+     * @param b movie id or user id two
+     * @param which true if the parameters are user ids, false if the
+     * parameters are movie ids
+     * @param procedure called with the block from a and the block from b
+     * for every entry of the join; returning false stops the join
+     * @return false if the procedure stopped the join, true otherwise
+     */
+    public boolean fullOuterJoinOnMoviesOrRating(int a, int b, boolean which, 
+                                                 IntIntProcedure procedure) {
+        return join(a, b, which, true, procedure);
+    }
+
+    /**
+     * Sets the strategy used by the inner joins. The default,
+     * SortedJoin.ADAPTIVE, gallops through the longer list when 
+     * the two lists are very different in size and merges them
+     * otherwise.
+     *
+     * @param strategy SortedJoin.MERGE, SortedJoin.GALLOP or 
+     * SortedJoin.ADAPTIVE
+     */
+    public void setJoinStrategy(int strategy) {
+        joinStrategy = strategy;
+    }
+
+    /**
+     * Finds the two lists for a join and hands them to SortedJoin, 
+     * using either the MemReader lists or the RatingStore rows in place.
+     * 
+     * @param a movie id or user id one
+     * @param b movie id or user id two
+     * @param which true if the parameters are user ids, false if the
+     * parameters are movie ids
+     * @param outer true for a full outer join, false for an inner join
+     * @param procedure the procedure to apply to each entry of the join
+     * @return false if the procedure stopped the join, true otherwise
+     */
+    private boolean join(int a, int b, boolean which, boolean outer, 
+                         IntIntProcedure procedure) {
+        if (store != null) {
+            int rowA = which ? store.userRow(a) : store.movieRow(a);
+            int rowB = which ? store.userRow(b) : store.movieRow(b);
+            if (rowA < 0 || rowB < 0)
+                return true;
+
+            IntBuffer blocks = which ? store.getUserRatings() : store.getMovieRatings();
+            int startA = which ? store.userStart(rowA) : store.movieStart(rowA);
+            int endA = which ? store.userEnd(rowA) : store.movieEnd(rowA);
+            int startB = which ? store.userStart(rowB) : store.movieStart(rowB);
+            int endB = which ? store.userEnd(rowB) : store.movieEnd(rowB);
+
+            if (outer)
+                return SortedJoin.outerJoin(blocks, startA, endA, 
+                                            blocks, startB, endB, procedure);
+            else
+                return SortedJoin.innerJoin(blocks, startA, endA, 
+                                            blocks, startB, endB, 
+                                            joinStrategy, procedure);
         }
 
-        return match;
+        // Get the movies/users for each parameter
+        OpenIntObjectHashMap lists = which ? mr.custToMovie : mr.movieToCust;
+        IntArrayList left = (IntArrayList) lists.get(a);
+        IntArrayList right = (IntArrayList) lists.get(b);
+        if (left == null || right == null)
+            return true;
+
+        if (outer)
+            return SortedJoin.outerJoin(left.elements(), 0, left.size(), 
+                                        right.elements(), 0, right.size(), 
+                                        procedure);
+        else
+            return SortedJoin.innerJoin(left.elements(), 0, left.size(), 
+                                        right.elements(), 0, right.size(), 
+                                        joinStrategy, procedure);
+    }
+
+    /**
+     * Collects the entries of a join into a list of Pairs, 
+     * for the list-returning join methods.
+     */
+    private static class PairCollector implements IntIntProcedure {
+        ArrayList<Pair> pairs = new ArrayList<Pair>();
+
+        public boolean apply(int left, int right) {
+            pairs.add(new Pair(left, right));
+            return true;
+        }
     }
 
 
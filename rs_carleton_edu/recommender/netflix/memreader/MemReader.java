@@ -15,6 +15,9 @@ import cern.colt.function.*;
  * ids, and additional hashes contain the sum of the 
  * ratings for each user and movie, which allows 
  * for fast calculation of user and movie averages. 
+ * The RatingStats tables statsByCust and statsByMovie 
+ * are kept up to date as ratings are added, so the 
+ * standard deviations are just as quick to find. 
  *
  * This code is modified from an example provided by user
  * "voidanswer" on the Netflixprize forums. 
@@ -31,6 +34,8 @@ public class MemReader implements Serializable{
     public OpenIntObjectHashMap custToMovie;
     public OpenIntIntHashMap sumByCust;
     public OpenIntIntHashMap sumByMovie;
+    public RatingStats statsByCust;
+    public RatingStats statsByMovie;
 
 
     /**
@@ -41,6 +46,8 @@ public class MemReader implements Serializable{
         custToMovie = new OpenIntObjectHashMap();    
         sumByCust = new OpenIntIntHashMap();
         sumByMovie = new OpenIntIntHashMap();
+        statsByCust = new RatingStats();
+        statsByMovie = new RatingStats();
     }
 
 
@@ -52,6 +59,10 @@ public class MemReader implements Serializable{
      * and stores this data in the custToMovie and 
      * movieToCust hashtables. 
      *
+     * For large files such as the full Netflix training
+     * set, RatingFileLoader reads the same format in 
+     * parallel directly into a RatingStore. 
+     *
      * @param  fileName  The file containing the movie
      *                   data in the specified format.
      */
@@ -148,6 +159,46 @@ public class MemReader implements Serializable{
 
 
 
+    /**
+     * Reads a serialized MemReader. Files written before the
+     * statistics tables were added do not contain them, so 
+     * they are rebuilt from the hashes. 
+     */
+    private void readObject(ObjectInputStream in) 
+        throws IOException, ClassNotFoundException {
+
+        in.defaultReadObject();
+
+        if(statsByCust == null || statsByMovie == null) {
+            statsByCust = buildStats(custToMovie);
+            statsByMovie = buildStats(movieToCust);
+        }
+    }
+
+
+    /**
+     * Builds a RatingStats table from one of the hashes.
+     *
+     * @param  lists  Either custToMovie or movieToCust.
+     * @return The statistics for every key in the hash.
+     */
+    private static RatingStats buildStats(OpenIntObjectHashMap lists) {
+
+        final RatingStats stats = new RatingStats();
+
+        lists.forEachPair(new IntObjectProcedure() {
+                public boolean apply(int id, Object value) {
+                    IntArrayList list = (IntArrayList) value;
+                    for(int i = 0; i < list.size(); i++)
+                        stats.add(id, MemHelper.parseRating(list.getQuick(i)));
+                    return true;
+                }
+            });
+
+        return stats;
+    }
+
+
     /**
      * Adds an entry to the movieToCust hashtable. The
      * uid and rating are packed into one int to 
@@ -176,6 +227,7 @@ public class MemReader implements Serializable{
 
         int sum = sumByMovie.get(mid);
         sumByMovie.put(mid, sum + rating);
+        statsByMovie.add(mid, rating);
 
     }
 
@@ -206,6 +258,61 @@ public class MemReader implements Serializable{
 
         int sum = sumByCust.get(uid);
         sumByCust.put(uid, sum + rating);
+        statsByCust.add(uid, rating);
+    }
+
+
+    /**
+     * Removes a user's rating for a movie from both hashes,
+     * the sums and the statistics tables, so they all stay
+     * in step.
+     *
+     * @param  uid  The user id.
+     * @param  mid  The movie id.
+     * @return The rating that was removed, or -99 if the
+     *         user had not rated the movie.
+     */
+    public int removeRating(int uid, int mid) {
+
+        int rating = removeFromList((IntArrayList) custToMovie.get(uid), mid);
+
+        if(rating == -99)
+            return -99;
+
+        removeFromList((IntArrayList) movieToCust.get(mid), uid);
+
+        sumByCust.put(uid, sumByCust.get(uid) - rating);
+        sumByMovie.put(mid, sumByMovie.get(mid) - rating);
+        statsByCust.remove(uid, rating);
+        statsByMovie.remove(mid, rating);
+
+        return rating;
+    }
+
+
+    /**
+     * Removes the entry for an id from a list of packed
+     * ratings, keeping the order of the rest.
+     *
+     * @param  list  The list, which may be null.
+     * @param  id  The uid or mid to remove.
+     * @return The rating of the removed entry, or -99 if
+     *         the id is not in the list.
+     */
+    private static int removeFromList(IntArrayList list, int id) {
+
+        if(list == null)
+            return -99;
+
+        for(int i = 0; i < list.size(); i++) {
+            if(MemHelper.parseUserOrMovie(list.getQuick(i)) == id) {
+                int rating = MemHelper.parseRating(list.getQuick(i));
+                list.remove(i);
+                return rating;
+            }
+        }
+
+        return -99;
     }
 
 
@@ -0,0 +1,422 @@
+package netflix.memreader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import netflix.utilities.Timer227;
+import cern.colt.list.ByteArrayList;
+import cern.colt.list.IntArrayList;
+
+/**
+ * Loads a text file in the form
+ *
+ * mid,uid,rating
+ *
+ * (the same format read by MemReader.readData, any trailing
+ * fields such as a date are ignored) directly into a RatingStore.
+ *
+ * The file is split into one chunk per thread on line
+ * boundaries. Each thread reads its chunk through a FileChannel
+ * and parses the bytes itself, without creating a String per
+ * line, into its own primitive buffers. The buffers are then
+ * merged into sorted user and movie rows with a single counting
+ * sort pass, so there is no need to build the hashes and sort
+ * every list afterwards the way sortHashes does.
+ *
+ * While loading, the throughput is reported once a second.
+ */
+public class RatingFileLoader {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private int numThreads;
+    private AtomicLong bytesRead;
+
+    /**
+     * Creates a loader that uses one thread per processor.
+     */
+    public RatingFileLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a loader that uses the specified number
+     * of threads.
+     *
+     * @param  numThreads  The number of parsing threads.
+     */
+    public RatingFileLoader(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+        bytesRead = new AtomicLong();
+    }
+
+    /**
+     * Reads the rating file into a RatingStore.
+     *
+     * @param  fileName  The file containing the movie
+     *                   data in the specified format.
+     * @return A RatingStore containing every rating in the file.
+     */
+    public RatingStore load(String fileName) throws IOException {
+
+        Timer227 timer = new Timer227();
+        timer.start();
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        ExecutorService pool = null;
+
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            long[] bounds = findChunks(channel, size);
+
+            pool = Executors.newFixedThreadPool(numThreads);
+            ArrayList<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+            bytesRead.set(0);
+
+            for(int i = 0; i < numThreads; i++) {
+                futures.add(pool.submit(new Chunk(channel, bounds[i], bounds[i+1])));
+            }
+            pool.shutdown();
+
+            long last = 0;
+            while(!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                long read = bytesRead.get();
+                System.out.println("Read " + (read >> 20) + " of " + (size >> 20)
+                                   + " MB (" + ((read - last) >> 20) + " MB/s)");
+                last = read;
+            }
+
+            Chunk[] chunks = new Chunk[numThreads];
+            for(int i = 0; i < numThreads; i++) {
+                chunks[i] = futures.get(i).get();
+            }
+
+            RatingStore store = merge(chunks);
+
+            timer.stop();
+            double seconds = timer.getMilliTime() / 1000.0;
+            System.out.println("Loaded " + store.getNumberOfRatings() + " ratings in "
+                               + seconds + " s ("
+                               + (long) (store.getNumberOfRatings() / seconds)
+                               + " ratings/s)");
+            return store;
+        }
+        catch(InterruptedException e) {
+            throw new IOException("Interrupted while loading " + fileName);
+        }
+        catch(ExecutionException e) {
+            throw new IOException("Error parsing " + fileName + ": " + e.getCause());
+        }
+        finally {
+            // Stop any chunks still reading before the file is closed
+            if(pool != null)
+                pool.shutdownNow();
+            file.close();
+        }
+    }
+
+    /**
+     * Splits the file into one chunk per thread. Each
+     * chunk starts at the beginning of a line.
+     *
+     * @param  channel  The file channel.
+     * @param  size  The size of the file.
+     * @return The start of each chunk, followed by the
+     *         size of the file.
+     */
+    private long[] findChunks(FileChannel channel, long size) throws IOException {
+
+        long[] bounds = new long[numThreads + 1];
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        bounds[numThreads] = size;
+        for(int i = 1; i < numThreads; i++) {
+            long pos = Math.max(bounds[i-1], size / numThreads * i);
+
+            // Move past the end of the line that pos falls in
+            boolean found = false;
+            while(!found && pos < size) {
+                buffer.clear();
+                int n = channel.read(buffer, pos);
+                for(int j = 0; j < n && !found; j++) {
+                    if(buffer.get(j) == '\n') {
+                        pos += j + 1;
+                        found = true;
+                    }
+                }
+                if(!found)
+                    pos += n;
+            }
+            bounds[i] = Math.min(pos, size);
+        }
+
+        return bounds;
+    }
+
+    /**
+     * Merges the per-thread buffers into a RatingStore.
+     * The rows are filled in with a counting sort in file
+     * order, and each row is sorted afterwards only if it
+     * is not already in order.
+     *
+     * @param  chunks  The parsed chunks.
+     * @return The merged RatingStore.
+     */
+    private RatingStore merge(Chunk[] chunks) {
+
+        int maxUid = 0, maxMid = 0;
+        long total = 0;
+
+        for(Chunk c : chunks) {
+            maxUid = Math.max(maxUid, c.maxUid);
+            maxMid = Math.max(maxMid, c.maxMid);
+            total += c.mids.size();
+        }
+
+        if(total > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many ratings: " + total);
+
+        // Count the ratings for each user and movie
+        int[] userCount = new int[maxUid + 1];
+        int[] movieCount = new int[maxMid + 1];
+
+        for(Chunk c : chunks) {
+            int[] mids = c.mids.elements(), uids = c.uids.elements();
+            for(int i = 0; i < c.mids.size(); i++) {
+                userCount[uids[i]]++;
+                movieCount[mids[i]]++;
+            }
+        }
+
+        int[] userIds = nonEmpty(userCount);
+        int[] movieIds = nonEmpty(movieCount);
+        int[] userOffsets = new int[userIds.length + 1];
+        int[] movieOffsets = new int[movieIds.length + 1];
+
+        // Turn the counts into the next free position of each row
+        toCursors(userIds, userCount, userOffsets);
+        toCursors(movieIds, movieCount, movieOffsets);
+
+        int[] userRatings = new int[(int) total];
+        int[] movieRatings = new int[(int) total];
+
+        for(Chunk c : chunks) {
+            int[] mids = c.mids.elements(), uids = c.uids.elements();
+            byte[] ratings = c.ratings.elements();
+            for(int i = 0; i < c.mids.size(); i++) {
+                userRatings[userCount[uids[i]]++] = mids[i]<<8 | ratings[i];
+                movieRatings[movieCount[mids[i]]++] = uids[i]<<8 | ratings[i];
+            }
+        }
+
+        sortRows(userOffsets, userRatings);
+        sortRows(movieOffsets, movieRatings);
+
+        return new RatingStore(userIds, userOffsets, userRatings,
+                               movieIds, movieOffsets, movieRatings);
+    }
+
+    /**
+     * Returns the ids that have at least one rating.
+     *
+     * @param  counts  The number of ratings for each id.
+     * @return The sorted ids with a non-zero count.
+     */
+    private static int[] nonEmpty(int[] counts) {
+
+        IntArrayList ids = new IntArrayList();
+        for(int i = 0; i < counts.length; i++) {
+            if(counts[i] > 0)
+                ids.add(i);
+        }
+        ids.trimToSize();
+
+        return ids.elements();
+    }
+
+    /**
+     * Fills in the row offsets from the counts, and replaces
+     * each count with the start of its row so that it can
+     * be used as a write cursor.
+     *
+     * @param  ids  The sorted ids.
+     * @param  counts  The counts, indexed by id.
+     * @param  offsets  The offsets to fill in.
+     */
+    private static void toCursors(int[] ids, int[] counts, int[] offsets) {
+
+        int pos = 0, count;
+        for(int i = 0; i < ids.length; i++) {
+            offsets[i] = pos;
+            count = counts[ids[i]];
+            counts[ids[i]] = pos;
+            pos += count;
+        }
+        offsets[ids.length] = pos;
+    }
+
+    /**
+     * Sorts every row that is not already in ascending
+     * order, splitting the rows between the threads.
+     *
+     * @param  offsets  The row offsets.
+     * @param  blocks  The packed blocks.
+     */
+    private void sortRows(final int[] offsets, final int[] blocks) {
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        final int rows = offsets.length - 1;
+
+        for(int t = 0; t < numThreads; t++) {
+            final int first = (int) ((long) rows * t / numThreads);
+            final int last = (int) ((long) rows * (t + 1) / numThreads);
+
+            pool.execute(new Runnable() {
+                    public void run() {
+                        for(int i = first; i < last; i++) {
+                            if(!isSorted(blocks, offsets[i], offsets[i+1]))
+                                Arrays.sort(blocks, offsets[i], offsets[i+1]);
+                        }
+                    }
+                });
+        }
+        pool.shutdown();
+
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks whether part of an array is in ascending order.
+     */
+    private static boolean isSorted(int[] blocks, int from, int to) {
+        for(int i = from + 1; i < to; i++) {
+            if(blocks[i-1] > blocks[i])
+                return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Parses one chunk of the file into primitive buffers.
+     * The parser is a small state machine over the raw bytes,
+     * so lines that straddle two reads need no special care.
+     */
+    private class Chunk implements Callable<Chunk> {
+
+        FileChannel channel;
+        long start, end;
+
+        IntArrayList mids, uids;
+        ByteArrayList ratings;
+        int maxUid, maxMid;
+
+        Chunk(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+
+            int estimate = (int) Math.min((end - start) / 12, Integer.MAX_VALUE - 8);
+            mids = new IntArrayList(estimate);
+            uids = new IntArrayList(estimate);
+            ratings = new ByteArrayList(estimate);
+        }
+
+        public Chunk call() throws IOException {
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            long pos = start;
+            int field = 0, value = 0, mid = 0, uid = 0, rating = 0, n;
+            byte b;
+
+            while(pos < end) {
+                buffer.clear();
+                if(end - pos < buffer.capacity())
+                    buffer.limit((int) (end - pos));
+
+                n = channel.read(buffer, pos);
+                if(n <= 0)
+                    break;
+                pos += n;
+
+                for(int i = 0; i < n; i++) {
+                    b = buffer.get(i);
+
+                    if(b >= '0' && b <= '9') {
+                        value = value * 10 + (b - '0');
+                    }
+                    else if(b == ',') {
+                        if(field == 0)
+                            mid = value;
+                        else if(field == 1)
+                            uid = value;
+                        else if(field == 2)
+                            rating = value;
+                        field++;
+                        value = 0;
+                    }
+                    else if(b == '\n') {
+                        if(field == 2)
+                            rating = value;
+                        addLine(field, mid, uid, rating);
+                        field = 0;
+                        value = 0;
+                    }
+                }
+                bytesRead.addAndGet(n);
+            }
+
+            // The last line may not end in a newline
+            if(field == 2)
+                rating = value;
+            addLine(field, mid, uid, rating);
+
+            return this;
+        }
+
+        /**
+         * Adds a completed line, if it had at least three fields.
+         */
+        private void addLine(int field, int mid, int uid, int rating) {
+
+            if(field < 2 || (mid == 0 && uid == 0))
+                return;
+
+            mids.add(mid);
+            uids.add(uid);
+            ratings.add((byte) rating);
+            if(uid > maxUid)
+                maxUid = uid;
+            if(mid > maxMid)
+                maxMid = mid;
+        }
+    }
+
+
+    public static void main(String args[]) {
+
+        try {
+            String sourceFile = args[0];
+            String destFile = args[1];
+            RatingFileLoader loader = args.length > 2 ?
+                new RatingFileLoader(Integer.parseInt(args[2])) : new RatingFileLoader();
+
+            RatingStore.write(destFile, loader.load(sourceFile));
+        }
+        catch(Exception e) {
+            System.out.println("usage: java RatingFileLoader sourceFile destFile [threads]");
+            e.printStackTrace();
+        }
+    }
+}
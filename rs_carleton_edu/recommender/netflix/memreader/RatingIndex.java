@@ -0,0 +1,128 @@
+package netflix.memreader;
+
+/**
+ * An open-addressing hash from (uid, mid) to rating, built
+ * alongside a RatingStore so that a single rating can be looked
+ * up with one probe instead of a binary search.
+ *
+ * Each entry is packed into one long as
+ *
+ *   uid<<32 | mid<<8 | rating
+ *
+ * and stored in a single array with linear probing, so a lookup
+ * usually touches one cache line. Empty slots hold 0, which can
+ * never be a real entry since ratings are at least 1. The table
+ * is kept at most half full, which costs 16 bytes per rating.
+ *
+ * Since the RatingStore is immutable, the index never needs to
+ * be updated after it is built.
+ */
+public class RatingIndex {
+
+    private static final long EMPTY = 0L;
+
+    private long[] table;
+    private int mask;
+    private int shift;
+    private int size;
+
+    /**
+     * Builds an index over every rating in the store.
+     *
+     * @param  store  The RatingStore to index.
+     */
+    public RatingIndex(RatingStore store) {
+
+        int numRatings = store.getNumberOfRatings();
+        int capacity = 2;
+        while(capacity < 2L * numRatings && capacity < (1 << 30))
+            capacity <<= 1;
+
+        table = new long[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+
+        int uid, block;
+        for(int row = 0; row < store.getNumberOfUsers(); row++) {
+            uid = store.userId(row);
+            for(int pos = store.userStart(row); pos < store.userEnd(row); pos++) {
+                block = store.userBlock(pos);
+                put(uid, MemHelper.parseUserOrMovie(block), MemHelper.parseRating(block));
+            }
+        }
+    }
+
+    /**
+     * Returns the rating that the user gave the movie.
+     *
+     * @param  uid  The user id.
+     * @param  mid  The movie id.
+     * @return The rating, or -99 if there is none.
+     */
+    public int getRating(int uid, int mid) {
+
+        long key = key(uid, mid), entry;
+        int slot = slot(key);
+
+        while((entry = table[slot]) != EMPTY) {
+            if((entry & ~0xFFL) == key)
+                return (int) (entry & 0xFF);
+            slot = (slot + 1) & mask;
+        }
+
+        return -99;
+    }
+
+    /**
+     * Returns the number of ratings in the index.
+     *
+     * @return The number of ratings.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of slots in the table.
+     *
+     * @return The capacity of the table.
+     */
+    public int capacity() {
+        return table.length;
+    }
+
+    /**
+     * Adds a rating to the table.
+     */
+    private void put(int uid, int mid, int rating) {
+
+        long key = key(uid, mid);
+        int slot = slot(key);
+
+        while(table[slot] != EMPTY) {
+            if((table[slot] & ~0xFFL) == key) {
+                table[slot] = key | rating;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot] = key | rating;
+        size++;
+    }
+
+    /**
+     * Packs a uid and mid into the upper bits of an entry.
+     */
+    private static long key(int uid, int mid) {
+        return (long) uid << 32 | (long) mid << 8;
+    }
+
+    /**
+     * Finds the home slot of a key with a multiplicative hash,
+     * taking the top bits of the product.
+     */
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+}
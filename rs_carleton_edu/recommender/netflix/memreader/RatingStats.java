@@ -0,0 +1,219 @@
+package netflix.memreader;
+
+import java.io.Serializable;
+
+/**
+ * A columnar table of rating statistics for either the users or
+ * the movies in a dataset. For each id it keeps the number of
+ * ratings, their sum and their sum of squares in parallel arrays
+ * indexed directly by id, along with running totals for the whole
+ * dataset, so the mean and standard deviation of any user or
+ * movie, and the global mean, are available in O(1).
+ *
+ * The table is updated one rating at a time with add and remove,
+ * which is how MemReader keeps it current. Since ids are packed
+ * into the upper 24 bits of a block, they are less than 2^23,
+ * and the arrays grow as larger ids appear.
+ */
+public class RatingStats implements Serializable {
+
+    private static final long serialVersionUID = 3817520661432118805L;
+
+    private int[] counts;
+    private int[] sums;
+    private int[] sumsOfSquares;
+
+    private long totalCount;
+    private long totalSum;
+
+    /**
+     * Creates an empty table.
+     */
+    public RatingStats() {
+        counts = new int[16];
+        sums = new int[16];
+        sumsOfSquares = new int[16];
+    }
+
+    /**
+     * Builds the user table for a RatingStore.
+     *
+     * @param  store  The RatingStore.
+     * @return The statistics for every user in the store.
+     */
+    public static RatingStats forUsers(RatingStore store) {
+        RatingStats stats = new RatingStats();
+
+        // Start with the largest id, so the arrays only grow once
+        for(int row = store.getNumberOfUsers() - 1; row >= 0; row--) {
+            int uid = store.userId(row);
+            for(int pos = store.userStart(row); pos < store.userEnd(row); pos++)
+                stats.add(uid, MemHelper.parseRating(store.userBlock(pos)));
+        }
+
+        return stats;
+    }
+
+    /**
+     * Builds the movie table for a RatingStore.
+     *
+     * @param  store  The RatingStore.
+     * @return The statistics for every movie in the store.
+     */
+    public static RatingStats forMovies(RatingStore store) {
+        RatingStats stats = new RatingStats();
+
+        // Start with the largest id, so the arrays only grow once
+        for(int row = store.getNumberOfMovies() - 1; row >= 0; row--) {
+            int mid = store.movieId(row);
+            for(int pos = store.movieStart(row); pos < store.movieEnd(row); pos++)
+                stats.add(mid, MemHelper.parseRating(store.movieBlock(pos)));
+        }
+
+        return stats;
+    }
+
+    /**
+     * Adds one rating to the table.
+     *
+     * @param  id  The uid or mid.
+     * @param  rating  The rating.
+     */
+    public void add(int id, int rating) {
+        if(id >= counts.length)
+            grow(id + 1);
+
+        counts[id]++;
+        sums[id] += rating;
+        sumsOfSquares[id] += rating * rating;
+        totalCount++;
+        totalSum += rating;
+    }
+
+    /**
+     * Removes one rating from the table, such as when the probe
+     * ratings are taken out of a training set.
+     *
+     * @param  id  The uid or mid.
+     * @param  rating  The rating, which must have been added.
+     * @throws IllegalArgumentException if the id has no ratings.
+     */
+    public void remove(int id, int rating) throws IllegalArgumentException {
+        if(getCount(id) == 0)
+            throw new IllegalArgumentException("No ratings for id " + id);
+
+        counts[id]--;
+        sums[id] -= rating;
+        sumsOfSquares[id] -= rating * rating;
+        totalCount--;
+        totalSum -= rating;
+    }
+
+    /**
+     * Returns the number of ratings for an id.
+     *
+     * @param  id  The uid or mid.
+     * @return The number of ratings.
+     */
+    public int getCount(int id) {
+        return id >= 0 && id < counts.length ? counts[id] : 0;
+    }
+
+    /**
+     * Returns the sum of the ratings for an id.
+     *
+     * @param  id  The uid or mid.
+     * @return The sum of the ratings.
+     */
+    public int getSum(int id) {
+        return id >= 0 && id < sums.length ? sums[id] : 0;
+    }
+
+    /**
+     * Returns the sum of the squared ratings for an id.
+     *
+     * @param  id  The uid or mid.
+     * @return The sum of the squared ratings.
+     */
+    public int getSumOfSquares(int id) {
+        return id >= 0 && id < sumsOfSquares.length ? sumsOfSquares[id] : 0;
+    }
+
+    /**
+     * Returns the mean rating for an id.
+     *
+     * @param  id  The uid or mid.
+     * @return The mean rating, or 0 if there are no ratings.
+     */
+    public double getMean(int id) {
+        int count = getCount(id);
+        return count == 0 ? 0.0 : (double) getSum(id) / (double) count;
+    }
+
+    /**
+     * Returns the sample standard deviation of the ratings for
+     * an id. The variance is worked out from the exact integer
+     * sums as (n * sumsq - sum^2) / (n * (n - 1)), so there is no
+     * cancellation error. An id with a single rating has a
+     * standard deviation of 0.
+     *
+     * @param  id  The uid or mid.
+     * @return The standard deviation, or 0 if there are fewer
+     *         than two ratings.
+     */
+    public double getStandardDeviation(int id) {
+        long n = getCount(id);
+        if(n < 2)
+            return 0.0;
+
+        long sum = getSum(id);
+        long numerator = n * getSumOfSquares(id) - sum * sum;
+        return Math.sqrt((double) numerator / (double) (n * (n - 1)));
+    }
+
+    /**
+     * Returns the number of ratings in the table.
+     *
+     * @return The total number of ratings.
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Returns the sum of all the ratings in the table.
+     *
+     * @return The total sum of the ratings.
+     */
+    public long getTotalSum() {
+        return totalSum;
+    }
+
+    /**
+     * Returns the mean of all the ratings in the table.
+     *
+     * @return The global mean, or NaN if the table is empty.
+     */
+    public double getGlobalMean() {
+        return (double) totalSum / (double) totalCount;
+    }
+
+    /**
+     * Grows the arrays to hold at least the specified
+     * number of ids, doubling their size.
+     */
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, counts.length * 2);
+
+        int[] newCounts = new int[capacity];
+        int[] newSums = new int[capacity];
+        int[] newSumsOfSquares = new int[capacity];
+        System.arraycopy(counts, 0, newCounts, 0, counts.length);
+        System.arraycopy(sums, 0, newSums, 0, sums.length);
+        System.arraycopy(sumsOfSquares, 0, newSumsOfSquares, 0, sumsOfSquares.length);
+
+        counts = newCounts;
+        sums = newSums;
+        sumsOfSquares = newSumsOfSquares;
+    }
+}
@@ -0,0 +1,683 @@
+package netflix.memreader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import cern.colt.list.IntArrayList;
+
+/**
+ * An immutable, compressed-sparse-row (CSR) copy of the ratings
+ * held by a MemReader.
+ *
+ * For each direction (users and movies) the store keeps a sorted
+ * array of ids, an offsets array and one packed array of
+ * id<<8 | rating blocks, in the same format that MemReader uses.
+ * The ratings for row i are found between offsets[i] (inclusive)
+ * and offsets[i+1] (exclusive), sorted in ascending order, so
+ * every scan over a user's or movie's ratings is a sequential
+ * walk over a flat int array.
+ *
+ * Compared to the OpenIntObjectHashMap of IntArrayLists used by
+ * MemReader, this keeps the whole dataset in a handful of large
+ * arrays instead of one object per user and movie, which matters
+ * a great deal for the garbage collector on the Netflix data.
+ *
+ * Ids are mapped to rows through a dense lookup table. Since
+ * ids are packed into the upper 24 bits of a block, they can
+ * never exceed 2^23, so the table stays reasonably small.
+ *
+ * A RatingStore can be written to a binary file with write and
+ * opened again with map. The file is memory-mapped and queried
+ * in place rather than read into the heap, so opening even the
+ * full Netflix data is nearly instant, and several JVMs on the
+ * same machine share one copy of it in the page cache. The
+ * layout of the file is (all values are little-endian ints):
+ *
+ *   magic, version, numUsers, numMovies, numRatings
+ *   userIds[numUsers]
+ *   userOffsets[numUsers + 1]
+ *   userRatings[numRatings]
+ *   userSums[numUsers]
+ *   movieIds[numMovies]
+ *   movieOffsets[numMovies + 1]
+ *   movieRatings[numRatings]
+ *   movieSums[numMovies]
+ *
+ * Only the id to row tables are rebuilt in the heap when a file
+ * is opened.
+ */
+public class RatingStore {
+
+    /** Identifies a RatingStore file ("RSTR"). */
+    public static final int MAGIC = 0x52535452;
+
+    /** The current version of the file layout. */
+    public static final int VERSION = 1;
+
+    private static final int HEADER_INTS = 5;
+
+    private IntBuffer userIds;
+    private int[] userIndex;
+    private IntBuffer userOffsets;
+    private IntBuffer userRatings;
+    private IntBuffer userSums;
+
+    private IntBuffer movieIds;
+    private int[] movieIndex;
+    private IntBuffer movieOffsets;
+    private IntBuffer movieRatings;
+    private IntBuffer movieSums;
+
+    /**
+     * Constructs a RatingStore from already built CSR arrays.
+     * The ids must be sorted in ascending order, and the
+     * blocks for each row must be sorted as well.
+     *
+     * @param  userIds  Sorted user ids.
+     * @param  userOffsets  Row offsets into userRatings, of
+     *                      length userIds.length + 1.
+     * @param  userRatings  Packed mid/rating blocks.
+     * @param  movieIds  Sorted movie ids.
+     * @param  movieOffsets  Row offsets into movieRatings, of
+     *                       length movieIds.length + 1.
+     * @param  movieRatings  Packed uid/rating blocks.
+     */
+    RatingStore(int[] userIds, int[] userOffsets, int[] userRatings,
+                int[] movieIds, int[] movieOffsets, int[] movieRatings) {
+
+        this.userIds = IntBuffer.wrap(userIds);
+        this.userOffsets = IntBuffer.wrap(userOffsets);
+        this.userRatings = IntBuffer.wrap(userRatings);
+        this.movieIds = IntBuffer.wrap(movieIds);
+        this.movieOffsets = IntBuffer.wrap(movieOffsets);
+        this.movieRatings = IntBuffer.wrap(movieRatings);
+
+        userIndex = buildIndex(this.userIds);
+        movieIndex = buildIndex(this.movieIds);
+        userSums = IntBuffer.wrap(buildSums(userOffsets, userRatings));
+        movieSums = IntBuffer.wrap(buildSums(movieOffsets, movieRatings));
+    }
+
+    /**
+     * Constructs a RatingStore over buffers that were
+     * mapped from a file. 
+     */
+    private RatingStore(IntBuffer userIds, IntBuffer userOffsets,
+                        IntBuffer userRatings, IntBuffer userSums,
+                        IntBuffer movieIds, IntBuffer movieOffsets,
+                        IntBuffer movieRatings, IntBuffer movieSums) {
+
+        this.userIds = userIds;
+        this.userOffsets = userOffsets;
+        this.userRatings = userRatings;
+        this.userSums = userSums;
+        this.movieIds = movieIds;
+        this.movieOffsets = movieOffsets;
+        this.movieRatings = movieRatings;
+        this.movieSums = movieSums;
+
+        userIndex = buildIndex(userIds);
+        movieIndex = buildIndex(movieIds);
+    }
+
+    /**
+     * Builds a RatingStore containing all of the ratings
+     * currently held by the specified MemReader. The
+     * MemReader is not modified, and does not need to
+     * have been sorted.
+     *
+     * @param  mr  The MemReader to copy.
+     * @return A RatingStore with the same ratings as mr.
+     */
+    public static RatingStore build(MemReader mr) {
+
+        IntArrayList users = mr.custToMovie.keys();
+        IntArrayList movies = mr.movieToCust.keys();
+        users.sort();
+        movies.sort();
+        users.trimToSize();
+        movies.trimToSize();
+
+        int[] userIds = users.elements();
+        int[] movieIds = movies.elements();
+
+        int[] userOffsets = new int[userIds.length + 1];
+        int[] userRatings = copyRows(mr, userIds, userOffsets, true);
+        int[] movieOffsets = new int[movieIds.length + 1];
+        int[] movieRatings = copyRows(mr, movieIds, movieOffsets, false);
+
+        return new RatingStore(userIds, userOffsets, userRatings,
+                               movieIds, movieOffsets, movieRatings);
+    }
+
+    /**
+     * Copies every row of one of the MemReader hashes into a
+     * single packed array, filling in the offsets as it goes.
+     * Each row is sorted after it is copied.
+     *
+     * @param  mr  The MemReader to copy from.
+     * @param  ids  The sorted keys of the hash.
+     * @param  offsets  The offsets array to fill in.
+     * @param  users  true to copy custToMovie, false for movieToCust.
+     * @return The packed blocks for all rows.
+     */
+    private static int[] copyRows(MemReader mr, int[] ids, int[] offsets,
+                                  boolean users) {
+
+        IntArrayList list;
+        long total = 0;
+
+        for(int i = 0; i < ids.length; i++) {
+            list = (IntArrayList) (users ? mr.custToMovie.get(ids[i])
+                                   : mr.movieToCust.get(ids[i]));
+            total += list.size();
+        }
+
+        if(total > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many ratings: " + total);
+
+        int[] blocks = new int[(int) total];
+        int pos = 0;
+
+        for(int i = 0; i < ids.length; i++) {
+            list = (IntArrayList) (users ? mr.custToMovie.get(ids[i])
+                                   : mr.movieToCust.get(ids[i]));
+            offsets[i] = pos;
+            System.arraycopy(list.elements(), 0, blocks, pos, list.size());
+            Arrays.sort(blocks, pos, pos + list.size());
+            pos += list.size();
+        }
+        offsets[ids.length] = pos;
+
+        return blocks;
+    }
+
+    /**
+     * Builds the dense id to row lookup table for a sorted
+     * list of ids. Entries for ids that are not present
+     * are set to -1.
+     *
+     * @param  ids  The sorted ids.
+     * @return The lookup table.
+     */
+    private static int[] buildIndex(IntBuffer ids) {
+
+        int n = ids.limit();
+        int max = n == 0 ? -1 : ids.get(n - 1);
+        int[] index = new int[max + 1];
+
+        Arrays.fill(index, -1);
+        for(int i = 0; i < n; i++) {
+            index[ids.get(i)] = i;
+        }
+
+        return index;
+    }
+
+    /**
+     * Sums the ratings in each row.
+     *
+     * @param  offsets  The row offsets.
+     * @param  blocks  The packed blocks.
+     * @return The sum of the ratings for each row.
+     */
+    private static int[] buildSums(int[] offsets, int[] blocks) {
+
+        int[] sums = new int[offsets.length - 1];
+
+        for(int i = 0; i < sums.length; i++) {
+            int sum = 0;
+            for(int j = offsets[i]; j < offsets[i+1]; j++) {
+                sum += blocks[j] & 0xFF;
+            }
+            sums[i] = sum;
+        }
+
+        return sums;
+    }
+
+
+    /**
+     * Writes a RatingStore to a binary file that can be
+     * opened again with map. 
+     *
+     * @param  fileName  The file to write to. 
+     * @param  store  The RatingStore to write. 
+     */
+    public static void write(String fileName, RatingStore store) {
+
+        try {
+            FileOutputStream fos = new FileOutputStream(fileName);
+            FileChannel channel = fos.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(store.getNumberOfUsers());
+            buffer.putInt(store.getNumberOfMovies());
+            buffer.putInt(store.getNumberOfRatings());
+
+            writeInts(channel, buffer, store.userIds);
+            writeInts(channel, buffer, store.userOffsets);
+            writeInts(channel, buffer, store.userRatings);
+            writeInts(channel, buffer, store.userSums);
+            writeInts(channel, buffer, store.movieIds);
+            writeInts(channel, buffer, store.movieOffsets);
+            writeInts(channel, buffer, store.movieRatings);
+            writeInts(channel, buffer, store.movieSums);
+
+            buffer.flip();
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            fos.close();
+        }
+        catch(FileNotFoundException e) {
+            System.out.println("Can't find file " + fileName);
+            e.printStackTrace();
+        }
+        catch(IOException e) {
+            System.out.println("IO error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Appends the contents of an IntBuffer to the file, 
+     * flushing the staging buffer whenever it fills up. 
+     *
+     * @param  channel  The channel to write to. 
+     * @param  buffer  The staging buffer. 
+     * @param  ints  The ints to write. 
+     */
+    private static void writeInts(FileChannel channel, ByteBuffer buffer,
+                                  IntBuffer ints) throws IOException {
+
+        IntBuffer source = ints.duplicate();
+        IntBuffer chunk;
+        int count;
+
+        source.position(0);
+        while(source.hasRemaining()) {
+            if(buffer.remaining() < 4) {
+                buffer.flip();
+                while(buffer.hasRemaining())
+                    channel.write(buffer);
+                buffer.clear();
+            }
+
+            count = Math.min(buffer.remaining() / 4, source.remaining());
+            chunk = source.slice();
+            chunk.limit(count);
+            buffer.asIntBuffer().put(chunk);
+            buffer.position(buffer.position() + count * 4);
+            source.position(source.position() + count);
+        }
+    }
+
+    /**
+     * Opens a RatingStore file written by write. The
+     * ratings are memory-mapped read-only and are not 
+     * copied into the heap. 
+     *
+     * @param  fileName  The RatingStore file. 
+     * @return The mapped RatingStore, or null if the file
+     *         could not be read. 
+     */
+    public static RatingStore map(String fileName) {
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(fileName, "r");
+            FileChannel channel = file.getChannel();
+
+            IntBuffer header = mapInts(channel, 0, HEADER_INTS);
+            if(header.get(0) != MAGIC)
+                throw new IOException(fileName + " is not a RatingStore file");
+            if(header.get(1) != VERSION)
+                throw new IOException("Unsupported RatingStore version " 
+                                      + header.get(1));
+
+            int numUsers = header.get(2);
+            int numMovies = header.get(3);
+            int numRatings = header.get(4);
+            long pos = HEADER_INTS * 4L;
+
+            IntBuffer userIds = mapInts(channel, pos, numUsers);
+            pos += numUsers * 4L;
+            IntBuffer userOffsets = mapInts(channel, pos, numUsers + 1);
+            pos += (numUsers + 1) * 4L;
+            IntBuffer userRatings = mapInts(channel, pos, numRatings);
+            pos += numRatings * 4L;
+            IntBuffer userSums = mapInts(channel, pos, numUsers);
+            pos += numUsers * 4L;
+            IntBuffer movieIds = mapInts(channel, pos, numMovies);
+            pos += numMovies * 4L;
+            IntBuffer movieOffsets = mapInts(channel, pos, numMovies + 1);
+            pos += (numMovies + 1) * 4L;
+            IntBuffer movieRatings = mapInts(channel, pos, numRatings);
+            pos += numRatings * 4L;
+            IntBuffer movieSums = mapInts(channel, pos, numMovies);
+
+            // The mappings stay valid after the file is closed
+            file.close();
+
+            return new RatingStore(userIds, userOffsets, userRatings, userSums,
+                                   movieIds, movieOffsets, movieRatings, movieSums);
+        }
+        catch(FileNotFoundException e) {
+            System.out.println("Can't find file " + fileName);
+            e.printStackTrace();
+        }
+        catch(IOException e) {
+            System.out.println("IO error");
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Maps a section of the file as little-endian ints. 
+     *
+     * @param  channel  The file channel. 
+     * @param  pos  The byte offset of the section. 
+     * @param  count  The number of ints in the section. 
+     * @return A read-only IntBuffer over the section. 
+     */
+    private static IntBuffer mapInts(FileChannel channel, long pos, int count)
+        throws IOException {
+
+        ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY,
+                                       pos, count * 4L);
+        return bytes.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     * Checks whether a file starts with the RatingStore
+     * magic number. 
+     *
+     * @param  fileName  The file to check. 
+     * @return true if the file is a RatingStore file. 
+     */
+    public static boolean isRatingStoreFile(String fileName) {
+
+        try {
+            FileInputStream in = new FileInputStream(fileName);
+            byte[] magic = new byte[4];
+            int read = in.read(magic);
+            in.close();
+
+            return read == 4 && ByteBuffer.wrap(magic)
+                .order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns the row for a user, or -1 if the
+     * user has no ratings.
+     *
+     * @param  uid  The user id.
+     * @return The row for uid, or -1.
+     */
+    public int userRow(int uid) {
+        if(uid < 0 || uid >= userIndex.length)
+            return -1;
+        return userIndex[uid];
+    }
+
+    /**
+     * Returns the row for a movie, or -1 if the
+     * movie has no ratings.
+     *
+     * @param  mid  The movie id.
+     * @return The row for mid, or -1.
+     */
+    public int movieRow(int mid) {
+        if(mid < 0 || mid >= movieIndex.length)
+            return -1;
+        return movieIndex[mid];
+    }
+
+    /**
+     * Returns the number of users in the store.
+     *
+     * @return The number of users.
+     */
+    public int getNumberOfUsers() {
+        return userIds.limit();
+    }
+
+    /**
+     * Returns the number of movies in the store.
+     *
+     * @return The number of movies.
+     */
+    public int getNumberOfMovies() {
+        return movieIds.limit();
+    }
+
+    /**
+     * Returns the total number of ratings in the store.
+     *
+     * @return The number of ratings.
+     */
+    public int getNumberOfRatings() {
+        return userRatings.limit();
+    }
+
+    /**
+     * Returns the user id stored in the specified row.
+     *
+     * @param  row  The user row.
+     * @return The user id.
+     */
+    public int userId(int row) {
+        return userIds.get(row);
+    }
+
+    /**
+     * Returns the movie id stored in the specified row.
+     *
+     * @param  row  The movie row.
+     * @return The movie id.
+     */
+    public int movieId(int row) {
+        return movieIds.get(row);
+    }
+
+    /**
+     * Returns the position of the first mid/rating
+     * block for a user row.
+     *
+     * @param  row  The user row.
+     * @return The start of the row (inclusive).
+     */
+    public int userStart(int row) {
+        return userOffsets.get(row);
+    }
+
+    /**
+     * Returns the position just past the last mid/rating
+     * block for a user row.
+     *
+     * @param  row  The user row.
+     * @return The end of the row (exclusive).
+     */
+    public int userEnd(int row) {
+        return userOffsets.get(row + 1);
+    }
+
+    /**
+     * Returns the position of the first uid/rating
+     * block for a movie row.
+     *
+     * @param  row  The movie row.
+     * @return The start of the row (inclusive).
+     */
+    public int movieStart(int row) {
+        return movieOffsets.get(row);
+    }
+
+    /**
+     * Returns the position just past the last uid/rating
+     * block for a movie row.
+     *
+     * @param  row  The movie row.
+     * @return The end of the row (exclusive).
+     */
+    public int movieEnd(int row) {
+        return movieOffsets.get(row + 1);
+    }
+
+    /**
+     * Returns the mid/rating block at the specified
+     * position of the user side of the store.
+     *
+     * @param  pos  A position between userStart and userEnd
+     *              of some row.
+     * @return The mid/rating block.
+     */
+    public int userBlock(int pos) {
+        return userRatings.get(pos);
+    }
+
+    /**
+     * Returns the uid/rating block at the specified
+     * position of the movie side of the store.
+     *
+     * @param  pos  A position between movieStart and movieEnd
+     *              of some row.
+     * @return The uid/rating block.
+     */
+    public int movieBlock(int pos) {
+        return movieRatings.get(pos);
+    }
+
+    /**
+     * Returns the packed mid/rating blocks for every
+     * user, indexed by position. The buffer must not be
+     * modified, and only absolute gets should be used. 
+     *
+     * @return The user side blocks. 
+     */
+    public IntBuffer getUserRatings() {
+        return userRatings;
+    }
+
+    /**
+     * Returns the packed uid/rating blocks for every
+     * movie, indexed by position. The buffer must not be
+     * modified, and only absolute gets should be used. 
+     *
+     * @return The movie side blocks. 
+     */
+    public IntBuffer getMovieRatings() {
+        return movieRatings;
+    }
+
+    /**
+     * Returns the sum of the ratings for a user row.
+     *
+     * @param  row  The user row.
+     * @return The sum of the user's ratings.
+     */
+    public int userSum(int row) {
+        return userSums.get(row);
+    }
+
+    /**
+     * Returns the sum of the ratings for a movie row.
+     *
+     * @param  row  The movie row.
+     * @return The sum of the movie's ratings.
+     */
+    public int movieSum(int row) {
+        return movieSums.get(row);
+    }
+
+    /**
+     * Returns a copy of the sorted user ids.
+     *
+     * @return The user ids.
+     */
+    public IntArrayList getUserIds() {
+        return copy(userIds, 0, userIds.limit());
+    }
+
+    /**
+     * Returns a copy of the sorted movie ids.
+     *
+     * @return The movie ids.
+     */
+    public IntArrayList getMovieIds() {
+        return copy(movieIds, 0, movieIds.limit());
+    }
+
+    /**
+     * Copies the mid/rating blocks of a user row into
+     * a new IntArrayList.
+     *
+     * @param  row  The user row.
+     * @return The user's mid/rating blocks.
+     */
+    public IntArrayList copyUserRow(int row) {
+        return copy(userRatings, userStart(row), userEnd(row));
+    }
+
+    /**
+     * Copies the uid/rating blocks of a movie row into
+     * a new IntArrayList.
+     *
+     * @param  row  The movie row.
+     * @return The movie's uid/rating blocks.
+     */
+    public IntArrayList copyMovieRow(int row) {
+        return copy(movieRatings, movieStart(row), movieEnd(row));
+    }
+
+    /**
+     * Copies part of an IntBuffer into a new IntArrayList. 
+     *
+     * @param  ints  The buffer to copy from. 
+     * @param  from  The first position to copy (inclusive). 
+     * @param  to  The last position to copy (exclusive). 
+     * @return The copied ints. 
+     */
+    private static IntArrayList copy(IntBuffer ints, int from, int to) {
+        int[] elements = new int[to - from];
+        IntBuffer view = ints.duplicate();
+        view.position(from);
+        view.get(elements);
+        return new IntArrayList(elements);
+    }
+
+    /**
+     * Converts a serialized MemReader into a RatingStore file. 
+     */
+    public static void main(String args[]) {
+
+        try {
+            String sourceFile = args[0];
+            String destFile = args[1];
+
+            RatingStore store = build(MemReader.deserialize(sourceFile));
+            write(destFile, store);
+            System.out.println("Wrote " + store.getNumberOfRatings() 
+                               + " ratings for " + store.getNumberOfUsers() 
+                               + " users and " + store.getNumberOfMovies()
+                               + " movies");
+        }
+        catch(Exception e) {
+            System.out.println("usage: java RatingStore memReaderFile destFile");
+            e.printStackTrace();
+        }
+    }
+}
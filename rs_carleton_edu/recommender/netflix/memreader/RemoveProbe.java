@@ -3,8 +3,6 @@ package netflix.memreader;
 import java.util.*;
 import java.io.*;
 import cern.colt.list.IntArrayList;
-import cern.colt.map.*;
-import cern.colt.function.IntObjectProcedure;
 
 
 /**
@@ -16,32 +14,28 @@ import cern.colt.function.IntObjectProcedure;
  */
 public class RemoveProbe {
 
-    private OpenIntObjectHashMap custToMovie;
-    private OpenIntObjectHashMap movieToCust;
-    private OpenIntIntHashMap sumByCust;
-    private OpenIntIntHashMap sumByMovie;
-
     private MemHelper helper;
+    private MemReader reader;
 
 
     /**
-     * Constructs a RemoveProbe object and gets the
-     * hashes from the specified MemReader object. 
+     * Constructs a RemoveProbe object for the 
+     * specified MemReader object. 
      *
      * @param  fileName  The serialized MemReader object.
      */
     public RemoveProbe(String fileName) {
         helper = new MemHelper(fileName);
-        custToMovie = helper.getCustToMovie();
-        movieToCust = helper.getMovieToCust();
-        sumByCust = helper.getSumByCust();
-        sumByMovie = helper.getSumByMovie();
+        reader = helper.getMemReader();
     }
 
 
     /**
      * Removes each user movie pair in the 
-     * probe file from the MemReader object.
+     * probe file from the MemReader object. The
+     * sums and statistics tables are updated too, so
+     * the probe ratings no longer count in any
+     * average or standard deviation. 
      *
      * @param fileName The file containing the 
      *                 probe data. 
@@ -51,8 +45,8 @@ public class RemoveProbe {
         try {
             Scanner in = new Scanner(new File(fileName));
             String input, tempString;
-            int currMovie = 0, cust = 0, tempRating;
-            IntArrayList tempList, remList, custList = null;
+            int currMovie = 0, cust = 0;
+            IntArrayList custList = null;
 
             while(in.hasNext()) {
 
@@ -70,16 +64,8 @@ public class RemoveProbe {
                     cust = Integer.parseInt(input);
                     custList.add(cust);
                     
-                    //Remove from custToMovie
-                    tempList = (IntArrayList) custToMovie.get(cust);
-                    custToMovie.put(cust, removeFromList(tempList, currMovie));
-                    tempRating = helper.getRating(cust, currMovie);
-                    sumByCust.put(cust, sumByCust.get(cust) - tempRating);
-                    
-                    //Remove from movieToCust
-                    tempList = (IntArrayList) movieToCust.get(currMovie);
-                    movieToCust.put(currMovie, removeFromList(tempList, cust));
-                    sumByMovie.put(currMovie, sumByMovie.get(currMovie) - tempRating);
+                    //Remove from the hashes, sums and stats
+                    reader.removeRating(cust, currMovie);
                 }
             }
         }
@@ -93,38 +79,6 @@ public class RemoveProbe {
         }
     }
 
-    /**
-     * Removes a specific user or movie id from an 
-     * IntArrayList. We cannot use existing methods for
-     * this because each id is combined with its rating
-     * when it is stored. 
-     *
-     * @param  list The original list. 
-     * @param  id  The id of the user or movie to remove. 
-     * @return A list containing all the elements of the original without
-     *         id. 
-     */
-    public IntArrayList removeFromList(IntArrayList list, int id) {
-
-        int temp;
-        IntArrayList remList = new IntArrayList();
-
-
-        for(int i = 0; i < list.size(); i++) {
-            
-            temp = list.get(i);
-            
-            if(MemHelper.parseUserOrMovie(temp) == id) {
-                remList.add(temp);
-                list.removeAll(remList);
-                return list;
-            }
-        }
-        
-        return list;
-    }
-
-
     public static void main(String args[]) {
 
         try {
@@ -134,7 +88,7 @@ public class RemoveProbe {
 
             RemoveProbe remover = new RemoveProbe(dataFile);
             remover.parseFile(probeFile);
-            MemReader.serialize(destFile, remover.helper.getMemReader());
+            MemReader.serialize(destFile, remover.reader);
         }
         catch(Exception e) {
             System.out.println("usage: java RemoveProbe dataFile probeFile destFile");
@@ -8,11 +8,16 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import netflix.memreader.MemHelper;
 import netflix.rmse.RMSECalculator;
 import netflix.ui.Item;
 import netflix.ui.ItemComparator;
+import netflix.utilities.Futures;
 import cern.colt.list.IntArrayList;
 
 /**
@@ -27,12 +32,26 @@ import cern.colt.list.IntArrayList;
  * 
  * There are also a few helpful methods that apply to all recommenders.
  * 
+ * testWithMemHelper and recommendFile can score on several threads
+ * at once; see setNumThreads.  This is only safe for recommenders
+ * whose recommend method is thread-safe, so by default everything 
+ * runs on the calling thread.
+ * 
  * @author lewda
  */
 public abstract class AbstractRecommender {
 
     //The underlying database
     protected MemHelper mh;
+
+    //The number of threads used for scoring
+    protected int numThreads = 1;
+
+    //Blocks of work per thread, so that slow users are spread out
+    private static final int BLOCKS_PER_THREAD = 16;
+
+    //Lines of a file scored at a time by recommendFile
+    private static final int FILE_BATCH = 1 << 16;
     
     /**
      * Recommends a rating based on a uid and mid.
@@ -44,6 +63,18 @@ public abstract class AbstractRecommender {
      */
     public abstract double recommend(int uid, int mid, String date);
 
+    /**
+     * Sets the number of threads used by testWithMemHelper
+     * and recommendFile.  Only use more than one thread if
+     * recommend is thread-safe for this recommender.
+     * 
+     * @param numThreads the number of threads, 1 to score
+     * on the calling thread
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
     /**
      * Adds an entry to the database.
      * 
@@ -161,24 +192,48 @@ public abstract class AbstractRecommender {
             return;
         }
 
+        // The file is read a batch at a time.  Each batch is scored,
+        // possibly in parallel, then written out in the original order.
+        String[] headers = new String[FILE_BATCH];
+        int[] uids = new int[FILE_BATCH];
+        int[] mids = new int[FILE_BATCH];
+        String[] dates = new String[FILE_BATCH];
+        double[] predictions = new double[FILE_BATCH];
+        ExecutorService pool = numThreads > 1 ? 
+            Executors.newFixedThreadPool(numThreads) : null;
+        int n;
+
         try {
             out = new BufferedWriter(new FileWriter(outFile));
 
             while (sc.hasNextLine()) {
-                currLine = sc.nextLine().trim();
-                split = currLine.split(",");
+                for (n = 0; n < FILE_BATCH && sc.hasNextLine(); n++) {
+                    currLine = sc.nextLine().trim();
+                    split = currLine.split(",");
 
-                if (split.length == 1) {
-                    currMovie = Integer.parseInt(currLine.substring(0, currLine
-                            .length() - 1));
-                    out.write(currLine);
-                }
-                else {
-                    out.write(Double.toString(recommend(Integer
-                            .parseInt(split[0]), currMovie, split[1])));
+                    if (split.length == 1) {
+                        currMovie = Integer.parseInt(currLine.substring(0, currLine
+                                .length() - 1));
+                        headers[n] = currLine;
+                    }
+                    else {
+                        headers[n] = null;
+                        uids[n] = Integer.parseInt(split[0]);
+                        mids[n] = currMovie;
+                        dates[n] = split[1];
+                    }
                 }
 
-                out.newLine();
+                recommendAll(pool, headers, uids, mids, dates, predictions, n);
+
+                for (int i = 0; i < n; i++) {
+                    if (headers[i] != null)
+                        out.write(headers[i]);
+                    else
+                        out.write(Double.toString(predictions[i]));
+
+                    out.newLine();
+                }
             }
 
             out.close();
@@ -187,6 +242,49 @@ public abstract class AbstractRecommender {
             System.out.println("Write error!  Java error: " + e);
             System.exit(1);
         }
+        finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+    }
+
+    /**
+     * Scores the first n entries of a batch from recommendFile,
+     * splitting them into blocks for the pool if there is one.
+     * Entries with a header are skipped.
+     */
+    private void recommendAll(ExecutorService pool, final String[] headers,
+                              final int[] uids, final int[] mids, 
+                              final String[] dates, final double[] predictions, 
+                              int n) {
+        if (pool == null) {
+            for (int i = 0; i < n; i++) {
+                if (headers[i] == null)
+                    predictions[i] = recommend(uids[i], mids[i], dates[i]);
+            }
+            return;
+        }
+
+        int numBlocks = Math.max(1, Math.min(n, numThreads * BLOCKS_PER_THREAD));
+        ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+
+        for (int b = 0; b < numBlocks; b++) {
+            final int from = (int) ((long) n * b / numBlocks);
+            final int to = (int) ((long) n * (b + 1) / numBlocks);
+
+            futures.add(pool.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (int i = from; i < to; i++) {
+                            if (headers[i] == null)
+                                predictions[i] = recommend(uids[i], mids[i], dates[i]);
+                        }
+                        return null;
+                    }
+                }));
+        }
+
+        for (Future<Object> f : futures)
+            Futures.waitFor(f);
     }
     
     /**
@@ -196,15 +294,57 @@ public abstract class AbstractRecommender {
      * @param testmh the memhelper with test data in it
      * @return the rmse in comparison to testmh 
      */
-    public double testWithMemHelper(MemHelper testmh) {
+    public double testWithMemHelper(final MemHelper testmh) {
+        final IntArrayList users = testmh.getListOfUsers();
+
+        if (numThreads <= 1)
+            return testUsers(testmh, users, 0, users.size()).rmse();
+
+        // Split the users into blocks, each with its own RMSECalculator.
+        // The calculators are merged in block order, so the result
+        // does not depend on how the blocks were scheduled.
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        int numBlocks = Math.max(1, Math.min(users.size(), numThreads * BLOCKS_PER_THREAD));
+        ArrayList<Future<RMSECalculator>> futures = new ArrayList<Future<RMSECalculator>>();
+
+        for (int b = 0; b < numBlocks; b++) {
+            final int from = (int) ((long) users.size() * b / numBlocks);
+            final int to = (int) ((long) users.size() * (b + 1) / numBlocks);
+
+            futures.add(pool.submit(new Callable<RMSECalculator>() {
+                    public RMSECalculator call() {
+                        return testUsers(testmh, users, from, to);
+                    }
+                }));
+        }
+        pool.shutdown();
+
         RMSECalculator rmse = new RMSECalculator();
-        IntArrayList users, movies;
+        for (Future<RMSECalculator> f : futures)
+            rmse.merge(Futures.waitFor(f));
+
+        return rmse.rmse();
+    }
+
+    /**
+     * Makes recommendations for a range of the users in a test set,
+     * comparing them to the test ratings.
+     * 
+     * @param testmh the memhelper with test data in it
+     * @param users the users in testmh
+     * @param from the first user to test
+     * @param to the position past the last user to test
+     * @return an RMSECalculator holding the errors for these users
+     */
+    private RMSECalculator testUsers(MemHelper testmh, IntArrayList users, 
+                                     int from, int to) {
+        RMSECalculator rmse = new RMSECalculator();
+        IntArrayList movies;
         String blank = "";
         int uid, mid;
 
         // For each user, make recommendations
-        users = testmh.getListOfUsers();
-        for (int i = 0; i < users.size(); i++) {
+        for (int i = from; i < to; i++) {
             uid = users.getQuick(i);
             movies = testmh.getMoviesSeenByUser(uid);
 
@@ -214,7 +354,7 @@ public abstract class AbstractRecommender {
             }
         }
 
-        return rmse.rmse();
+        return rmse;
     }
     
     /**
@@ -3,11 +3,21 @@ package netflix.recommender;
 /**
  * This class uses the item-item similarity table to predict ratings by a 
  * user on an unrated movie.
+ *
+ * By default every prediction queries the database for the movie's
+ * neighbors and for the user's rating of each one.  Given a MemHelper,
+ * the recommender instead keeps the neighbors in a SimilarityModel,
+ * either read from the similarity table once up front or mapped from
+ * a file written by SimilarityWriterToBinary, and looks ratings and
+ * averages up in the MemHelper, so predictions make no database calls
+ * and can be made by several threads at once.
  */
 
 import java.util.ArrayList;
 
+import cern.colt.list.IntArrayList;
 import netflix.algorithms.modelbased.itembased.DatabaseImpl;
+import netflix.algorithms.modelbased.writer.SimilarityModel;
 import netflix.memreader.MemHelper;
 import netflix.utilities.IntDoublePair;
 import netflix.utilities.Pair;
@@ -17,6 +27,8 @@ public class ItemItemRecommender extends AbstractRecommender{
 
     private DatabaseImpl db;
     private boolean method; //true for weighted sums, false for linear regression
+    private SimilarityModel neighbors; //in-memory neighbors, null to query db
+    private MemHelper helper; //ratings for the in-memory mode
 
     //constructor sets up the database-access layer and determines which method will
     //be used to make recommendations (weighted sums or linear regression)
@@ -25,6 +37,44 @@ public class ItemItemRecommender extends AbstractRecommender{
         db = new DatabaseImpl(dbName, rateName, movieName, userName, simName);
         this.method = weighted;
     }
+
+    /**
+     * Sets up the recommender to read the whole similarity table once and 
+     * then make predictions from memory.  The database is only used while
+     * the table is read.
+     * @param helper - the ratings, such as the training set of the model
+     * @param weighted - true for weighted sums, false for linear regression
+     */
+    public ItemItemRecommender(String dbName, String rateName, String movieName, String userName,
+    		String simName, MemHelper helper, boolean weighted){
+        DatabaseImpl simDb = new DatabaseImpl(dbName, rateName, movieName, userName, simName);
+        if (!simDb.openConnection()) {
+            System.out.println("Could not open database connection.");
+            System.exit(1);
+        }
+        this.neighbors = simDb.getSimilarityModel(true);
+        simDb.closeConnection();
+        if (neighbors == null) {
+            System.out.println("Could not read similarity table " + simName);
+            System.exit(1);
+        }
+        this.helper = helper;
+        this.method = weighted;
+    }
+
+    /**
+     * Sets up the recommender to make predictions from memory, with
+     * neighbors that are already loaded.
+     * @param neighbors - the neighbors of each movie, such as 
+     * SimilarityModel.map returns
+     * @param helper - the ratings, such as the training set of the model
+     * @param weighted - true for weighted sums, false for linear regression
+     */
+    public ItemItemRecommender(SimilarityModel neighbors, MemHelper helper, boolean weighted){
+        this.neighbors = neighbors;
+        this.helper = helper;
+        this.method = weighted;
+    }
     
     /**
      * @author steinbel
@@ -55,6 +105,24 @@ public class ItemItemRecommender extends AbstractRecommender{
     	
         double sumTop=0;
         double sumBottom=0;
+
+        if (neighbors != null) {
+            int temp;
+            double sim;
+            for (int i = neighbors.getStart(movieID); i < neighbors.getEnd(movieID); i++){
+                sim = neighbors.getSimilarity(i);
+                if (sim == -100)
+                    continue;
+                temp = helper.getRating(userID, neighbors.getNeighbor(i));
+                if (temp!=-99){
+                    sumTop += (temp * sim);
+                    sumBottom += Math.abs(sim);
+                }
+            }
+            if (sumBottom == 0)
+                return helper.getAverageRatingForUser(userID);
+            return sumTop/sumBottom;
+        }
         
         //grab all similar movies and their similarities
         ArrayList<IntDoublePair> idSimList = db.getSimilarMovies(movieID, true);
@@ -91,6 +159,19 @@ public class ItemItemRecommender extends AbstractRecommender{
         double sumTop=0;
         double sumBottom=0;
 
+        if (neighbors != null) {
+            double sim;
+            for (int i = neighbors.getStart(movieID); i < neighbors.getEnd(movieID); i++){
+                sim = neighbors.getSimilarity(i);
+                if (sim == -100)
+                    continue;
+                approxRating = predictKnownRating(movieID, neighbors.getNeighbor(i), userID);
+                sumTop += (sim * approxRating);
+                sumBottom += Math.abs(sim);
+            }
+            return sumTop/sumBottom;
+        }
+
     	//grab all similar movies and their similarities
         ArrayList<IntDoublePair> sims = db.getSimilarMovies(movieID, true);
     
@@ -122,9 +203,9 @@ public class ItemItemRecommender extends AbstractRecommender{
 
 	    //build the model:
 	    //grab the rating vector for movie1 in <user, rating> pairs
-        ArrayList<Pair> targetV = db.getRatingVector(movie1);
+        ArrayList<Pair> targetV = getRatingVector(movie1);
 	    //grab the rating vector for movie2
-        ArrayList<Pair> simV = db.getRatingVector(movie2);
+        ArrayList<Pair> simV = getRatingVector(movie2);
         //create one list of rating instances
         for (Pair p : simV)
         	targetV.add(p);
@@ -132,8 +213,8 @@ public class ItemItemRecommender extends AbstractRecommender{
        /* grab mean (avg) ratings for movies 1 and 2 and for the userID
 	    * calculate standard deviation for ratings at the same time for efficiency
 	    */
-        double meanRate = (db.getAverageRatingForMovie(movie1)
-                            + db.getAverageRatingForMovie(movie2))/2;
+        double meanRate = (getAverageRatingForMovie(movie1)
+                            + getAverageRatingForMovie(movie2))/2;
         double meanUser = 0;
         double sdRate = 0;
         for (Pair p : targetV) {
@@ -167,11 +248,37 @@ public class ItemItemRecommender extends AbstractRecommender{
 	    return predicted;
     }	   
     
+    /**
+     * Gets all the ratings on a movie as <userid, rating> pairs, from
+     * the MemHelper if there is one and the database otherwise.
+     */
+    private ArrayList<Pair> getRatingVector(int movieID){
+        if (helper == null)
+            return db.getRatingVector(movieID);
+
+        IntArrayList blocks = helper.getUsersWhoSawMovie(movieID);
+        ArrayList<Pair> vector = new ArrayList<Pair>(blocks.size());
+        int block;
+        for (int i = 0; i < blocks.size(); i++) {
+            block = blocks.getQuick(i);
+            vector.add(new Pair(MemHelper.parseUserOrMovie(block), MemHelper.parseRating(block)));
+        }
+        return vector;
+    }
+
+    private double getAverageRatingForMovie(int movieID){
+        if (helper == null)
+            return db.getAverageRatingForMovie(movieID);
+        return helper.getAverageRatingForMovie(movieID);
+    }
+
     public void open(){
-    	db.openConnection();
+    	if (db != null)
+    		db.openConnection();
     }
     public void close(){
-    	db.closeConnection();
+    	if (db != null)
+    		db.closeConnection();
     }
 
  
@@ -1,13 +1,12 @@
 package netflix.recommender;
 
-import java.util.ArrayList;
-
+import cern.colt.function.IntIntProcedure;
 import cern.colt.list.ObjectArrayList;
+import netflix.algorithms.modelbased.writer.SimilarityModel;
 import netflix.algorithms.modelbased.writer.UserSimKeeper;
 import netflix.memreader.MemHelper;
 import netflix.memreader.MemReader;
 import netflix.utilities.IntDoublePair;
-import netflix.utilities.Pair;
 import netflix.utilities.Timer227;
 
 /**
@@ -20,6 +19,7 @@ import netflix.utilities.Timer227;
 public class PDRecommender extends AbstractRecommender{
 
 	private UserSimKeeper simKeeper;
+	private SimilarityModel simModel; //used instead of simKeeper if not null
 	private MemHelper memHelper;
 	private boolean sumTogether; //true to sum together probabilities, false for max
 	private boolean useSimilarities; //true to factor in similarities, false to ignore
@@ -30,14 +30,18 @@ public class PDRecommender extends AbstractRecommender{
 	/**
 	 * Sets up access to the similarity tables and the (memory-based) database.
 	 * Decides which variant of the algorithm will run.
-	 * @param simName - the name of the serialized UserSimKeeper file
+	 * @param simName - the name of the serialized UserSimKeeper file, or of a
+	 * binary file written by SimilarityWriterToBinary
 	 * @param memName - the name of the serialized MemReader file
 	 * @param sum - true to use a weighted sum of the probabilities of the different
 	 * rating possibilities, false to use the maximum
 	 * @param sim - true to use the similarities between the users in predictions
 	 */
 	public PDRecommender(String simName, String memName, boolean sum, boolean sim) {
-		simKeeper = UserSimKeeper.deserialize(simName);
+		if (SimilarityModel.isSimilarityFile(simName))
+			simModel = SimilarityModel.map(simName);
+		else
+			simKeeper = UserSimKeeper.deserialize(simName);
 		memHelper = new MemHelper(MemReader.deserialize(memName));
 		sumTogether = sum;
 		useSimilarities = sim;
@@ -71,10 +75,13 @@ public class PDRecommender extends AbstractRecommender{
 	public double recommend(int uid, int mid, String date) {
 		double predicted = 0.0, current = 0.0, max = 0.0;
 		
-		ObjectArrayList similarities = simKeeper.getSimilarities(uid);
+		ObjectArrayList similarities = null;
+		if (simModel == null)
+			similarities = simKeeper.getSimilarities(uid);
+		SameUserProduct same = new SameUserProduct();
 		//find the probability for each possible rating
 		for (int i=lowerRating; i<=upperRating; i++) {
-			current = calculateProb(i, uid, mid, similarities);
+			current = calculateProb(i, uid, mid, similarities, same);
 			//if we're summing together, use a weighted sum here to make prediction
 			if (sumTogether) {
 				predicted += (current * i);
@@ -96,41 +103,47 @@ public class PDRecommender extends AbstractRecommender{
 	 * @param uid - the userID
 	 * @param mid - the movieID
 	 * @param sims - the list of similar users and their similarities in <uid, sim>
-	 * pairs
+	 * pairs, ignored if the similarities come from simModel
+	 * @param same - reusable accumulator for the join
 	 * @return - the probability that uid will rate mid possRating
 	 */
-	private double calculateProb(int possRating, int uid, int mid, ObjectArrayList sims) {
+	private double calculateProb(int possRating, int uid, int mid, ObjectArrayList sims,
+			SameUserProduct same) {
 		double predictedRating = 0.0;
-		if (sims == null)
+		int start = 0, numSims;
+		if (simModel != null) {
+			start = simModel.getStart(uid);
+			numSims = simModel.getEnd(uid) - start;
+		} else {
+			numSims = sims == null ? 0 : sims.size();
+		}
+		if (numSims == 0)
 			return 1/(upperRating-lowerRating);
-		ArrayList<IntDoublePair> simList = sims.toList();
-		ArrayList<Pair> commonMovies;
-		int activeRating, simRating;
-		double mTerm, uTerm, product;
+		int simRating, simUser;
+		double uTerm, product, similarity;
 		//iterate through the list of users
-		for (IntDoublePair idPair : simList) {
-			product = 1;
-			//iterate through the list of movies common to target user and this user
-			commonMovies = memHelper.innerJoinOnMoviesOrRating(uid, idPair.a, true);
-			for (Pair p : commonMovies) {
-				activeRating = MemHelper.parseRating(p.a);
-				simRating = MemHelper.parseRating(p.b);
-				/* Calculate the probability that these users are the same, given
-				 * their ratings on common movies
-				 */
-				mTerm = Math.exp((-(activeRating - simRating)*(activeRating - simRating))
-						/(2*sigma*sigma));
-
-				product *= mTerm;
+		for (int i = 0; i < numSims; i++) {
+			if (simModel != null) {
+				simUser = simModel.getNeighbor(start + i);
+				similarity = simModel.getSimilarity(start + i);
+			} else {
+				IntDoublePair idPair = (IntDoublePair) sims.getQuick(i);
+				simUser = idPair.a;
+				similarity = idPair.b;
 			}
+			//multiply together the terms for the movies common to target user 
+			//and this user while joining
+			same.product = 1;
+			memHelper.innerJoinOnMoviesOrRating(uid, simUser, true, same);
+			product = same.product;
 			/* If we're taking the precalculated similarities into account, 
 			 * multiply the probility by the similarity. (Note: not in paper.)
 			 */
 			if (useSimilarities) 
-				//product *= idPair.b;
-				product += idPair.b;
+				//product *= similarity;
+				product += similarity;
 			
-			simRating = memHelper.getRating(idPair.a, mid);
+			simRating = memHelper.getRating(simUser, mid);
 			/* Calculate the probability that the active user will rate the movie
 			 * the possible rating, given what the similar user rated the movie
 			 */
@@ -140,9 +153,28 @@ public class PDRecommender extends AbstractRecommender{
 
 		}
 			//give equal probability to each user in sim list
-			predictedRating /= simList.size();
+			predictedRating /= numSims;
 		return predictedRating;
 	}
+
+	/**
+	 * Multiplies together the probability that two users are the same, 
+	 * given their ratings on each common movie, as the join is merged. 
+	 */
+	private class SameUserProduct implements IntIntProcedure {
+		double product;
+
+		public boolean apply(int a, int b) {
+			int activeRating = MemHelper.parseRating(a);
+			int simRating = MemHelper.parseRating(b);
+			/* Calculate the probability that these users are the same, given
+			 * their ratings on common movies
+			 */
+			product *= Math.exp((-(activeRating - simRating)*(activeRating - simRating))
+					/(2*sigma*sigma));
+			return true;
+		}
+	}
 	
     public static void main (String[] args){
         PDRecommender rec;
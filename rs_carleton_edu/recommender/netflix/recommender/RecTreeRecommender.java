@@ -3,6 +3,7 @@ import java.util.*;
 import netflix.algorithms.memorybased.rectree.*;
 import netflix.memreader.*;
 import netflix.utilities.*;
+import cern.colt.function.*;
 import cern.colt.list.*;
 import cern.colt.map.*;
 
@@ -29,24 +30,20 @@ public class RecTreeRecommender extends AbstractRecommender {
      * @param mh the database to use
      * @param activeUser the active user
      * @param targetUser the target user
+     * @param sums reusable accumulator for the join
      * @return their correlation
      */
-    private double correlation(int activeUser, int targetUser) {
-        double topSum, bottomSumActive, bottomSumTarget, rating1, rating2;
-        topSum = bottomSumActive = bottomSumTarget = 0;
-        double activeAvg = helper.getAverageRatingForUser(activeUser);
-        double targetAvg = helper.getAverageRatingForUser(targetUser);
-        ArrayList<Pair> ratings = helper.innerJoinOnMoviesOrRating(activeUser, targetUser, true);
-		
-        // Do the summations
-        for(Pair pair : ratings) {
-            rating1 = (double)MemHelper.parseRating(pair.a) - activeAvg;
-            rating2 = (double)MemHelper.parseRating(pair.b) - targetAvg;
-			
-            topSum += rating1 * rating2;
-            bottomSumActive += Math.pow(rating1, 2);
-            bottomSumTarget += Math.pow(rating2, 2);
-        }
+    private double correlation(int activeUser, int targetUser, CorrelationSums sums) {
+        sums.activeAvg = helper.getAverageRatingForUser(activeUser);
+        sums.targetAvg = helper.getAverageRatingForUser(targetUser);
+        sums.topSum = sums.bottomSumActive = sums.bottomSumTarget = 0;
+
+        // Do the summations while joining
+        helper.innerJoinOnMoviesOrRating(activeUser, targetUser, true, sums);
+
+        double topSum = sums.topSum;
+        double bottomSumActive = sums.bottomSumActive;
+        double bottomSumTarget = sums.bottomSumTarget;
 		
         // This handles an emergency case of dividing by zero
         if(bottomSumActive != 0 && bottomSumTarget != 0)
@@ -55,6 +52,25 @@ public class RecTreeRecommender extends AbstractRecommender {
             return 0;
     }
 
+    /**
+     * Does the correlation summations as the join between
+     * two users is merged. 
+     */
+    private static class CorrelationSums implements IntIntProcedure {
+        double activeAvg, targetAvg;
+        double topSum, bottomSumActive, bottomSumTarget;
+
+        public boolean apply(int a, int b) {
+            double rating1 = (double)MemHelper.parseRating(a) - activeAvg;
+            double rating2 = (double)MemHelper.parseRating(b) - targetAvg;
+
+            topSum += rating1 * rating2;
+            bottomSumActive += rating1 * rating1;
+            bottomSumTarget += rating2 * rating2;
+            return true;
+        }
+    }
+
     /**
      * Basic recommendation method for memory-based algorithms.
      * 
@@ -65,6 +81,7 @@ public class RecTreeRecommender extends AbstractRecommender {
     public double recommend(int activeUser, int targetMovie, String date) {
         double currWeight, weightSum = 0, voteSum = 0;
         int uid, rating;
+        CorrelationSums sums = new CorrelationSums();
 
         IntArrayList users = tree.getClusterByUID(activeUser);
 
@@ -77,7 +94,7 @@ public class RecTreeRecommender extends AbstractRecommender {
             //user is not the same as the active user. 
             if(rating != -99 && uid != activeUser) {
                 
-                currWeight = correlation(activeUser, uid);
+                currWeight = correlation(activeUser, uid, sums);
                 weightSum += Math.abs(currWeight);
                 voteSum += currWeight * (rating - helper.getAverageRatingForUser(uid));			
             }
@@ -4,6 +4,7 @@ import java.io.*;
 import java.util.*;
 import netflix.memreader.*;
 import netflix.utilities.*;
+import netflix.algorithms.modelbased.svd.*;
 import cern.colt.matrix.*;
 import cern.colt.matrix.linalg.*;
 import cern.colt.matrix.impl.*;
@@ -24,15 +25,16 @@ import cern.colt.function.*;
  */
 public class SVDRecommender extends AbstractRecommender {
 
-    private SingularValueDecomposition svd;
-    private DoubleMatrix2D P;
+    private TruncatedSVD svd;
+    private FactorModel model;
     private int k;
 
     /**
      * Constructor. 
      *
      * @param  memReaderFile  File containing serialized MemReader.
-     * @param  svdFile  File containing serialized SVD.
+     * @param  svdFile  File containing serialized SVD, either a
+     *                  SingularValueDecomposition or a TruncatedSVD.
      * @param  k  Number of singular values to use.
      */
 
@@ -44,7 +46,8 @@ public class SVDRecommender extends AbstractRecommender {
      * Constructor. 
      *
      * @param  mh  MemHelper object for training set. 
-     * @param  svdFile  File containing serialized SVD.
+     * @param  svdFile  File containing serialized SVD, either a
+     *                  SingularValueDecomposition or a TruncatedSVD.
      * @param  k Number of singular values to use.
      */
     public SVDRecommender(MemHelper mh, String svdFile, int k) {
@@ -53,10 +56,7 @@ public class SVDRecommender extends AbstractRecommender {
             this.k = k;
             this.mh = mh;
 
-            FileInputStream fis = new FileInputStream(svdFile);
-            ObjectInputStream in = new ObjectInputStream(fis);
-
-            svd = (SingularValueDecomposition) in.readObject();
+            svd = TruncatedSVD.read(svdFile);
 
             buildModel();
         }
@@ -65,34 +65,38 @@ public class SVDRecommender extends AbstractRecommender {
         }
     }
 
+    /**
+     * Constructor. 
+     *
+     * @param  mh  MemHelper object for training set. 
+     * @param  svd  The SVD, with at least k singular values.
+     * @param  k Number of singular values to use.
+     */
+    public SVDRecommender(MemHelper mh, TruncatedSVD svd, int k) {
+        this.k = k;
+        this.mh = mh;
+        this.svd = svd;
+
+        buildModel();
+    }
+
 
     /**
-     * Computes the recommendation matrix from the 
+     * Computes the recommendation model from the 
      * SVD. See the paper "Application of Dimensionality
      * Reduction in Recommender Systems - A Case Study"
      * for more information. 
+     *
+     * The model is kept as the two factors Uk sqrt(Sk)
+     * and sqrt(Sk) Vk' instead of their product, which 
+     * would have an entry for every movie and user. 
      */
     private void buildModel() {
 
             Algebra alg = new Algebra();
 
-            DoubleMatrix2D rootSk = svd.getS().viewPart(0, 0, k, k);
-            
-            for(int i = 0; i < k; i++) {
-                rootSk.set(i,i,Math.sqrt(rootSk.get(i,i)));
-            }
-
-            DoubleMatrix2D U = svd.getU();
-            DoubleMatrix2D Uk = U.viewPart(0, 0, U.rows(), k).copy();
-
-            DoubleMatrix2D VPrime = alg.transpose(svd.getV());
-            DoubleMatrix2D VPrimek = 
-                VPrime.viewPart(0, 0, k, VPrime.columns()).copy();
-
-            DoubleMatrix2D left = alg.mult(Uk, rootSk);
-            DoubleMatrix2D right = alg.mult(rootSk, VPrimek);
-
-            P = alg.mult(left, right);
+            model = new FactorModel(svd.getU(), svd.getS(), 
+                                    alg.transpose(svd.getV()), k);
     }
 
     /**
@@ -104,9 +108,39 @@ public class SVDRecommender extends AbstractRecommender {
      * @return The rating we predict activeUser will give to targetMovie. 
      */
     public double recommend(int activeUser, int targetMovie, String date) {
-        double entry = P.get(targetMovie, activeUser);
-        double prediction = entry + mh.getAverageRatingForUser(activeUser);
-        
+        double entry = model.predict(activeUser, targetMovie);
+        return clamp(entry + mh.getAverageRatingForUser(activeUser));
+    }
+
+    /**
+     * Finds the movies with the highest predicted ratings for
+     * a user, among the movies in the training set that the 
+     * user has not rated. Every movie is scored in one pass
+     * over the movie factors. 
+     *
+     * @param  uid  The user.
+     * @param  n  The number of movies to return.
+     * @return The movies and their predicted ratings, highest
+     *         first.
+     */
+    public TopKHeap recommendTopN(int uid, int n) {
+
+        double[] scores = new double[model.getNumberOfMovies()];
+        model.scoreMovies(uid, scores);
+
+        double average = mh.getAverageRatingForUser(uid);
+        TopKHeap heap = new TopKHeap(n);
+        for(int mid = 0; mid < scores.length; mid++) {
+            if(mh.getNumberOfUsersWhoSawMovie(mid) == 0 || mh.getRating(uid, mid) > 0)
+                continue;
+            heap.offer(mid, clamp(scores[mid] + average));
+        }
+
+        heap.sort();
+        return heap;
+    }
+
+    private static double clamp(double prediction) {
         if(prediction < 1)
             return 1;
         else if(prediction > 5)
@@ -47,31 +47,20 @@ public class SVDUpdateRecommender extends AbstractRecommender {
      * @param file the MemReader serialized objec
      */
     public SVDUpdateRecommender(MemHelper mh, String svdFile) {
-        try {
 
-            this.mh = mh;
+        this.mh = mh;
 
-            FileInputStream fis = new FileInputStream(svdFile);
-            ObjectInputStream in = new ObjectInputStream(fis);
+        //Either a SingularValueDecomposition or a TruncatedSVD
+        TruncatedSVD svd = TruncatedSVD.read(svdFile);
+        if(svd == null)
+            return;
 
-            SingularValueDecomposition svd = 
-                (SingularValueDecomposition) in.readObject();
+        svu = new SVDUpdater(svd,k);
+        moviesToAdd = new OpenIntObjectHashMap();
 
-            svu = new SVDUpdater(svd,k);
-            moviesToAdd = new OpenIntObjectHashMap();
-
-            //The next sequential uid if we want to add a user
-            nextUID = mh.getNumberOfUsers();
-            svu.makeRecommendationMatrix();
-        }
-        catch(ClassNotFoundException e) {
-            System.out.println("Can't find class");
-            e.printStackTrace();
-        }
-        catch(IOException e) {
-            System.out.println("IO error");
-            e.printStackTrace();
-        }
+        //The next sequential uid if we want to add a user
+        nextUID = mh.getNumberOfUsers();
+        svu.makeRecommendationMatrix();
     }
 
 
@@ -106,7 +95,7 @@ public class SVDUpdateRecommender extends AbstractRecommender {
             userVector = (DoubleMatrix1D) moviesToAdd.get(uid);
         }
         else {
-            userVector = new DenseDoubleMatrix1D(1682);
+            userVector = new DenseDoubleMatrix1D(svu.getNumberOfMovies());
             moviesToAdd.put(uid, userVector);
         }
 
@@ -120,27 +109,42 @@ public class SVDUpdateRecommender extends AbstractRecommender {
      * are added via the add method. This is where
      * the new users are added to the SVD and the 
      * recommendation matrix is actually recomputed. 
+     * All of the waiting users are added with a 
+     * single update, in order of uid. 
      */
     public void resort() {
 
         IntArrayList users = moviesToAdd.keys();
         DoubleMatrix1D user;
-        double rating;
+        double rating, userAverage;
+
+        users.sort();
+        DoubleMatrix2D newUsers = 
+            new DenseDoubleMatrix2D(svu.getNumberOfMovies(), users.size());
 
+        //Fill in each column as SVDBuilder does: the rating, or
+        //the movie's average if there is none, less the user's
+        //average rating
         for(int i = 0; i < users.size(); i++) {
 
             user = (DoubleMatrix1D) moviesToAdd.get(users.get(i));
+            userAverage = mh.getAverageRatingForUser(users.get(i));
             
             for(int j = 0; j < user.size(); j++) {
                 rating = user.get(j);
                 if(rating == 0) {
                     rating = mh.getAverageRatingForMovie(j);
                 }
-                rating -= mh.getAverageRatingForUser(i);
+                newUsers.setQuick(j, i, rating - userAverage);
             }
-            svu.addUser(user);
         }
 
+        svu.addUsers(newUsers);
+        moviesToAdd.clear();
+
+        //New users take the next columns of the SVD
+        nextUID = svu.getNumberOfUsers();
+
         //Update the recommendation matrix with the new users
         svu.makeRecommendationMatrix();
     }
@@ -34,6 +34,28 @@ public class RMSECalculator {
         numValues++;
     }
 
+    /**
+     * Adds the values accumulated by another calculator to
+     * this one, so that separate calculators can be used by 
+     * separate threads and merged at the end.
+     * 
+     * @param other the calculator to merge into this one
+     */
+    public void merge(RMSECalculator other) {
+        sumSquaredValues += other.sumSquaredValues;
+        numValues += other.numValues;
+    }
+
+    /**
+     * Returns the number of predictions added so far,
+     * including those merged from other calculators.
+     * 
+     * @return the number of predictions
+     */
+    public int getNumValues() {
+        return numValues;
+    }
+
     public void add(int uid, int mid, double prediction) throws SQLException {
         double realRating = getRealRating(uid, mid);
         add(realRating, prediction);
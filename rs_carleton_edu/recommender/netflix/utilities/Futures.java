@@ -0,0 +1,39 @@
+package netflix.utilities;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Helpers for the tasks that the model builders, trainers and
+ * recommenders hand out to an ExecutorService.
+ */
+public class Futures {
+
+    private Futures() {
+    }
+
+    /**
+     * Waits for a task to finish and returns its result. If the
+     * task threw an exception, it is rethrown here, wrapped in a
+     * RuntimeException if it was checked. If the waiting thread
+     * is interrupted, its interrupt flag is set again before a
+     * RuntimeException is thrown.
+     *
+     * @param  f  The task.
+     * @return The result of the task.
+     */
+    public static <T> T waitFor(Future<T> f) {
+        try {
+            return f.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a task", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package netflix.utilities;
+
+/**
+ * Keeps the k highest scoring ids out of a stream of (id, score)
+ * offers, using a min-heap over two primitive arrays so that no
+ * objects are created per offer. The lowest kept score sits at
+ * the root, so an offer that cannot make the cut is rejected with
+ * a single comparison.
+ *
+ * Once the heap is full, an offer that only ties the lowest kept
+ * score is rejected. A heap can be cleared and reused.
+ */
+public class TopKHeap {
+
+    private int[] ids;
+    private double[] scores;
+    private int size;
+
+    /**
+     * Creates a heap that keeps at most k entries.
+     *
+     * @param  k  The number of entries to keep.
+     */
+    public TopKHeap(int k) {
+        ids = new int[Math.max(1, k)];
+        scores = new double[Math.max(1, k)];
+        size = 0;
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Offers an entry to the heap. It is kept if the heap is not
+     * full yet, or if its score beats the lowest kept score, in
+     * which case that entry is dropped.
+     *
+     * @param  id  The id.
+     * @param  score  The score, which should not be NaN.
+     * @return true if the entry was kept.
+     */
+    public boolean offer(int id, double score) {
+        if (size < ids.length) {
+            // Sift up from the new leaf
+            int i = size++, parent;
+            while (i > 0) {
+                parent = (i - 1) >>> 1;
+                if (scores[parent] <= score)
+                    break;
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+            return true;
+        }
+
+        if (score <= scores[0])
+            return false;
+
+        siftDown(0, id, score, size);
+        return true;
+    }
+
+    /**
+     * Returns the number of entries in the heap.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the maximum number of entries.
+     *
+     * @return k.
+     */
+    public int capacity() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the lowest kept score, which an offer has to
+     * beat once the heap is full.
+     *
+     * @return The lowest score, or negative infinity if the
+     *         heap is empty.
+     */
+    public double minScore() {
+        return size == 0 ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Returns the id at a position of the heap. Positions run
+     * from 0 to size() - 1 and are in heap order, unless sort
+     * has been called.
+     *
+     * @param  i  The position.
+     * @return The id.
+     */
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Returns the score at a position of the heap.
+     *
+     * @param  i  The position.
+     * @return The score.
+     */
+    public double getScore(int i) {
+        return scores[i];
+    }
+
+    /**
+     * Sorts the entries by descending score, in place. The
+     * heap must be cleared before more entries are offered.
+     */
+    public void sort() {
+        int id;
+        double score;
+
+        // Repeatedly move the lowest score to the end
+        for (int end = size - 1; end > 0; end--) {
+            id = ids[end];
+            score = scores[end];
+            ids[end] = ids[0];
+            scores[end] = scores[0];
+            siftDown(0, id, score, end);
+        }
+    }
+
+    /**
+     * Places an entry at position i and sifts it down
+     * within the first n positions.
+     */
+    private void siftDown(int i, int id, double score, int n) {
+        int child;
+
+        while ((child = 2 * i + 1) < n) {
+            if (child + 1 < n && scores[child + 1] < scores[child])
+                child++;
+            if (score <= scores[child])
+                break;
+            ids[i] = ids[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+}
@@ -0,0 +1,331 @@
+package netflix.utilities;
+
+import java.util.Arrays;
+
+/**
+ * A bounded cache of weights between pairs of ids, such as the
+ * user-user weights of the memory-based algorithms. Weights are
+ * symmetric, so (a, b) and (b, a) share one entry, keyed by the
+ * long min(a, b)<<32 | max(a, b).
+ *
+ * The cache is split into segments, each an open-addressing table
+ * of primitive arrays guarded by its own lock, so several scoring
+ * threads can use it at once. When a segment is full, an entry is
+ * evicted with the CLOCK algorithm: a hand sweeps the table, giving
+ * entries that have been read since its last pass a second chance
+ * and evicting the first one that hasn't.
+ *
+ * The number of hits, misses and evictions are counted, so it is
+ * easy to tell whether the cache is paying for itself.
+ */
+public class WeightCache {
+
+    private static final long EMPTY = -1L;
+
+    private Segment[] segments;
+    private int segmentShift;
+
+    /**
+     * Creates a cache holding at most the specified number
+     * of weights, with enough segments for the processors
+     * of this machine.
+     *
+     * @param  capacity  The maximum number of weights.
+     */
+    public WeightCache(int capacity) {
+        this(capacity, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a cache holding at most the specified number
+     * of weights.
+     *
+     * @param  capacity  The maximum number of weights.
+     * @param  concurrency  The expected number of threads; the
+     *                      number of segments is the next power
+     *                      of two.
+     */
+    public WeightCache(int capacity, int concurrency) {
+        capacity = Math.max(1, capacity);
+
+        // Keep at least 16 entries in each segment
+        int numSegments = 1;
+        while(numSegments < concurrency && numSegments * 32 <= capacity)
+            numSegments <<= 1;
+
+        segments = new Segment[numSegments];
+        segmentShift = 64 - Integer.numberOfTrailingZeros(numSegments);
+        int perSegment = (capacity + numSegments - 1) / numSegments;
+        for(int i = 0; i < numSegments; i++)
+            segments[i] = new Segment(perSegment);
+    }
+
+    /**
+     * Returns the weight between two ids.
+     *
+     * @param  a  The first id.
+     * @param  b  The second id.
+     * @param  absent  The value to return if the weight is not
+     *                 in the cache.
+     * @return The weight, or absent.
+     */
+    public double get(int a, int b, double absent) {
+        long key = key(a, b), hash = hash(key);
+        return segmentFor(hash).get(key, (int) hash, absent);
+    }
+
+    /**
+     * Stores the weight between two ids, evicting another
+     * weight if the cache is full.
+     *
+     * @param  a  The first id.
+     * @param  b  The second id.
+     * @param  weight  The weight.
+     */
+    public void put(int a, int b, double weight) {
+        long key = key(a, b), hash = hash(key);
+        segmentFor(hash).put(key, (int) hash, weight);
+    }
+
+    /**
+     * Removes every weight. The counters are kept.
+     */
+    public void clear() {
+        for(Segment s : segments)
+            s.clear();
+    }
+
+    /**
+     * Returns the number of weights in the cache.
+     *
+     * @return The number of weights.
+     */
+    public int size() {
+        int size = 0;
+        for(Segment s : segments) {
+            synchronized(s) {
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the maximum number of weights in the cache.
+     *
+     * @return The capacity.
+     */
+    public int capacity() {
+        return segments.length * segments[0].maxSize;
+    }
+
+    /**
+     * Returns the number of lookups that found a weight.
+     *
+     * @return The number of hits.
+     */
+    public long getHits() {
+        long hits = 0;
+        for(Segment s : segments) {
+            synchronized(s) {
+                hits += s.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that did not find a weight.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        long misses = 0;
+        for(Segment s : segments) {
+            synchronized(s) {
+                misses += s.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the number of weights evicted to make room
+     * for new ones.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        long evictions = 0;
+        for(Segment s : segments) {
+            synchronized(s) {
+                evictions += s.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    public String toString() {
+        long hits = getHits(), misses = getMisses();
+        return "WeightCache: " + size() + "/" + capacity() + " weights, "
+            + hits + " hits, " + misses + " misses ("
+            + (hits + misses == 0 ? 0 : 100 * hits / (hits + misses)) + "% hit rate), "
+            + getEvictions() + " evictions";
+    }
+
+    /**
+     * Packs a pair of ids into a key, smaller id first.
+     */
+    private static long key(int a, int b) {
+        if(a > b) {
+            int t = a;
+            a = b;
+            b = t;
+        }
+        return (long) a << 32 | (b & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Mixes the bits of a key (the finalizer of MurmurHash3).
+     * The top bits pick the segment and the low bits the slot.
+     */
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segmentShift == 64 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+
+    /**
+     * One part of the cache: a linear probing table at most half
+     * full, plus the CLOCK hand and reference bits.
+     */
+    private static class Segment {
+
+        long[] keys;
+        double[] values;
+        boolean[] referenced;
+        int mask, maxSize, size, hand;
+        long hits, misses, evictions;
+
+        Segment(int maxSize) {
+            int tableSize = 2;
+            while(tableSize < 2 * maxSize)
+                tableSize <<= 1;
+
+            this.maxSize = maxSize;
+            keys = new long[tableSize];
+            values = new double[tableSize];
+            referenced = new boolean[tableSize];
+            mask = tableSize - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+
+        synchronized double get(long key, int hash, double absent) {
+            long k;
+            for(int i = hash & mask; ; i = (i + 1) & mask) {
+                k = keys[i];
+                if(k == key) {
+                    referenced[i] = true;
+                    hits++;
+                    return values[i];
+                }
+                if(k == EMPTY) {
+                    misses++;
+                    return absent;
+                }
+            }
+        }
+
+        synchronized void put(long key, int hash, double value) {
+            int i = find(key, hash);
+            if(keys[i] == key) {
+                values[i] = value;
+                referenced[i] = true;
+                return;
+            }
+
+            if(size >= maxSize) {
+                evict();
+                i = find(key, hash);
+            }
+
+            keys[i] = key;
+            values[i] = value;
+            referenced[i] = false;
+            size++;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(keys, EMPTY);
+            Arrays.fill(referenced, false);
+            size = 0;
+            hand = 0;
+        }
+
+        /**
+         * Returns the slot holding key, or the empty
+         * slot where it would go.
+         */
+        private int find(long key, int hash) {
+            int i = hash & mask;
+            while(keys[i] != EMPTY && keys[i] != key)
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        /**
+         * Advances the hand to the first entry that has not been
+         * referenced since the last sweep, clearing the reference
+         * bits it passes, and removes that entry.
+         */
+        private void evict() {
+            while(true) {
+                if(keys[hand] != EMPTY) {
+                    if(!referenced[hand]) {
+                        remove(hand);
+                        evictions++;
+                        return;
+                    }
+                    referenced[hand] = false;
+                }
+                hand = (hand + 1) & mask;
+            }
+        }
+
+        /**
+         * Removes the entry in slot i, shifting later entries of
+         * its probe sequence back so that no tombstone is needed.
+         */
+        private void remove(int i) {
+            int j = i, home;
+
+            while(true) {
+                j = (j + 1) & mask;
+                if(keys[j] == EMPTY)
+                    break;
+
+                // Move the entry at j back to i, unless its home
+                // slot lies cyclically in (i, j]
+                home = (int) hash(keys[j]) & mask;
+                if(i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    referenced[i] = referenced[j];
+                    i = j;
+                }
+            }
+
+            keys[i] = EMPTY;
+            referenced[i] = false;
+            size--;
+        }
+    }
+}